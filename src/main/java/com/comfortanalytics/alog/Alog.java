@@ -2,6 +2,7 @@ package com.comfortanalytics.alog;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Logger;
@@ -13,6 +14,13 @@ import java.util.logging.Logger;
  */
 public class Alog {
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final ConcurrentHashMap<Attachment, Logger> attachments =
+            new ConcurrentHashMap<Attachment, Logger>();
+
     ///////////////////////////////////////////////////////////////////////////
     // Constructors
     ///////////////////////////////////////////////////////////////////////////
@@ -33,6 +41,21 @@ public class Alog {
         getLogger("", logFile);
     }
 
+    /**
+     * Returns the low overhead facade for the logger named for the given class.
+     */
+    public static AlogLogger getAlogLogger(Class clazz) {
+        return AlogLogger.getLogger(clazz.getName());
+    }
+
+    /**
+     * Returns the low overhead facade for the named logger.  Instances are shared and
+     * should be kept in a static field rather than acquired for each use.
+     */
+    public static AlogLogger getAlogLogger(String name) {
+        return AlogLogger.getLogger(name);
+    }
+
     /**
      * Returns the first AsyncLogHandler found for the given log, or null.
      */
@@ -54,8 +77,8 @@ public class Alog {
 
     /**
      * Adds a FileLogHandler to the logger named for the given class, if there isn't one for the
-     * same file already. This can be used repeatedly to acquire the same logger, but doing so
-     * would be inefficient.  Use Logger.getLogger after this has installed the handler.
+     * same file already. Repeated calls for the same name and file are a lock free lookup, but
+     * keeping the logger in a field is still cheaper.
      *
      * @param clazz   The class name will be used as the log name.
      * @param logFile Where record the log.  Multiple logs can safely share the same file.
@@ -67,8 +90,8 @@ public class Alog {
 
     /**
      * Adds a PrintStreamLogHandler to the logger named for the given class, if there isn't one
-     * already. This can be used repeatedly to acquire the same logger, but doing so would be
-     * inefficient.  Use Logger.getLogger after this has installed the handler.
+     * for the stream already. Repeated calls for the same name and stream are a lock free
+     * lookup, but keeping the logger in a field is still cheaper.
      *
      * @param clazz The class name will be used as the log name.
      * @param out   Where to print the log.
@@ -80,43 +103,28 @@ public class Alog {
 
     /**
      * Adds a FileLogHandler to the named logger, if there isn't one for the same file already.
-     * This can be used repeatedly to acquire the same logger, but doing so would be
-     * inefficient.  Use Logger.getLogger after this has installed the handler.
+     * Repeated calls for the same name and file are a lock free lookup, but keeping the
+     * logger in a field is still cheaper.
      *
      * @param name    Log name.
      * @param logFile Where record the log.  Multiple logs can safely share the same file.
      * @return The logger for the given name with an async file handler attached to it.
      */
     public static Logger getLogger(String name, File logFile) {
-        Logger ret = Logger.getLogger(name);
-        FileLogHandler fileLogHandler = FileLogHandler.getHandler(logFile);
-        for (Handler handler : ret.getHandlers()) {
-            if (handler == fileLogHandler) {
-                return ret;
-            }
-        }
-        ret.addHandler(fileLogHandler);
-        return ret;
+        return attach(name, FileLogHandler.getHandler(logFile));
     }
 
     /**
-     * Adds a PrintStreamLogHandler to the named logger, if there isn't one already.
-     * This can be used repeatedly to acquire the same logger, but doing so would be
-     * inefficient.  Use Logger.getLogger after this has installed the handler.
+     * Adds the PrintStreamLogHandler for the stream to the named logger, if it isn't attached
+     * already.  All loggers printing to the same stream share a single handler.  Repeated
+     * calls for the same name and stream are a lock free lookup.
      *
      * @param name Log name.
      * @param out  Where to print the log.
      * @return The logger for the given name with an async handler attached to it.
      */
     public static Logger getLogger(String name, PrintStream out) {
-        Logger ret = Logger.getLogger(name);
-        for (Handler handler : ret.getHandlers()) {
-            if (handler instanceof PrintStreamLogHandler) {
-                return ret;
-            }
-        }
-        ret.addHandler(new PrintStreamLogHandler(name, out));
-        return ret;
+        return attach(name, PrintStreamLogHandler.getHandler(out));
     }
 
     /**
@@ -134,8 +142,53 @@ public class Alog {
             }
         }
         if (!existing) {
-            root.addHandler(new PrintStreamLogHandler("Async Console Logger", System.out));
+            root.addHandler(PrintStreamLogHandler.getHandler(System.out));
+        }
+        AlogLogger.refresh();
+    }
+
+    /**
+     * Adds the handler to the named logger if it isn't already attached.  Attachments are
+     * cached, which also keeps the logger from being garbage collected, so repeat calls
+     * don't lock or scan the handlers of the logger.  The cache entries of a handler are
+     * removed when it is closed, but not if it is removed from the logger without being
+     * closed.
+     */
+    static Logger attach(String name, AsyncLogHandler handler) {
+        Attachment key = new Attachment(name, handler);
+        Logger ret = attachments.get(key);
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (attachments) {
+            ret = Logger.getLogger(name);
+            boolean found = false;
+            for (Handler h : ret.getHandlers()) {
+                if (h == handler) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                ret.addHandler(handler);
+                AlogLogger.refresh();
+            }
+            attachments.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the cached attachments of a closed handler, and refreshes the AlogLoggers so
+     * they stop publishing to it directly.
+     */
+    static void detach(Handler handler) {
+        for (Attachment key : attachments.keySet()) {
+            if (key.handler == handler) {
+                attachments.remove(key);
+            }
         }
+        AlogLogger.refresh();
     }
 
     /**
@@ -145,4 +198,36 @@ public class Alog {
         return Logger.getLogger("");
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A handler attached to a logger name.
+     */
+    private static class Attachment {
+
+        final Handler handler;
+        final String name;
+
+        Attachment(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Attachment)) {
+                return false;
+            }
+            Attachment other = (Attachment) obj;
+            return (handler == other.handler) && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * name.hashCode()) + System.identityHashCode(handler);
+        }
+    }
+
 }
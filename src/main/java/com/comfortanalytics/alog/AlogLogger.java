@@ -0,0 +1,337 @@
+package com.comfortanalytics.alog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * A low overhead facade for a java.util.logging.Logger, acquire instances with
+ * Alog.getAlogLogger.
+ * <p>
+ * Checking whether a level is loggable is the same check as Logger.isLoggable, so it always
+ * sees the current level.  Parameters can be passed as primitives which are not boxed by the
+ * calling thread.  When every handler the logger would use is an AsyncLogHandler, and the
+ * logger has no filter, records are enqueued directly on those handlers without creating a
+ * LogRecord or going through the Logger.  Otherwise records are passed to the Logger as usual.
+ * <p>
+ * The handlers of the underlying logger and its parents are cached.  Before a record is
+ * enqueued directly, the cache is compared with the current handlers, filter and
+ * useParentHandlers of each logger, and refreshed if any changed.
+ *
+ * @author Aaron Hansen
+ */
+public class AlogLogger {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final ConcurrentHashMap<String, AlogLogger> loggers =
+            new ConcurrentHashMap<String, AlogLogger>();
+    private static boolean listening;
+
+    private volatile Direct direct;
+    private final Logger logger;
+    private final String name;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private AlogLogger(Logger logger) {
+        this.logger = logger;
+        this.name = logger.getName();
+        update();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    public void config(String msg) {
+        log(Level.CONFIG, msg);
+    }
+
+    public void fine(String msg) {
+        log(Level.FINE, msg);
+    }
+
+    public void finer(String msg) {
+        log(Level.FINER, msg);
+    }
+
+    public void finest(String msg) {
+        log(Level.FINEST, msg);
+    }
+
+    /**
+     * The underlying logger.
+     */
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void info(String msg) {
+        log(Level.INFO, msg);
+    }
+
+    /**
+     * True if the level is enabled on the underlying logger.
+     */
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    public void log(Level level, String msg) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.NONE, null, 0, null));
+    }
+
+    /**
+     * @param msg   A String.format or MessageFormat pattern.
+     * @param param Converted to a string when enqueued, unless it's an immutable type such as
+     *              a String or Number.
+     */
+    public void log(Level level, String msg, Object param) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.OBJECT, param, 0, null));
+    }
+
+    public void log(Level level, String msg, boolean param) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.BOOLEAN, null, param ? 1 : 0, null));
+    }
+
+    public void log(Level level, String msg, int param) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.INT, null, param, null));
+    }
+
+    public void log(Level level, String msg, long param) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.LONG, null, param, null));
+    }
+
+    public void log(Level level, String msg, double param) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.DOUBLE, null,
+                             Double.doubleToRawLongBits(param), null));
+    }
+
+    public void log(Level level, String msg, Throwable thrown) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        publish(new LogEntry(level, name, msg, LogEntry.NONE, null, 0, thrown));
+    }
+
+    /**
+     * Updates the cached handlers of every AlogLogger.  Changes are also found before each
+     * record is enqueued directly, this only avoids that first mismatch.
+     */
+    public static void refresh() {
+        for (AlogLogger logger : loggers.values()) {
+            logger.update();
+        }
+    }
+
+    /**
+     * Sets the level of the underlying logger.
+     */
+    public void setLevel(Level level) {
+        logger.setLevel(level);
+    }
+
+    public void severe(String msg) {
+        log(Level.SEVERE, msg);
+    }
+
+    public void severe(String msg, Throwable thrown) {
+        log(Level.SEVERE, msg, thrown);
+    }
+
+    public void warning(String msg) {
+        log(Level.WARNING, msg);
+    }
+
+    public void warning(String msg, Throwable thrown) {
+        log(Level.WARNING, msg, thrown);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the shared instance for the named logger.
+     */
+    static AlogLogger getLogger(String name) {
+        AlogLogger ret = loggers.get(name);
+        if (ret == null) {
+            ret = new AlogLogger(Logger.getLogger(name));
+            AlogLogger prev = loggers.putIfAbsent(name, ret);
+            if (prev != null) {
+                return prev;
+            }
+            listen();
+        }
+        return ret;
+    }
+
+    /**
+     * Refreshes all instances whenever the LogManager configuration is read.  The listener
+     * api changed in Java 9, so whichever exists is found by reflection.
+     */
+    private static synchronized void listen() {
+        if (listening) {
+            return;
+        }
+        listening = true;
+        LogManager manager = LogManager.getLogManager();
+        try {
+            Method method = LogManager.class.getMethod("addConfigurationListener",
+                                                       Runnable.class);
+            method.invoke(manager, new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            });
+            return;
+        } catch (Exception ignore) {
+        }
+        try {
+            Class<?> type = Class.forName("java.beans.PropertyChangeListener");
+            Object listener = Proxy.newProxyInstance(
+                    type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+                            if (name.equals("equals")) {
+                                return proxy == args[0];
+                            } else if (name.equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            } else if (name.equals("toString")) {
+                                return "AlogLogger Refresh";
+                            }
+                            refresh();
+                            return null;
+                        }
+                    });
+            LogManager.class.getMethod("addPropertyChangeListener", type)
+                            .invoke(manager, listener);
+        } catch (Exception ignore) {
+        }
+    }
+
+    private void publish(LogEntry entry) {
+        Direct cached = direct;
+        if ((cached != null) && !cached.isCurrent(logger)) {
+            update();
+            cached = direct;
+        }
+        if (cached == null) {
+            logger.log(entry.toRecord());
+            return;
+        }
+        for (AsyncLogHandler handler : cached.handlers) {
+            handler.publish(entry);
+        }
+    }
+
+    /**
+     * Caches the handlers if they can all be published to directly.
+     */
+    private void update() {
+        Direct cached = null;
+        if (logger.getFilter() == null) {
+            List<Handler[]> chain = new ArrayList<Handler[]>();
+            List<AsyncLogHandler> list = new ArrayList<AsyncLogHandler>();
+            Logger log = logger;
+            while (log != null) {
+                Handler[] handlers = log.getHandlers();
+                chain.add(handlers);
+                for (Handler handler : handlers) {
+                    if (!(handler instanceof AsyncLogHandler)) {
+                        list = null;
+                        break;
+                    }
+                    list.add((AsyncLogHandler) handler);
+                }
+                if ((list == null) || !log.getUseParentHandlers()) {
+                    break;
+                }
+                log = log.getParent();
+            }
+            if (list != null) {
+                cached = new Direct(chain.toArray(new Handler[chain.size()][]),
+                                    list.toArray(new AsyncLogHandler[list.size()]));
+            }
+        }
+        direct = cached;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The handlers to publish to directly, and the handlers of each logger they came from.
+     */
+    private static class Direct {
+
+        final Handler[][] chain;
+        final AsyncLogHandler[] handlers;
+
+        Direct(Handler[][] chain, AsyncLogHandler[] handlers) {
+            this.chain = chain;
+            this.handlers = handlers;
+        }
+
+        /**
+         * False if the filter, handlers, or useParentHandlers of a logger in the chain changed
+         * since this was created.
+         */
+        boolean isCurrent(Logger logger) {
+            if (logger.getFilter() != null) {
+                return false;
+            }
+            Logger log = logger;
+            for (int i = 0, last = chain.length - 1; i <= last; i++) {
+                if ((log == null) || !Arrays.equals(chain[i], log.getHandlers())) {
+                    return false;
+                }
+                boolean parents = log.getUseParentHandlers() && (log.getParent() != null);
+                if (parents == (i == last)) {
+                    return false;
+                }
+                log = log.getParent();
+            }
+            return true;
+        }
+
+    }
+
+}
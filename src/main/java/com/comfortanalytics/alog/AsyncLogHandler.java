@@ -1,8 +1,14 @@
 package com.comfortanalytics.alog;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
 import java.util.logging.Filter;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -22,11 +28,20 @@ public abstract class AsyncLogHandler extends Handler {
     ///////////////////////////////////////////////////////////////////////////
 
     static final String PROPERTY_BASE = "com.comfortanalytics.alog";
+    /**
+     * The size of output buffers; 8 KB by default.
+     */
+    static int DEFAULT_BUFFER_SIZE = 8192;
     /**
      * The approximate file size after which a file will be zipped into a backup and a new
      * log file will be started; 10 mb by default.
      */
     static int DEFAULT_BACKUP_THRESHOLD = 10 * 1000 * 1000;
+    /**
+     * Max millis written records can remain buffered while the queue is busy; 1 second by
+     * default.
+     */
+    static int DEFAULT_FLUSH_INTERVAL = 1000;
     /**
      * The default number of backups to retain; 10 by default.
      */
@@ -35,334 +50,1750 @@ public abstract class AsyncLogHandler extends Handler {
      * Max async queue size after which records will be ignored; 25K by default.
      */
     static int DEFAULT_MAX_QUEUE = 25000;
+    /**
+     * Max estimated bytes retained by the queue; 64 MB by default.
+     */
+    static long DEFAULT_MAX_QUEUE_BYTES = 64 * 1024 * 1024;
+    /**
+     * Capacity reserved for WARNING and above; 1000 by default.
+     */
+    static int DEFAULT_PRIORITY_QUEUE = 1000;
+    /**
+     * Capacity of each flight recorder ring; 1000 by default.
+     */
+    static int DEFAULT_RECORDER_SIZE = 1000;
+    /**
+     * When the main queue is longer than this, the priority lane is drained first, otherwise
+     * records are written in the order they were published.
+     */
+    static int PRIORITY_BACKLOG = 100;
+    /**
+     * The priority lane may retain this fraction of the max queue bytes, beyond the max; a
+     * quarter by default.
+     */
+    static int PRIORITY_BYTES_DIVISOR = 4;
+    /**
+     * The number of throwables in a cause chain included in the size estimate of a record.
+     */
+    static int MAX_ESTIMATED_CAUSES = 16;
     /**
      * Percentage (0-100) of the max queue after which log records less than
      * INFO are ignored; 90 by default.
      */
     static int DEFAULT_THROTTLE = 90;
+    /**
+     * Millis a write can block before the watchdog considers the write thread stalled; 30
+     * seconds by default.
+     */
+    static int DEFAULT_STALL_TIMEOUT = 30000;
+    /**
+     * The number of loggers and templates in each top talker summary.
+     */
+    static int TOP_TALKER_SUMMARY = 20;
     static int EMPTY_QUEUE_TIMEOUT = 15000;
+    private static final ConcurrentHashMap<String, Class<?>> classes =
+            new ConcurrentHashMap<String, Class<?>>();
+    private static final AtomicLong globalBytes = new AtomicLong();
+    private static volatile long globalMaxBytes = 0;
+    private static boolean hookAdded = false;
+    private static final ConcurrentHashMap<AsyncLogHandler, Boolean> openHandlers =
+            new ConcurrentHashMap<AsyncLogHandler, Boolean>();
+    private static volatile long shutdownDeadline = 0;
+    private static volatile long shutdownTimeout = EMPTY_QUEUE_TIMEOUT;
+    private static boolean watchdogStarted = false;
+    private static final int OFF_VALUE = Level.OFF.intValue();
+    private static final int WARNING_VALUE = Level.WARNING.intValue();
 
     //////////////////////////////////////////////////////////////////////////
     // Instance Fields
     ///////////////////////////////////////////////////////////////////////////
 
+    private StringBuilder builder;
+    private volatile long busySince;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private Calendar calendar;
+    private final LatencyHistogram completionLatency = new LatencyHistogram();
+    private volatile Filter callerFilter;
+    private boolean closed = false;
+    private volatile Handler failover;
+    private String failoverName;
+    private volatile Filter deferredFilter;
+    private final LatencyHistogram durableLatency = new LatencyHistogram();
+    private int flushBytes = 0;
+    private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private boolean flushOnEmpty = true;
+    private LogFormat format = LogFormat.TEXT;
     private boolean inferCaller = false;
+    private volatile LogJournal journal;
     private LogHandlerThread logHandlerThread;
+    private volatile int levelValue = Level.ALL.intValue();
+    private int maxMessageSize = 0;
+    private long maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
     private int maxQueueSize = DEFAULT_MAX_QUEUE;
-    private boolean open = false;
-    private final LinkedList<LogRecord> queue = new LinkedList<LogRecord>();
+    private volatile boolean open = false;
+    private final Lane priority = new Lane();
+    private int priorityQueueSize = DEFAULT_PRIORITY_QUEUE;
+    private final Lane queue = new Lane();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private volatile FlightRecorder recorder;
+    private Level recorderLevel;
+    private boolean recorderPerThread = false;
+    private int recorderSize = DEFAULT_RECORDER_SIZE;
+    private Level recorderTrigger = Level.SEVERE;
+    private long sequence;
+    private AtomicLong sharedSequence;
+    private volatile boolean stalled;
+    private volatile int stallTimeout = DEFAULT_STALL_TIMEOUT;
     private int throttle = DEFAULT_THROTTLE;
     private int throttleThreshold = (int) (DEFAULT_MAX_QUEUE * .90);
+    private final ThrowableRenderer throwableRenderer = new ThrowableRenderer();
+    private volatile TopTalkers topLoggers;
+    private int topTalkerInterval = 0;
+    private volatile TopTalkers topTemplates;
+    private long unflushed;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private boolean writing;
+    private Object writeKey;
+    private long writeSequence = -1;
+    private volatile long writtenMark = -1;
 
     ///////////////////////////////////////////////////////////////////////////
     // Public Methods
     ///////////////////////////////////////////////////////////////////////////
 
     /**
-     * The number of items on the queue.
+     * The number of items on the queue, including the priority lane.
      */
     public int backlog() {
         synchronized (queue) {
-            return queue.size();
+            return queue.size + priority.size;
+        }
+    }
+
+    /**
+     * The estimated bytes retained by the queue, including the priority lane.
+     */
+    public long backlogBytes() {
+        synchronized (queue) {
+            return queue.bytes + priority.bytes;
         }
     }
 
     /**
-     * Clears the queue.
+     * Clears the queue, including the priority lane.
      */
     public void clearBacklog() {
         synchronized (queue) {
+            globalBytes.addAndGet(-(queue.bytes + priority.bytes));
             queue.clear();
+            priority.clear();
         }
     }
 
     /**
-     * Does not return until the queue is drained, or 15 seconds have elapsed.
+     * Does not return until the queue is drained, or 15 seconds have elapsed.  During
+     * closeAll, the shutdown deadline applies instead if it is sooner.
      * <p>
      * {@inheritDoc}
      */
     @Override
     public void close() {
         synchronized (this) {
-            if (!open) {
+            if (closed) {
                 return;
             }
+            closed = true;
             open = false;
         }
+        openHandlers.remove(this);
+        Alog.detach(this);
         waitForEmptyQueue(false);
         flush();
     }
 
-    public boolean getInferCaller() {
-        return inferCaller;
+    /**
+     * Closes every open handler in the JVM under a single deadline.  All handlers stop
+     * accepting records first, so their write threads drain concurrently, then each is
+     * closed once its queue is empty.  Handlers that are not drained by the deadline are
+     * flushed but left open, since their write threads are still using their streams.  This
+     * is called by a shutdown hook with the shutdown timeout.
+     *
+     * @param timeout Millis for all handlers together.
+     * @return The handlers that were not drained in time, and how many records each had yet
+     * to write.  Empty if all were closed.
+     */
+    public static Map<AsyncLogHandler, Integer> closeAll(long timeout) {
+        Map<AsyncLogHandler, Integer> ret = new LinkedHashMap<AsyncLogHandler, Integer>();
+        shutdownDeadline = System.currentTimeMillis() + timeout;
+        try {
+            //fan out handlers first, closing them closes their sinks
+            List<AsyncLogHandler> handlers = new ArrayList<AsyncLogHandler>();
+            for (AsyncLogHandler handler : openHandlers.keySet()) {
+                if (handler instanceof FanOutLogHandler) {
+                    handlers.add(0, handler);
+                } else {
+                    handlers.add(handler);
+                }
+            }
+            for (AsyncLogHandler handler : handlers) {
+                synchronized (handler) {
+                    handler.open = false;
+                }
+                synchronized (handler.queue) {
+                    handler.queue.notifyAll();
+                }
+            }
+            for (AsyncLogHandler handler : handlers) {
+                int count = handler.awaitDrained(shutdownDeadline);
+                if (count == 0) {
+                    handler.close();
+                } else {
+                    ret.put(handler, count);
+                    handler.flush();
+                }
+            }
+        } finally {
+            shutdownDeadline = 0;
+        }
+        return ret;
     }
 
-    public int getMaxQueueSize() {
-        return maxQueueSize;
+    /**
+     * The size of the output buffer, zero means unbuffered.
+     */
+    public int getBufferSize() {
+        return bufferSize;
     }
 
     /**
-     * When the queue fills to this percent, records finer than INFO are dropped.  Set
-     * to 100 to disable this behavior, the default is 90.
+     * The time from when each record was queued until the write thread finished writing it
+     * to the underlying stream, which may still buffer it.
      */
-    public int getThrottle() {
-        return throttle;
+    public LatencyHistogram getCompletionLatency() {
+        return completionLatency;
     }
 
     /**
-     * Enqueues the record for the write thread.
+     * The time from when the oldest record of each flush was queued until the flush
+     * completed.  There is one sample per flush, the longest any record in it waited to
+     * reach the operating system.
      */
-    @Override
-    public void publish(LogRecord record) {
-        synchronized (this) {
-            if (!open) {
-                return;
-            }
-        }
-        if (maxQueueSize > 0) {
-            int size = queue.size();
-            if (size >= throttleThreshold) {
-                if (size < maxQueueSize) {
-                    if (record.getLevel().intValue() < Level.INFO.intValue()) {
-                        return;
-                    }
-                } else {
-                    return;
-                }
-            }
-        }
-        if (inferCaller) {
-            record.getSourceClassName();
-            record.getSourceMethodName();
-        }
-        Object[] params = record.getParameters();
-        if ((params != null) && (params.length > 0)) {
-            String msg = record.getMessage();
-            if ((msg != null) && (msg.length() > 0)) {
-                Object param;
-                for (int i = params.length; --i >= 0; ) {
-                    param = params[i];
-                    if (param instanceof String) {
-                        continue;
-                    } else if (param instanceof Number) {
-                        if (param instanceof Integer) {
-                            continue;
-                        } else if (param instanceof Double) {
-                            continue;
-                        } else if (param instanceof Float) {
-                            continue;
-                        } else if (param instanceof Long) {
-                            continue;
-                        } else if (param instanceof Short) {
-                            continue;
-                        } else if (param instanceof Byte) {
-                            continue;
-                        }
-                        Formatter formatter = getFormatter();
-                        if (formatter != null) {
-                            record.setMessage(formatter.formatMessage(record));
-                        } else {
-                            record.setMessage(String.format(msg, params));
-                        }
-                        record.setParameters(null);
-                        break;
-                    } else if (param instanceof Boolean) {
-                        continue;
-                    } else if (param instanceof Character) {
-                        continue;
-                    } else if (param instanceof Date) {
-                        continue;
-                    } else if (param instanceof Enum) {
-                        continue;
-                    } else if (param instanceof Calendar) {
-                        params[i] = ((Calendar) param).clone();
+    public LatencyHistogram getDurableLatency() {
+        return durableLatency;
+    }
+
+    /**
+     * The handler records are sent to while the write thread is stalled, or null.
+     */
+    public Handler getFailover() {
+        Handler ret = failover;
+        if ((ret == null) && (failoverName != null)) {
+            synchronized (this) {
+                ret = failover;
+                if ((ret == null) && (failoverName != null)) {
+                    if (failoverName.equalsIgnoreCase("stderr")) {
+                        ret = PrintStreamLogHandler.getHandler(System.err);
                     } else {
-                        params[i] = param.toString();
+                        ret = FileLogHandler.getHandler(FileLogHandler.makeFile(failoverName));
                     }
+                    failover = ret;
                 }
             }
         }
-        synchronized (queue) {
-            if (open) {
-                queue.addLast(record);
-            }
-            queue.notifyAll();
-        }
+        return ret;
     }
 
-    public AsyncLogHandler setInferCaller(boolean fill) {
-        inferCaller = fill;
-        return this;
+    /**
+     * The duration of each flush by the write thread.
+     */
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
     }
 
     /**
-     * The maximum number of records allowed in the queue, after which log records will be dropped.
-     * Set to zero or less for an unbounded queue.
+     * Buffered bytes after which the write thread flushes, zero means disabled.
      */
-    public AsyncLogHandler setMaxQueueSize(int maxQueueSize) {
-        this.maxQueueSize = maxQueueSize;
-        this.throttleThreshold = (int) (maxQueueSize * (throttle / 100d));
-        return this;
+    public int getFlushBytes() {
+        return flushBytes;
     }
 
     /**
-     * When the queue fills to this percent, records finer than INFO are dropped.  Set
-     * to 100 to disable this behavior, the default is 90.
-     *
-     * @param percent 0-100 where 100 would disable the throttle.
+     * Millis after which the write thread flushes buffered records, zero means disabled.
      */
-    public AsyncLogHandler setThrottle(int percent) {
-        this.throttle = percent;
-        this.throttleThreshold = (int) (maxQueueSize * (throttle / 100d));
-        return this;
+    public int getFlushInterval() {
+        return flushInterval;
     }
 
-    ///////////////////////////////////////////////////////////////////////////
-    // Protected Methods
-    ///////////////////////////////////////////////////////////////////////////
-
     /**
-     * Load configuration from LogManager.
+     * Whether or not the write thread flushes whenever the queue is drained.
      */
-    protected void configure() {
-        LogManager manager = LogManager.getLogManager();
-        String prop = manager.getProperty(PROPERTY_BASE + ".filter");
-        Filter filter = optFilter(prop, null);
-        if (filter != null) {
-            setFilter(filter);
-        }
-        prop = manager.getProperty(PROPERTY_BASE + ".formatter");
-        Formatter formatter = optFormatter(prop, null);
-        if (formatter != null) {
-            setFormatter(formatter);
-        }
-        prop = manager.getProperty(PROPERTY_BASE + ".inferCaller");
-        setInferCaller(optBoolean(prop, false));
-        prop = manager.getProperty(PROPERTY_BASE + ".level");
-        setLevel(optLevel(prop, Level.INFO));
-        prop = manager.getProperty(PROPERTY_BASE + ".maxQueue");
-        setMaxQueueSize(optInt(prop, DEFAULT_MAX_QUEUE));
-        prop = manager.getProperty(PROPERTY_BASE + ".throttle");
-        setThrottle(optInt(prop, DEFAULT_THROTTLE));
+    public boolean getFlushOnEmpty() {
+        return flushOnEmpty;
     }
 
     /**
-     * Used to name the thread that processes log records.
+     * The built in layout used when there isn't a Formatter, TEXT by default.
      */
-    protected abstract String getThreadName();
+    public LogFormat getFormat() {
+        return format;
+    }
 
     /**
-     * Subclass hook for activities such as rolling files and cleaning up old garbage. Called
-     * after every record is written. Does nothing by default.
+     * Package prefixes whose consecutive stack frames are collapsed into a single line.
      */
-    protected void houseKeeping() {
+    public String[] getFoldPackages() {
+        return throwableRenderer.getFoldPackages().clone();
     }
 
     /**
-     * This must be called for the handler to actually do anything. Starts the write
-     * thread if there isn't already an active write thread.
+     * The limit on the estimated bytes retained by the queues of all handlers in the JVM,
+     * zero means there is no limit.
      */
-    protected void start() {
-        synchronized (this) {
-            if (open) {
-                return;
-            }
-            open = true;
-            logHandlerThread = new LogHandlerThread();
-            logHandlerThread.start();
-        }
+    public static long getGlobalMaxQueueBytes() {
+        return globalMaxBytes;
     }
 
     /**
-     * Format and write the log record the underlying stream.
+     * Millis the shutdown hook waits for all handlers together to drain.
      */
-    protected abstract void write(LogRecord record);
-
-    ///////////////////////////////////////////////////////////////////////////
-    // Package / Private Methods
-    ///////////////////////////////////////////////////////////////////////////
+    public static long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
 
-    static boolean optBoolean(String val, boolean defaultValue) {
-        if (val != null) {
-            try {
-                return Boolean.parseBoolean(val);
-            } catch (Exception ignore) {
-            }
-        }
-        return defaultValue;
+    public boolean getInferCaller() {
+        return inferCaller;
     }
 
-    static Filter optFilter(String val, Filter defaultValue) {
-        if (val != null) {
-            try {
-                Class<?> clz = ClassLoader.getSystemClassLoader().loadClass(val);
-                return (Filter) clz.newInstance();
-            } catch (Exception ignore) {
-            }
-        }
-        return defaultValue;
+    /**
+     * The number of characters after which messages are truncated, zero means unlimited.
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
     }
 
-    static Formatter optFormatter(String val, Formatter defaultValue) {
-        try {
-            if (val != null) {
-                Class<?> clz = ClassLoader.getSystemClassLoader().loadClass(val);
-                return (Formatter) clz.newInstance();
-            }
-        } catch (Exception ignore) {
-        }
-        return defaultValue;
+    /**
+     * The limit on the estimated bytes retained by the queue, zero means there is no limit.
+     */
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
     }
 
-    static int optInt(String val, int defaultValue) {
-        if (val != null) {
-            try {
-                return Integer.parseInt(val);
-            } catch (Exception ignore) {
-            }
-        }
-        return defaultValue;
+    public int getMaxQueueSize() {
+        return maxQueueSize;
     }
 
-    static Level optLevel(String val, Level defaultValue) {
-        if (val == null) {
-            return defaultValue;
-        }
-        Level l = Level.parse(val.trim());
-        return l != null ? l : defaultValue;
+    /**
+     * The maximum number of frames printed for each throwable in a cause chain, zero means
+     * unlimited.
+     */
+    public int getMaxTraceDepth() {
+        return throwableRenderer.getMaxDepth();
     }
 
-    static String optString(String val, String defaultValue) {
-        if (val == null) {
-            return defaultValue;
-        }
-        return val;
+    /**
+     * Capacity reserved for records of WARNING and above, zero means there is no priority
+     * lane.
+     */
+    public int getPriorityQueueSize() {
+        return priorityQueueSize;
     }
 
-    void waitForEmptyQueue(boolean throwException) {
-        long start = System.currentTimeMillis();
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                if ((System.currentTimeMillis() - start) > EMPTY_QUEUE_TIMEOUT) {
-                    if (throwException) {
-                        throw new IllegalStateException("Timed out waiting for empty queue");
-                    }
-                    return;
-                }
-                queue.notifyAll();
-                try {
-                    queue.wait(100);
-                } catch (Exception ignore) {
-                }
-            }
-        }
+    /**
+     * The time each record spent in the queue, from being queued until the write thread
+     * removed it.
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
     }
 
-    ///////////////////////////////////////////////////////////////////////////
-    // Inner Classes
-    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Records below this level are kept by the flight recorder rather than queued, null
+     * means the recorder is disabled.
+     */
+    public Level getRecorderLevel() {
+        return recorderLevel;
+    }
 
-    private class LogHandlerThread extends Thread {
+    /**
+     * Whether the flight recorder keeps a ring per publishing thread, rather than one for the
+     * handler.
+     */
+    public boolean getRecorderPerThread() {
+        return recorderPerThread;
+    }
+
+    /**
+     * The number of records each flight recorder ring retains.
+     */
+    public int getRecorderSize() {
+        return recorderSize;
+    }
+
+    /**
+     * Records at or above this level cause the flight recorder to queue its records.
+     */
+    public Level getRecorderTrigger() {
+        return recorderTrigger;
+    }
+
+    /**
+     * Millis a write can block before the watchdog considers the write thread stalled, zero
+     * means disabled.
+     */
+    public int getStallTimeout() {
+        return stallTimeout;
+    }
+
+    /**
+     * When the queue fills to this percent, records finer than INFO are dropped.  Set
+     * to 100 to disable this behavior, the default is 90.
+     */
+    public int getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * The number of distinct stack traces remembered so that repeats can be referenced by id
+     * rather than printed in full, zero means disabled.
+     */
+    public int getTraceCacheSize() {
+        return throwableRenderer.getCacheSize();
+    }
+
+    /**
+     * The loggers that account for the most volume, or null if top talkers aren't tracked.
+     */
+    public TopTalkers getTopLoggers() {
+        return topLoggers;
+    }
+
+    /**
+     * Millis between top talker summary records, zero means disabled.
+     */
+    public int getTopTalkerInterval() {
+        return topTalkerInterval;
+    }
+
+    /**
+     * The number of loggers and message templates tracked, zero means disabled.
+     */
+    public int getTopTalkerSize() {
+        TopTalkers tmp = topLoggers;
+        return tmp == null ? 0 : tmp.getCapacity();
+    }
+
+    /**
+     * The message templates that account for the most volume, or null if top talkers aren't
+     * tracked.  Records whose parameters had to be formatted when published are tracked by
+     * their formatted message.
+     */
+    public TopTalkers getTopTemplates() {
+        return topTemplates;
+    }
+
+    /**
+     * The duration of each record written by the write thread, excluding flushes.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Checks the level and any filter that isn't a DeferredFilter.  Unlike the super class
+     * implementation, this does not synchronize.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        if (record == null) {
+            return false;
+        }
+        int level = levelValue;
+        if ((record.getLevel().intValue() < level) || (level == OFF_VALUE)) {
+            return false;
+        }
+        Filter filter = callerFilter;
+        return (filter == null) || filter.isLoggable(record);
+    }
+
+    /**
+     * Enqueues the record for the write thread, unless it is rejected by the level or a filter
+     * that isn't a DeferredFilter.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        if (!open) {
+            return;
+        }
+        int level = record.getLevel().intValue();
+        FlightRecorder rec = recorder;
+        boolean recorded = (rec != null) && rec.isRecorded(level);
+        if (!recorded && isDropped(level)) {
+            dropped(record, level, 0);
+            return;
+        }
+        if (inferCaller) {
+            record.getSourceClassName();
+            record.getSourceMethodName();
+        }
+        //before the parameters can be formatted away
+        Object key = queueKey(record);
+        snapshotParameters(record);
+        if (recorded) {
+            rec.add(key == null ? record : new Keyed(record, key));
+            return;
+        }
+        if ((rec != null) && rec.isTrigger(level)) {
+            publishRecorded(rec.drain());
+        }
+        enqueueRecord(record, key);
+    }
+
+    /**
+     * The size of the buffer between formatting and the underlying stream, which takes effect
+     * the next time the stream is opened.  Zero means unbuffered, the default is 8 KB.
+     */
+    public AsyncLogHandler setBufferSize(int size) {
+        this.bufferSize = size;
+        return this;
+    }
+
+    /**
+     * If the filter is a DeferredFilter, it will be applied by the write thread after records
+     * are dequeued, otherwise it is applied before records are enqueued.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setFilter(Filter filter) {
+        super.setFilter(filter);
+        if (filter instanceof DeferredFilter) {
+            callerFilter = null;
+            deferredFilter = filter;
+        } else {
+            callerFilter = filter;
+            deferredFilter = null;
+        }
+    }
+
+    /**
+     * While the watchdog finds the write thread stalled, queued and newly published records
+     * are sent to this handler rather than being dropped once the queue fills.  For example,
+     * a PrintStreamLogHandler for System.err or a FileLogHandler on another disk.  Null, the
+     * default, means records wait for the write thread.
+     */
+    public AsyncLogHandler setFailover(Handler handler) {
+        if (handler == this) {
+            throw new IllegalArgumentException("Can't fail over to itself");
+        }
+        synchronized (this) {
+            this.failover = handler;
+            this.failoverName = null;
+        }
+        return this;
+    }
+
+    /**
+     * The write thread flushes once this many bytes have been written since the last flush.
+     * Zero, the default, leaves it to the buffer size.
+     */
+    public AsyncLogHandler setFlushBytes(int bytes) {
+        this.flushBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The write thread flushes once the oldest unflushed record was written this many millis
+     * ago, even if the queue never drains.  Zero disables it, the default is 1000.
+     */
+    public AsyncLogHandler setFlushInterval(int millis) {
+        this.flushInterval = millis;
+        return this;
+    }
+
+    /**
+     * When true, the default, the write thread flushes whenever it drains the queue, so that
+     * records are never left in the buffer while the handler is idle.  Set to false to favor
+     * throughput, records will then be flushed by the interval or byte triggers.
+     */
+    public AsyncLogHandler setFlushOnEmpty(boolean arg) {
+        this.flushOnEmpty = arg;
+        return this;
+    }
+
+    /**
+     * The built in layout to use when there isn't a Formatter, TEXT by default.
+     */
+    public AsyncLogHandler setFormat(LogFormat format) {
+        if (format == null) {
+            format = LogFormat.TEXT;
+        }
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Runs of stack frames whose class name starts with any of the given prefixes are collapsed
+     * into a single line, such as "... 42 folded".  The top frame of a trace is never folded.
+     * None by default.
+     *
+     * @param prefixes Package prefixes such as "org.springframework.", can be empty.
+     */
+    public AsyncLogHandler setFoldPackages(String... prefixes) {
+        throwableRenderer.setFoldPackages(prefixes);
+        return this;
+    }
+
+    /**
+     * Limits the estimated bytes retained by the queues of all handlers in the JVM, so that
+     * many handlers can't together exceed a fixed heap allowance.  Records that would exceed
+     * it are dropped.  Zero, the default, means there is no limit.
+     */
+    public static void setGlobalMaxQueueBytes(long bytes) {
+        globalMaxBytes = bytes;
+    }
+
+    public AsyncLogHandler setInferCaller(boolean fill) {
+        inferCaller = fill;
+        return this;
+    }
+
+    /**
+     * The level is cached so publish can check it without synchronizing.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setLevel(Level level) {
+        super.setLevel(level);
+        levelValue = level.intValue();
+    }
+
+    /**
+     * The time a shutdown hook gives all handlers in the JVM, together, to write their
+     * queued records.  Handlers drain concurrently, so this bounds the shutdown delay no
+     * matter how many there are.  Records that can't be written in time are reported on
+     * System.err.  The default is 15 seconds.
+     */
+    public static void setShutdownTimeout(long millis) {
+        shutdownTimeout = millis;
+    }
+
+    /**
+     * Messages longer than this many characters are truncated, and the number of removed
+     * characters appended.  Messages with parameters are formatted before being truncated,
+     * and string parameters are truncated as well.  Zero, the default, means unlimited.
+     */
+    public AsyncLogHandler setMaxMessageSize(int chars) {
+        this.maxMessageSize = chars;
+        return this;
+    }
+
+    /**
+     * Limits the estimated bytes retained by the queue, after which records finer than WARNING
+     * will be dropped.  The estimate is made when records are published, from the lengths of
+     * the message and string parameters, and the stack frames of any exception.  The priority
+     * lane may retain another quarter of this for WARNING and above.  Zero or less means
+     * there is no limit, the default is 64 MB.
+     */
+    public AsyncLogHandler setMaxQueueBytes(long bytes) {
+        this.maxQueueBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The maximum number of records allowed in the queue, after which log records will be dropped.
+     * Set to zero or less for an unbounded queue.
+     */
+    public AsyncLogHandler setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+        this.throttleThreshold = (int) (maxQueueSize * (throttle / 100d));
+        return this;
+    }
+
+    /**
+     * The maximum number of frames to print for each throwable in a cause chain, the remainder
+     * is summarized as "... n more".  Zero or less means unlimited, which is the default.
+     */
+    public AsyncLogHandler setMaxTraceDepth(int depth) {
+        throwableRenderer.setMaxDepth(depth);
+        return this;
+    }
+
+    /**
+     * Records of WARNING and above are placed in a separate lane with this much reserved
+     * capacity, so they can still be queued when the main queue is full.  Records are
+     * written in the order they were published, unless the main queue has a backlog of more
+     * than 100 records, then the priority lane is drained first so that warnings aren't stuck
+     * behind finer records.  Use the sequence number in the JSON format, or the timestamp,
+     * to restore the publish order.  Zero disables the lane, the default is 1000.
+     */
+    public AsyncLogHandler setPriorityQueueSize(int size) {
+        this.priorityQueueSize = size;
+        return this;
+    }
+
+    /**
+     * Enables the flight recorder.  Loggable records below this level are kept in a fixed
+     * size ring in memory, where they are neither formatted nor written.  When a record at or
+     * above the trigger level is published, the contents of the ring are queued ahead of it,
+     * oldest first.  Recorded records that are never triggered are discarded.  The handler
+     * level must be at or below this level for anything to be recorded.  Null, the default,
+     * disables the recorder.
+     */
+    public AsyncLogHandler setRecorderLevel(Level level) {
+        this.recorderLevel = level;
+        updateRecorder();
+        return this;
+    }
+
+    /**
+     * When true, each publishing thread has its own ring, so a trigger only releases the
+     * records of the thread that published it.  Rings are retained by their threads until
+     * the recorder is reconfigured.  False, the default, is a single ring for the handler.
+     */
+    public AsyncLogHandler setRecorderPerThread(boolean perThread) {
+        this.recorderPerThread = perThread;
+        updateRecorder();
+        return this;
+    }
+
+    /**
+     * The number of records each flight recorder ring retains, the default is 1000.
+     * Changing the size discards any recorded records.
+     */
+    public AsyncLogHandler setRecorderSize(int size) {
+        this.recorderSize = size;
+        updateRecorder();
+        return this;
+    }
+
+    /**
+     * Records at or above this level cause the flight recorder to queue its records, the
+     * default is SEVERE.
+     */
+    public AsyncLogHandler setRecorderTrigger(Level level) {
+        if (level == null) {
+            throw new NullPointerException("Null trigger");
+        }
+        this.recorderTrigger = level;
+        updateRecorder();
+        return this;
+    }
+
+    /**
+     * When a single write or flush blocks for longer than this, such as on a stalled network
+     * mount or a full disk, the watchdog reports it to the ErrorManager and sends records to
+     * the failover handler until the write returns.  Zero disables the check, the default is
+     * 30 seconds.
+     */
+    public AsyncLogHandler setStallTimeout(int millis) {
+        this.stallTimeout = millis;
+        return this;
+    }
+
+    /**
+     * When the queue fills to this percent, records finer than INFO are dropped.  Set
+     * to 100 to disable this behavior, the default is 90.
+     *
+     * @param percent 0-100 where 100 would disable the throttle.
+     */
+    public AsyncLogHandler setThrottle(int percent) {
+        this.throttle = percent;
+        this.throttleThreshold = (int) (maxQueueSize * (throttle / 100d));
+        return this;
+    }
+
+    /**
+     * When greater than zero, and top talkers are tracked, the write thread writes a summary
+     * record of the top 20 loggers and templates at this interval in millis, then resets the
+     * counts.  Nothing is written for an interval without any records.  Zero, the default,
+     * disables the summary.
+     */
+    public AsyncLogHandler setTopTalkerInterval(int millis) {
+        this.topTalkerInterval = millis;
+        return this;
+    }
+
+    /**
+     * When greater than zero, the records, bytes written and drops of this many logger names
+     * and this many message templates are tracked in fixed size sketches, so the sources of
+     * the most volume can be found with getTopLoggers and getTopTemplates.  Bytes are
+     * characters for print streams.  Changing the size discards the counts.  Zero, the
+     * default, disables tracking.
+     */
+    public AsyncLogHandler setTopTalkerSize(int size) {
+        if (size > 0) {
+            topLoggers = new TopTalkers(size);
+            topTemplates = new TopTalkers(size);
+        } else {
+            topLoggers = null;
+            topTemplates = null;
+        }
+        return this;
+    }
+
+    /**
+     * When greater than zero, this many distinct stack traces are remembered.  After a trace
+     * has been printed once, later throwables with the same types and frames are printed as
+     * their message lines with a reference to the id of the first.  Zero (the default)
+     * disables the cache.
+     */
+    public AsyncLogHandler setTraceCacheSize(int size) {
+        throwableRenderer.setCacheSize(size);
+        return this;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Load configuration from LogManager.
+     */
+    protected void configure() {
+        LogManager manager = LogManager.getLogManager();
+        String prop = manager.getProperty(PROPERTY_BASE + ".bufferSize");
+        setBufferSize(optInt(prop, DEFAULT_BUFFER_SIZE));
+        prop = manager.getProperty(PROPERTY_BASE + ".failover");
+        synchronized (this) {
+            failover = null;
+            failoverName = optString(prop, null);
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".filter");
+        Filter filter = optFilter(prop, null);
+        if (filter != null) {
+            setFilter(filter);
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".flushBytes");
+        setFlushBytes(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".flushInterval");
+        setFlushInterval(optInt(prop, DEFAULT_FLUSH_INTERVAL));
+        prop = manager.getProperty(PROPERTY_BASE + ".flushOnEmpty");
+        setFlushOnEmpty(optBoolean(prop, true));
+        prop = manager.getProperty(PROPERTY_BASE + ".format");
+        setFormat(LogFormat.parse(prop, LogFormat.TEXT));
+        prop = manager.getProperty(PROPERTY_BASE + ".formatter");
+        Formatter formatter = optFormatter(prop, null);
+        if (formatter != null) {
+            setFormatter(formatter);
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".foldPackages");
+        setFoldPackages(ThrowableRenderer.parsePackages(prop));
+        prop = manager.getProperty(PROPERTY_BASE + ".globalMaxQueueBytes");
+        if (prop != null) {
+            setGlobalMaxQueueBytes(optLong(prop, 0));
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".inferCaller");
+        setInferCaller(optBoolean(prop, false));
+        prop = manager.getProperty(PROPERTY_BASE + ".level");
+        setLevel(optLevel(prop, Level.INFO));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxMessageSize");
+        setMaxMessageSize(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxQueueBytes");
+        setMaxQueueBytes(optLong(prop, DEFAULT_MAX_QUEUE_BYTES));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxQueue");
+        setMaxQueueSize(optInt(prop, DEFAULT_MAX_QUEUE));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxTraceDepth");
+        setMaxTraceDepth(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".priorityQueue");
+        setPriorityQueueSize(optInt(prop, DEFAULT_PRIORITY_QUEUE));
+        prop = manager.getProperty(PROPERTY_BASE + ".recorderPerThread");
+        setRecorderPerThread(optBoolean(prop, false));
+        prop = manager.getProperty(PROPERTY_BASE + ".recorderSize");
+        setRecorderSize(optInt(prop, DEFAULT_RECORDER_SIZE));
+        prop = manager.getProperty(PROPERTY_BASE + ".recorderTrigger");
+        setRecorderTrigger(optLevel(prop, Level.SEVERE));
+        prop = manager.getProperty(PROPERTY_BASE + ".recorderLevel");
+        setRecorderLevel(optLevel(prop, null));
+        prop = manager.getProperty(PROPERTY_BASE + ".shutdownTimeout");
+        if (prop != null) {
+            setShutdownTimeout(optLong(prop, EMPTY_QUEUE_TIMEOUT));
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".stallTimeout");
+        setStallTimeout(optInt(prop, DEFAULT_STALL_TIMEOUT));
+        prop = manager.getProperty(PROPERTY_BASE + ".throttle");
+        setThrottle(optInt(prop, DEFAULT_THROTTLE));
+        prop = manager.getProperty(PROPERTY_BASE + ".topTalkerInterval");
+        setTopTalkerInterval(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".topTalkerSize");
+        setTopTalkerSize(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".traceCacheSize");
+        setTraceCacheSize(optInt(prop, 0));
+    }
+
+    /**
+     * Formats the record with the Formatter if there is one, otherwise with the log format.
+     * The returned builder is reused by each call so this must only be called by the write
+     * thread, and the result must be consumed before the next call.
+     *
+     * @return A builder containing the entire record, terminated with the line separator.
+     */
+    protected StringBuilder format(LogRecord record) {
+        if (builder == null) {
+            builder = new StringBuilder();
+            calendar = Calendar.getInstance();
+        }
+        builder.setLength(0);
+        Formatter formatter = getFormatter();
+        if (formatter != null) {
+            builder.append(formatter.format(record)).append(Utils.LINE_SEPARATOR);
+        } else if (format == LogFormat.JSON) {
+            JsonWriter.format(record, writeSequence, builder, calendar, throwableRenderer);
+        } else {
+            Utils.format(record, builder, calendar, throwableRenderer);
+        }
+        return builder;
+    }
+
+    /**
+     * Used to name the thread that processes log records.
+     */
+    protected abstract String getThreadName();
+
+    /**
+     * Subclass hook for activities such as rolling files and cleaning up old garbage. Called
+     * after every record is written. Does nothing by default.
+     */
+    protected void houseKeeping() {
+    }
+
+    /**
+     * This must be called for the handler to actually do anything.  The write thread is
+     * started when the first record is queued, so handlers that never log don't cost a
+     * thread.
+     */
+    protected void start() {
+        synchronized (this) {
+            if (open) {
+                return;
+            }
+            open = true;
+            closed = false;
+        }
+        openHandlers.put(this, Boolean.TRUE);
+        addShutdownHook();
+    }
+
+    /**
+     * Format and write the log record the underlying stream.
+     */
+    protected abstract void write(LogRecord record);
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Starts the watchdog that checks the write threads of all open handlers, once per JVM.
+     */
+    private static synchronized void startWatchdog() {
+        if (watchdogStarted) {
+            return;
+        }
+        watchdogStarted = true;
+        new Watchdog().start();
+    }
+
+    /**
+     * Creates and starts a write thread, called with the queue lock held.  The watchdog is
+     * started with the first write thread, so handlers that never log don't cost it either.
+     */
+    private void startWriter() {
+        startWatchdog();
+        logHandlerThread = new LogHandlerThread();
+        logHandlerThread.start();
+    }
+
+    /**
+     * Registers the hook that calls closeAll, once.
+     */
+    private static synchronized void addShutdownHook() {
+        if (hookAdded) {
+            return;
+        }
+        hookAdded = true;
+        try {
+            Runtime.getRuntime().addShutdownHook(new ShutdownHook());
+        } catch (IllegalStateException ignore) {
+            //already shutting down
+        }
+    }
+
+    /**
+     * Waits until the queue is empty and the write thread has finished the last record, or
+     * the deadline.  The write thread signals when the queue is drained, so this doesn't
+     * poll.  The shutdown deadline is checked on every signal, so waiters started before
+     * closeAll are also bound by it.
+     *
+     * @return The number of records not yet written.
+     */
+    private int awaitDrained(long deadline) {
+        synchronized (queue) {
+            while (true) {
+                int count = queue.size + priority.size;
+                if (writing) {
+                    count++;
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                long end = deadline;
+                long shutdown = shutdownDeadline;
+                if ((shutdown > 0) && (shutdown < end)) {
+                    end = shutdown;
+                }
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return count;
+                }
+                try {
+                    queue.wait(wait);
+                } catch (InterruptedException x) {
+                    return count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Subclasses call this from the write thread with the number of bytes written to the
+     * buffer, for the flush bytes trigger.
+     */
+    void addUnflushed(int bytes) {
+        unflushed += bytes;
+    }
+
+    /**
+     * Called by the watchdog.  Restarts a write thread that has died with records queued,
+     * and if the current write has been blocked longer than the stall timeout, reports it
+     * and hands the queued records to the failover handler.
+     */
+    private void checkWriter(long now) {
+        synchronized (queue) {
+            if ((logHandlerThread != null) && !logHandlerThread.isAlive()) {
+                logHandlerThread = null;
+                writing = false;
+                queue.notifyAll();
+            }
+            if ((logHandlerThread == null) && open && ((queue.size + priority.size) > 0)) {
+                startWriter();
+            }
+        }
+        long timeout = stallTimeout;
+        long since = busySince;
+        if ((timeout <= 0) || (since == 0) || ((now - since) < timeout)) {
+            stalled = false;
+            return;
+        }
+        if (!stalled) {
+            stalled = true;
+            if (busySince == 0) {
+                //finished in the meantime
+                stalled = false;
+                return;
+            }
+            reportError(getThreadName() + " stalled for " + (now - since) + "ms", null,
+                        ErrorManager.WRITE_FAILURE);
+        }
+        //don't drain the queue unless something can take it
+        if (getFailoverTarget() == null) {
+            return;
+        }
+        List<Object> items = new ArrayList<Object>();
+        synchronized (queue) {
+            Node node;
+            while (true) {
+                Node first = priority.head;
+                Node next = queue.head;
+                if ((first == null) && (next == null)) {
+                    break;
+                }
+                if ((first == null) || ((next != null) && (next.sequence < first.sequence))) {
+                    node = queue.poll();
+                } else {
+                    node = priority.poll();
+                }
+                globalBytes.addAndGet(-node.bytes);
+                items.add(node.item);
+            }
+            queue.notifyAll();
+        }
+        for (Object item : items) {
+            //the target may have stalled in the meantime
+            if (!failOver(item)) {
+                if (item instanceof LogEntry) {
+                    dropped(item, ((LogEntry) item).level.intValue(), 0);
+                } else {
+                    dropped(item, ((LogRecord) item).getLevel().intValue(), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a record that couldn't be queued.
+     *
+     * @param size The estimated bytes of the record, or zero if they weren't considered.
+     */
+    private void dropped(Object item, int level, int size) {
+        LogEvents.drop(this, level, size);
+        TopTalkers loggers = topLoggers;
+        TopTalkers templates = topTemplates;
+        if ((loggers == null) || (templates == null)) {
+            return;
+        }
+        String logger;
+        String msg;
+        if (item instanceof LogEntry) {
+            logger = ((LogEntry) item).loggerName;
+            msg = ((LogEntry) item).message;
+        } else {
+            logger = ((LogRecord) item).getLoggerName();
+            msg = ((LogRecord) item).getMessage();
+        }
+        int bytes = msg == null ? 0 : msg.length();
+        loggers.drop(logger, bytes);
+        templates.drop(msg, bytes);
+    }
+
+    /**
+     * Publishes the item to the failover handler, returns false if there isn't one that
+     * can accept it.
+     */
+    private boolean failOver(Object item) {
+        Handler target = getFailoverTarget();
+        if (target == null) {
+            return false;
+        }
+        if (item instanceof LogEntry) {
+            target.publish(((LogEntry) item).toRecord());
+        } else {
+            target.publish((LogRecord) item);
+        }
+        return true;
+    }
+
+    /**
+     * The failover handler, or null if there isn't one that can accept records: it isn't
+     * set, is this handler, or is stalled itself.
+     */
+    private Handler getFailoverTarget() {
+        Handler target = getFailover();
+        if ((target == null) || (target == this)) {
+            return null;
+        }
+        if ((target instanceof AsyncLogHandler) && ((AsyncLogHandler) target).stalled) {
+            return null;
+        }
+        return target;
+    }
+
+    /**
+     * Adds the item to the priority lane if the level qualifies and there is room, otherwise
+     * to the main queue, unless that is full.
+     */
+    private void enqueue(Object item, int level, int bytes, byte[] journaled, Object key) {
+        if (stalled && failOver(item)) {
+            return;
+        }
+        int depth = -1;
+        long now = System.nanoTime();
+        synchronized (queue) {
+            if (open) {
+                Lane lane = null;
+                if ((level >= WARNING_VALUE) && (priority.size < priorityQueueSize)
+                        && !isPriorityOverBytes(bytes)) {
+                    lane = priority;
+                } else if (!isQueueFull(level) && !isOverBytes(bytes)) {
+                    lane = queue;
+                }
+                if ((lane != null) && reserveGlobal(bytes)) {
+                    AtomicLong shared = sharedSequence;
+                    if (shared != null) {
+                        //still increasing within this handler, since it's taken in the lock
+                        sequence = shared.incrementAndGet();
+                    } else {
+                        sequence++;
+                    }
+                    lane.add(item, key, sequence, bytes, now);
+                    LogJournal tmp = journal;
+                    if ((tmp != null) && (journaled != null)) {
+                        tmp.append(journaled, sequence);
+                    }
+                    if (logHandlerThread == null) {
+                        startWriter();
+                    }
+                    depth = queue.size + priority.size;
+                }
+            }
+            queue.notifyAll();
+        }
+        if (depth >= 0) {
+            LogEvents.publish(this, level, depth);
+        } else if (open) {
+            dropped(item, level, bytes);
+        }
+    }
+
+    /**
+     * Truncates the record if necessary, and queues it.
+     *
+     * @param key From queueKey, passed to the write thread with the record.
+     */
+    private void enqueueRecord(LogRecord record, Object key) {
+        if (maxMessageSize > 0) {
+            truncate(record);
+        }
+        enqueue(record, record.getLevel().intValue(),
+                estimateSize(record.getMessage(), record.getParameters(), record.getThrown()),
+                journal == null ? null : LogJournal.encode(record), key);
+    }
+
+    /**
+     * A rough estimate of the heap retained by a queued record.
+     */
+    static int estimateSize(String msg, Object[] params, Throwable thrown) {
+        long ret = 160;
+        if (msg != null) {
+            ret += 40 + 2L * msg.length();
+        }
+        if (params != null) {
+            ret += 16 + 4 * params.length;
+            for (Object param : params) {
+                if (param instanceof String) {
+                    ret += 40 + 2L * ((String) param).length();
+                } else if (param != null) {
+                    ret += 24;
+                }
+            }
+        }
+        if (thrown != null) {
+            ret += estimateThrown(thrown);
+        }
+        return (int) Math.min(ret, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A rough estimate of the heap retained by a throwable and its causes, mostly their stack
+     * frames, so deep traces count against the byte limits.
+     */
+    static long estimateThrown(Throwable thrown) {
+        long ret = 0;
+        for (int i = 0; (thrown != null) && (i < MAX_ESTIMATED_CAUSES); i++) {
+            ret += 256;
+            String msg = thrown.getMessage();
+            if (msg != null) {
+                ret += 40 + 2L * msg.length();
+            }
+            ret += 64L * thrown.getStackTrace().length;
+            Throwable cause = thrown.getCause();
+            if (cause == thrown) {
+                break;
+            }
+            thrown = cause;
+        }
+        return ret;
+    }
+
+    /**
+     * Whether the interval or byte trigger requires a flush.
+     *
+     * @param since When the oldest unflushed record was written.
+     */
+    private boolean isFlushDue(long since, long now) {
+        if ((flushBytes > 0) && (unflushed >= flushBytes)) {
+            return true;
+        }
+        return (flushInterval > 0) && ((now - since) >= flushInterval);
+    }
+
+    /**
+     * Removes the next item to write, called with the queue lock held.
+     */
+    private Node nextNode() {
+        Node first = priority.head;
+        if (first == null) {
+            return queue.poll();
+        }
+        Node next = queue.head;
+        if ((next == null) || (queue.size > PRIORITY_BACKLOG) || (first.sequence < next.sequence)) {
+            return priority.poll();
+        }
+        return queue.poll();
+    }
+
+    /**
+     * True if adding the bytes to the main queue would exceed the byte limit.
+     */
+    private boolean isOverBytes(int bytes) {
+        long max = maxQueueBytes;
+        return (max > 0) && ((queue.bytes + priority.bytes + bytes) > max);
+    }
+
+    /**
+     * True if adding the bytes to the priority lane would exceed its share of the byte
+     * limit, which is in addition to the limit so warnings can be queued when it's reached.
+     */
+    private boolean isPriorityOverBytes(int bytes) {
+        long max = maxQueueBytes;
+        return (max > 0) && ((priority.bytes + bytes) > (max / PRIORITY_BYTES_DIVISOR));
+    }
+
+    /**
+     * Reserves bytes from the global budget, returns false if there isn't enough.
+     */
+    private static boolean reserveGlobal(int bytes) {
+        long total = globalBytes.addAndGet(bytes);
+        long max = globalMaxBytes;
+        if ((max > 0) && (total > max)) {
+            globalBytes.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Truncates the message, and any string parameters, that are longer than the max message
+     * size.
+     */
+    private void truncate(LogRecord record) {
+        int max = maxMessageSize;
+        String msg = record.getMessage();
+        Object[] params = record.getParameters();
+        if ((msg != null) && (msg.length() > max)) {
+            if ((params != null) && (params.length > 0)) {
+                Formatter formatter = getFormatter();
+                if (formatter != null) {
+                    msg = formatter.formatMessage(record);
+                } else {
+                    msg = MessageTemplate.get(msg).format(params);
+                }
+                record.setParameters(null);
+                params = null;
+            }
+            record.setMessage(truncate(msg, max));
+        }
+        if (params != null) {
+            for (int i = params.length; --i >= 0; ) {
+                if ((params[i] instanceof String) && (((String) params[i]).length() > max)) {
+                    params[i] = truncate((String) params[i], max);
+                }
+            }
+        }
+    }
+
+    static String truncate(String str, int max) {
+        if (str.length() <= max) {
+            return str;
+        }
+        return str.substring(0, max) + "... [" + (str.length() - max) + " chars truncated]";
+    }
+
+    /**
+     * Converts parameters that may be mutated by the caller to strings, so the record can be
+     * formatted later on another thread.  If there is a parameter that can't be converted
+     * independently, such as an unfamiliar type of Number, the message is formatted now.
+     */
+    private void snapshotParameters(LogRecord record) {
+        Object[] params = record.getParameters();
+        if ((params != null) && (params.length > 0)) {
+            String msg = record.getMessage();
+            if ((msg != null) && (msg.length() > 0)) {
+                Object param;
+                for (int i = params.length; --i >= 0; ) {
+                    param = params[i];
+                    if (param instanceof String) {
+                        continue;
+                    } else if (param instanceof Number) {
+                        if (param instanceof Integer) {
+                            continue;
+                        } else if (param instanceof Double) {
+                            continue;
+                        } else if (param instanceof Float) {
+                            continue;
+                        } else if (param instanceof Long) {
+                            continue;
+                        } else if (param instanceof Short) {
+                            continue;
+                        } else if (param instanceof Byte) {
+                            continue;
+                        }
+                        Formatter formatter = getFormatter();
+                        if (formatter != null) {
+                            record.setMessage(formatter.formatMessage(record));
+                        } else {
+                            record.setMessage(MessageTemplate.get(msg).format(params));
+                        }
+                        record.setParameters(null);
+                        break;
+                    } else if (param instanceof Boolean) {
+                        continue;
+                    } else if (param instanceof Character) {
+                        continue;
+                    } else if (param instanceof Date) {
+                        continue;
+                    } else if (param instanceof Enum) {
+                        continue;
+                    } else if (param instanceof Calendar) {
+                        params[i] = ((Calendar) param).clone();
+                    } else {
+                        params[i] = param.toString();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Why a record of the given level and size would be dropped, for diagnostics.  This
+     * doesn't synchronize, so it may not match the decision that was made.
+     */
+    String dropReason(int level, int bytes) {
+        int max = maxQueueSize;
+        int size = queue.size;
+        if ((max > 0) && (size >= max)) {
+            return "overflow";
+        }
+        if ((max > 0) && (size >= throttleThreshold) && (level < Level.INFO.intValue())) {
+            return "throttle";
+        }
+        if (isOverBytes(bytes)) {
+            return "bytes";
+        }
+        long global = globalMaxBytes;
+        if ((global > 0) && ((globalBytes.get() + bytes) > global)) {
+            return "global";
+        }
+        return "overflow";
+    }
+
+    /**
+     * True if a record of the given level can't be queued in either lane, this is checked
+     * without synchronization before any work is done on the record.
+     */
+    private boolean isDropped(int level) {
+        if (!isQueueFull(level) && !isOverBytes(0)) {
+            return false;
+        }
+        return (level < WARNING_VALUE) || (priority.size >= priorityQueueSize)
+                || isPriorityOverBytes(0);
+    }
+
+    /**
+     * True if a record of the given level should be dropped because of the main queue size.
+     */
+    private boolean isQueueFull(int level) {
+        if (maxQueueSize > 0) {
+            int size = queue.size;
+            if (size >= throttleThreshold) {
+                return (size >= maxQueueSize) || (level < Level.INFO.intValue());
+            }
+        }
+        return false;
+    }
+
+    static boolean optBoolean(String val, boolean defaultValue) {
+        if (val != null) {
+            try {
+                return Boolean.parseBoolean(val);
+            } catch (Exception ignore) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static Filter optFilter(String val, Filter defaultValue) {
+        if (val != null) {
+            try {
+                return (Filter) loadClass(val).newInstance();
+            } catch (Exception ignore) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static Formatter optFormatter(String val, Formatter defaultValue) {
+        try {
+            if (val != null) {
+                return (Formatter) loadClass(val).newInstance();
+            }
+        } catch (Exception ignore) {
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Loads configured classes through the system class loader, once per name.
+     */
+    static Class<?> loadClass(String name) throws ClassNotFoundException {
+        Class<?> ret = classes.get(name);
+        if (ret == null) {
+            ret = ClassLoader.getSystemClassLoader().loadClass(name);
+            classes.put(name, ret);
+        }
+        return ret;
+    }
+
+    static long optLong(String val, long defaultValue) {
+        if (val != null) {
+            try {
+                return Long.parseLong(val.trim());
+            } catch (Exception ignore) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static int optInt(String val, int defaultValue) {
+        if (val != null) {
+            try {
+                return Integer.parseInt(val);
+            } catch (Exception ignore) {
+            }
+        }
+        return defaultValue;
+    }
+
+    static Level optLevel(String val, Level defaultValue) {
+        if (val == null) {
+            return defaultValue;
+        }
+        Level l = Level.parse(val.trim());
+        return l != null ? l : defaultValue;
+    }
+
+    static String optString(String val, String defaultValue) {
+        if (val == null) {
+            return defaultValue;
+        }
+        return val;
+    }
+
+    /**
+     * Used by AlogLogger to enqueue without creating a LogRecord.  If there is a filter that
+     * isn't deferred, the caller is to be inferred, or the parameter may be mutable, the record
+     * is created and published here instead.
+     */
+    void publish(LogEntry entry) {
+        int level = levelValue;
+        int value = entry.level.intValue();
+        if ((value < level) || (level == OFF_VALUE)) {
+            return;
+        }
+        if ((callerFilter != null) || inferCaller || (journal != null) || !entry.isImmutable()
+                || ((maxMessageSize > 0) && entry.isLongerThan(maxMessageSize))) {
+            publish(entry.toRecord());
+            return;
+        }
+        if (!open) {
+            return;
+        }
+        FlightRecorder rec = recorder;
+        if (rec != null) {
+            if (rec.isRecorded(value)) {
+                rec.add(entry);
+                return;
+            }
+            if (rec.isTrigger(value)) {
+                publishRecorded(rec.drain());
+            }
+        }
+        if (isDropped(value)) {
+            dropped(entry, value, 0);
+            return;
+        }
+        enqueue(entry, value, entry.estimateSize(), null, null);
+    }
+
+    /**
+     * Queues records released by the flight recorder.
+     */
+    private void publishRecorded(Object[] items) {
+        if (items == null) {
+            return;
+        }
+        for (Object item : items) {
+            if (item instanceof LogEntry) {
+                LogEntry entry = (LogEntry) item;
+                enqueue(entry, entry.level.intValue(), entry.estimateSize(), null, null);
+            } else if (item instanceof Keyed) {
+                Keyed keyed = (Keyed) item;
+                enqueueRecord(keyed.record, keyed.key);
+            } else {
+                enqueueRecord((LogRecord) item, null);
+            }
+        }
+    }
+
+    /**
+     * The crash journal, or null.
+     */
+    LogJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Used by the write thread to render stack traces.
+     */
+    ThrowableRenderer getThrowableRenderer() {
+        return throwableRenderer;
+    }
+
+    /**
+     * Called at least once a second while the write thread is waiting for records, so
+     * subclasses can release resources.  Does nothing by default.
+     */
+    void idle() {
+    }
+
+    /**
+     * The result of queueKey for the record being written, only valid on the write thread
+     * while it writes a record.  Null for records that weren't published with a key, such
+     * as those recovered from a journal.
+     */
+    Object getWriteKey() {
+        return writeKey;
+    }
+
+    /**
+     * Every record with a sequence number less than or equal to this has been written to the
+     * underlying stream, though not necessarily flushed.  -1 if nothing has been written.
+     */
+    long getWrittenMark() {
+        return writtenMark;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Called on the publishing thread before the parameters of a record are snapshot or
+     * truncated.  The result is queued with the record and available to the write thread
+     * from getWriteKey.  Returns null by default.
+     */
+    Object queueKey(LogRecord record) {
+        return null;
+    }
+
+    /**
+     * Queues a record recovered from a crash journal, bypassing the level and filters.
+     */
+    void publishRecovered(LogRecord record) {
+        enqueue(record, record.getLevel().intValue(),
+                estimateSize(record.getMessage(), null, null),
+                journal == null ? null : LogJournal.encode(record), null);
+    }
+
+    /**
+     * Records are appended to the journal as they are queued.  The owner commits the
+     * written mark after flushing.
+     */
+    void setJournal(LogJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sequence numbers are taken from a counter shared with other handlers, such as the
+     * shards of a ShardedLogHandler, so they are unique and ordered across all of them.
+     */
+    void setSharedSequence(AtomicLong sequence) {
+        sharedSequence = sequence;
+    }
+
+    /**
+     * Replaces the flight recorder after its configuration changes.
+     */
+    private void updateRecorder() {
+        if (recorderLevel == null) {
+            recorder = null;
+        } else {
+            recorder = new FlightRecorder(recorderLevel.intValue(), recorderTrigger.intValue(),
+                                          recorderSize, recorderPerThread);
+        }
+    }
+
+    /**
+     * Waits until the queue is empty and the write thread has finished the last record.
+     */
+    void waitForEmptyQueue(boolean throwException) {
+        if (awaitDrained(System.currentTimeMillis() + EMPTY_QUEUE_TIMEOUT) > 0) {
+            if (throwException) {
+                throw new IllegalStateException("Timed out waiting for empty queue");
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A record and its queue key, held by the flight recorder.
+     */
+    private static class Keyed {
+
+        final Object key;
+        final LogRecord record;
+
+        Keyed(LogRecord record, Object key) {
+            this.record = record;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A FIFO of queued items, guarded by the lock of the main queue.  Each node holds the
+     * sequence number the item was assigned when it was published.
+     */
+    private static class Lane {
+
+        long bytes;
+        private Node head;
+        int size;
+        private Node tail;
+
+        void add(Object item, Object key, long sequence, int bytes, long enqueued) {
+            Node node = new Node(item, key, sequence, bytes, enqueued);
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+            this.bytes += bytes;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+            bytes = 0;
+        }
+
+        Node poll() {
+            Node ret = head;
+            if (ret != null) {
+                head = ret.next;
+                if (head == null) {
+                    tail = null;
+                }
+                ret.next = null;
+                size--;
+                bytes -= ret.bytes;
+            }
+            return ret;
+        }
+    }
+
+    private class LogHandlerThread extends Thread {
 
         public LogHandlerThread() {
             super(AsyncLogHandler.this.getThreadName());
@@ -370,32 +1801,296 @@ public abstract class AsyncLogHandler extends Handler {
         }
 
         public void run() {
+            try {
+                process();
+            } catch (Throwable x) {
+                Exception ex = x instanceof Exception ? (Exception) x : new Exception(x);
+                reportError(getName() + " died", ex, ErrorManager.GENERIC_FAILURE);
+            } finally {
+                synchronized (queue) {
+                    //the watchdog or the next record will start another
+                    if (logHandlerThread == this) {
+                        logHandlerThread = null;
+                        writing = false;
+                    }
+                    queue.notifyAll();
+                }
+            }
+        }
+
+        private void process() {
+            Node node;
             LogRecord record = null;
+            //when the oldest unflushed record was written, zero if nothing is buffered
+            long since = 0;
+            boolean drained;
+            boolean waited;
+            //the written mark once the current record is written
+            long mark = -1;
+            //flight recorder event for the records written since the last flush
+            Object batch = null;
+            int batchRecords = 0;
+            //when the oldest unflushed record was queued, in nanos
+            long oldest = 0;
+            long lastSummary = System.currentTimeMillis();
             while (true) {
+                drained = false;
+                waited = false;
                 synchronized (queue) {
-                    if (queue.isEmpty()) {
+                    writing = false;
+                    node = nextNode();
+                    if (node == null) {
+                        //signal anyone waiting for the queue to drain
                         queue.notifyAll();
-                        if (open) {
+                        if ((since > 0) && (flushOnEmpty || !open)) {
+                            drained = true;
+                        } else if (open) {
                             try {
-                                queue.wait(1000);
+                                queue.wait(waitMillis(since));
                             } catch (Exception ignore) {
                             }
-                            queue.notifyAll();
+                            waited = true;
                         } else {
                             logHandlerThread = null;
                             return;
                         }
                     } else {
-                        record = queue.removeFirst();
+                        if (node.item instanceof LogEntry) {
+                            record = ((LogEntry) node.item).toRecord();
+                        } else {
+                            record = (LogRecord) node.item;
+                        }
+                        writing = true;
+                        writeKey = node.key;
+                        writeSequence = node.sequence;
+                        mark = sequence;
+                        if (queue.head != null) {
+                            mark = Math.min(mark, queue.head.sequence - 1);
+                        }
+                        if (priority.head != null) {
+                            mark = Math.min(mark, priority.head.sequence - 1);
+                        }
+                        globalBytes.addAndGet(-node.bytes);
+                    }
+                }
+                if (waited) {
+                    try {
+                        idle();
+                    } catch (RuntimeException x) {
+                        reportError(null, x, ErrorManager.GENERIC_FAILURE);
                     }
                 }
                 if (record != null) {
-                    write(record);
+                    long start = System.nanoTime();
+                    long enqueued = node.enqueued;
+                    queueLatency.record(start - enqueued);
+                    Filter filter = deferredFilter;
+                    if ((filter != null) && !filter.isLoggable(record)) {
+                        record = null;
+                        continue;
+                    }
+                    if (batchRecords++ == 0) {
+                        batch = LogEvents.beginBatch();
+                        oldest = enqueued;
+                    } else if (enqueued < oldest) {
+                        oldest = enqueued;
+                    }
+                    long written = unflushed;
+                    busySince = System.currentTimeMillis();
+                    try {
+                        write(record);
+                        writtenMark = mark;
+                        long end = System.nanoTime();
+                        writeLatency.record(end - start);
+                        completionLatency.record(end - enqueued);
+                        countWrite(record, unflushed - written);
+                        houseKeeping();
+                    } catch (RuntimeException x) {
+                        reportError(null, x, ErrorManager.WRITE_FAILURE);
+                    } finally {
+                        busySince = 0;
+                    }
                     record = null;
-                    houseKeeping();
+                    if (since == 0) {
+                        since = System.currentTimeMillis();
+                    }
+                }
+                int interval = topTalkerInterval;
+                if (interval > 0) {
+                    long now = System.currentTimeMillis();
+                    if ((now - lastSummary) >= interval) {
+                        lastSummary = now;
+                        if (writeTopTalkers(interval) && (since == 0)) {
+                            since = now;
+                        }
+                    }
+                }
+                if (since > 0) {
+                    if (drained || isFlushDue(since, System.currentTimeMillis())) {
+                        long bytes = unflushed;
+                        unflushed = 0;
+                        since = 0;
+                        long start = System.nanoTime();
+                        busySince = System.currentTimeMillis();
+                        try {
+                            flush();
+                            long end = System.nanoTime();
+                            flushLatency.record(end - start);
+                            if (batchRecords > 0) {
+                                durableLatency.record(end - oldest);
+                            }
+                        } catch (RuntimeException x) {
+                            reportError(null, x, ErrorManager.FLUSH_FAILURE);
+                        } finally {
+                            busySince = 0;
+                        }
+                        LogEvents.endBatch(batch, AsyncLogHandler.this, batchRecords, bytes);
+                        batch = null;
+                        batchRecords = 0;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Counts a written record in the top talkers.
+         */
+        private void countWrite(LogRecord record, long bytes) {
+            TopTalkers loggers = topLoggers;
+            TopTalkers templates = topTemplates;
+            if ((loggers != null) && (templates != null)) {
+                loggers.record(record.getLoggerName(), bytes);
+                templates.record(record.getMessage(), bytes);
+            }
+        }
+
+        /**
+         * How long to wait for a record when the queue is empty.
+         */
+        private long waitMillis(long since) {
+            if ((since == 0) || (flushInterval <= 0)) {
+                return 1000;
+            }
+            long ret = since + flushInterval - System.currentTimeMillis();
+            return Math.max(1, Math.min(ret, 1000));
+        }
+
+        /**
+         * Writes a summary of the top talkers since the last one, then resets them.  Returns
+         * true if a record was written.
+         */
+        private boolean writeTopTalkers(int interval) {
+            TopTalkers loggers = topLoggers;
+            TopTalkers templates = topTemplates;
+            if ((loggers == null) || (templates == null) || !loggers.hasCounts()) {
+                return false;
+            }
+            StringBuilder buf = new StringBuilder();
+            buf.append("Top talkers for the last ");
+            if ((interval % 1000) == 0) {
+                buf.append(interval / 1000).append("s: ");
+            } else {
+                buf.append(interval).append("ms: ");
+            }
+            buf.append(loggers.getTotalRecords()).append(" records, ")
+               .append(loggers.getTotalBytes()).append(" bytes, ")
+               .append(loggers.getTotalDrops()).append(" drops");
+            buf.append(Utils.LINE_SEPARATOR).append("Loggers:");
+            for (TopTalkers.Entry entry : loggers.getTop(TOP_TALKER_SUMMARY)) {
+                buf.append(Utils.LINE_SEPARATOR).append("  ").append(entry);
+            }
+            buf.append(Utils.LINE_SEPARATOR).append("Templates:");
+            for (TopTalkers.Entry entry : templates.getTop(TOP_TALKER_SUMMARY)) {
+                buf.append(Utils.LINE_SEPARATOR).append("  ").append(entry);
+            }
+            loggers.reset();
+            templates.reset();
+            LogRecord record = new LogRecord(Level.INFO, buf.toString());
+            record.setLoggerName(PROPERTY_BASE);
+            //the summary was never queued, so it has no sequence number or route
+            writeKey = null;
+            writeSequence = -1;
+            try {
+                write(record);
+            } catch (RuntimeException x) {
+                reportError(null, x, ErrorManager.WRITE_FAILURE);
+            }
+            return true;
+        }
+    }
+
+    private static class Node {
+
+        final int bytes;
+        final long enqueued;
+        final Object item;
+        final Object key;
+        Node next;
+        final long sequence;
+
+        /**
+         * @param enqueued The nano time the item was queued.
+         */
+        Node(Object item, Object key, long sequence, int bytes, long enqueued) {
+            this.bytes = bytes;
+            this.enqueued = enqueued;
+            this.item = item;
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Checks the write threads of all open handlers.  It checks four times per the shortest
+     * stall timeout, between 10ms and once a second.
+     */
+    private static class Watchdog extends Thread {
+
+        Watchdog() {
+            super("Alog Watchdog");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                long interval = 1000;
+                long now = System.currentTimeMillis();
+                for (AsyncLogHandler handler : openHandlers.keySet()) {
+                    try {
+                        handler.checkWriter(now);
+                    } catch (RuntimeException x) {
+                        handler.reportError(null, x, ErrorManager.GENERIC_FAILURE);
+                    }
+                    int timeout = handler.stallTimeout;
+                    if (timeout > 0) {
+                        interval = Math.min(interval, Math.max(10, timeout / 4));
+                    }
+                }
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException x) {
+                    return;
                 }
             }
         }
     }
 
+    /**
+     * Closes all handlers at JVM shutdown and reports records that couldn't be written.
+     */
+    private static class ShutdownHook extends Thread {
+
+        ShutdownHook() {
+            super("Alog Shutdown");
+        }
+
+        public void run() {
+            Map<AsyncLogHandler, Integer> remaining = closeAll(shutdownTimeout);
+            for (Map.Entry<AsyncLogHandler, Integer> e : remaining.entrySet()) {
+                System.err.println("Alog: " + e.getValue() + " records were not written by "
+                                           + e.getKey().getThreadName() + " before shutdown");
+            }
+        }
+    }
+
 }
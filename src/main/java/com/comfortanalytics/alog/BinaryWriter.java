@@ -0,0 +1,456 @@
+package com.comfortanalytics.alog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes log records in the compact Alog binary format.
+ * <p>
+ * A new file begins with the magic bytes "ALOG" and a version byte.  Everything after that
+ * is a sequence of frames: a varint payload length, the payload, then the CRC32 of the
+ * payload as four big endian bytes.  The first byte of a payload is the frame type.
+ * <ul>
+ * <li>SESSION - a varint base timestamp.  Starts a new dictionary and is written whenever a
+ * writer starts appending to a file.
+ * <li>DICT - a varint id and a string.  Defines, or redefines, a dictionary entry.
+ * <li>RECORD - a zigzag varint timestamp delta from the previous record, a level byte, refs
+ * for the logger, source class, source method, a varint thread id, a ref for the message,
+ * typed parameters, and the exception chain.  Only messages with parameters are templates
+ * that repeat, so the others are always written inline rather than in the dictionary.
+ * </ul>
+ * Strings are written as refs: a varint that is zero for null, odd for a dictionary id
+ * (id = ref &gt;&gt;&gt; 1), or even for an inline UTF-8 string whose byte length is
+ * (ref &gt;&gt;&gt; 1) - 1.  Dictionary entries are emitted in DICT frames immediately before
+ * the first record that needs them.  When the dictionary is full the least recently used id
+ * is redefined, unless the record being encoded may already refer to it, in which case the
+ * string is written inline.
+ * <p>
+ * Payloads are at most MAX_FRAME bytes, so a reader can reject any longer length as corrupt
+ * without allocating it.  A record that would be longer, such as one with a huge parameter,
+ * is written with its message formatted and truncated, and without its exception if that is
+ * still too long.
+ * <p>
+ * Instances are not thread safe, they are meant to be used by a single write thread.
+ *
+ * @author Aaron Hansen
+ */
+class BinaryWriter {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    static final byte[] MAGIC = new byte[]{'A', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+
+    /**
+     * The longest payload written; 16MB.
+     */
+    static final int MAX_FRAME = 1 << 24;
+
+    static final int FRAME_SESSION = 0;
+    static final int FRAME_DICT = 1;
+    static final int FRAME_RECORD = 2;
+
+    static final int TYPE_NULL = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_INT = 2;
+    static final int TYPE_LONG = 3;
+    static final int TYPE_DOUBLE = 4;
+    static final int TYPE_FLOAT = 5;
+    static final int TYPE_BOOLEAN = 6;
+    static final int TYPE_CHAR = 7;
+    static final int TYPE_BYTE = 8;
+    static final int TYPE_SHORT = 9;
+    static final int TYPE_DATE = 10;
+
+    /**
+     * Index is the level byte, zero means a custom level follows.
+     */
+    static final Level[] LEVELS = new Level[]{
+            null, Level.OFF, Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG,
+            Level.FINE, Level.FINER, Level.FINEST, Level.ALL
+    };
+
+    static int MAX_DICTIONARY = 8192;
+    private static final int MAX_DICTIONARY_STRING = 512;
+
+    private final CRC32 crc = new CRC32();
+    private Dictionary dictionary = new Dictionary();
+    private Bytes entry = new Bytes();
+    private long lastMillis;
+    private int nextId = 1;
+    private Bytes output = new Bytes();
+    private Bytes payload = new Bytes();
+    private int refs;
+    private boolean session = false;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Must be called whenever the output moves to a new or reopened file.  The next write will
+     * start a new session with an empty dictionary.
+     */
+    void reset() {
+        session = false;
+        dictionary.clear();
+        nextId = 1;
+        if (output.bytes.length > 65536) {
+            output = new Bytes();
+            payload = new Bytes();
+        }
+    }
+
+    /**
+     * Encodes the record, and any new dictionary entries it needs, then writes them with a
+     * single call.
+     *
+     * @param newFile If true and this is the first write of a session, the file header is
+     *                written first.
+     * @return The number of bytes written.
+     */
+    int write(LogRecord record, OutputStream out, boolean newFile) throws IOException {
+        output.length = 0;
+        if (!session) {
+            if (newFile) {
+                output.write(MAGIC, 0, MAGIC.length);
+                output.write(VERSION);
+            }
+            lastMillis = record.getMillis();
+            payload.length = 0;
+            payload.write(FRAME_SESSION);
+            payload.writeVarint(lastMillis);
+            frame(payload);
+            session = true;
+        }
+        long millis = record.getMillis();
+        long delta = millis - lastMillis;
+        lastMillis = millis;
+        Bytes buf = payload;
+        encode(record, record.getMessage(), record.getParameters(), record.getThrown(), delta);
+        if (buf.length > MAX_FRAME) {
+            String msg = Utils.formatMessage(record);
+            if (msg != null) {
+                msg = AsyncLogHandler.truncate(msg, MAX_FRAME / 8);
+            }
+            encode(record, msg, null, record.getThrown(), delta);
+            if (buf.length > MAX_FRAME) {
+                encode(record, msg, null, null, delta);
+            }
+        }
+        frame(buf);
+        out.write(output.bytes, 0, output.length);
+        return output.length;
+    }
+
+    /**
+     * Encodes a record frame into the payload buffer.
+     *
+     * @param delta Millis since the previous record.
+     */
+    private void encode(LogRecord record, String msg, Object[] params, Throwable thrown,
+                        long delta) {
+        Bytes buf = payload;
+        buf.length = 0;
+        refs = 0;
+        buf.write(FRAME_RECORD);
+        buf.writeSigned(delta);
+        writeLevel(record.getLevel(), buf);
+        writeRef(record.getLoggerName(), buf);
+        writeRef(record.getSourceClassName(), buf);
+        writeRef(record.getSourceMethodName(), buf);
+        buf.writeVarint(record.getThreadID());
+        if ((params == null) || (params.length == 0)) {
+            buf.writeString(msg);
+        } else {
+            writeRef(msg, buf);
+        }
+        if (params == null) {
+            buf.writeVarint(0);
+        } else {
+            buf.writeVarint(params.length);
+            for (Object param : params) {
+                writeParam(param, buf);
+            }
+        }
+        writeThrown(thrown, buf);
+    }
+
+    /**
+     * Appends the payload to the output as a frame.
+     */
+    private void frame(Bytes payload) {
+        output.writeVarint(payload.length);
+        output.write(payload.bytes, 0, payload.length);
+        crc.reset();
+        crc.update(payload.bytes, 0, payload.length);
+        long val = crc.getValue();
+        output.write((int) (val >>> 24));
+        output.write((int) (val >>> 16));
+        output.write((int) (val >>> 8));
+        output.write((int) val);
+    }
+
+    /**
+     * Returns the dictionary id of the string, emitting a DICT frame if it's new.  When the
+     * dictionary is full, the least recently used id is reused.  Returns zero if that id could
+     * be one the current record refers to: every entry the record used was moved to the end of
+     * the access order, so that is only possible once it has made as many refs as there are
+     * entries.
+     */
+    private int idOf(String str) {
+        Integer id = dictionary.get(str);
+        if (id != null) {
+            refs++;
+            return id;
+        }
+        int newId;
+        if (dictionary.size() >= MAX_DICTIONARY) {
+            if (refs >= MAX_DICTIONARY) {
+                return 0;
+            }
+            Iterator<Map.Entry<String, Integer>> it = dictionary.entrySet().iterator();
+            newId = it.next().getValue();
+            it.remove();
+        } else {
+            newId = nextId++;
+        }
+        dictionary.put(str, newId);
+        refs++;
+        entry.length = 0;
+        entry.write(FRAME_DICT);
+        entry.writeVarint(newId);
+        entry.writeString(str);
+        frame(entry);
+        return newId;
+    }
+
+    private void writeLevel(Level level, Bytes buf) {
+        for (int i = 1; i < LEVELS.length; i++) {
+            if (LEVELS[i] == level) {
+                buf.write(i);
+                return;
+            }
+        }
+        buf.write(0);
+        buf.writeSigned(level.intValue());
+        writeRef(level.getName(), buf);
+    }
+
+    private void writeParam(Object param, Bytes buf) {
+        if (param == null) {
+            buf.write(TYPE_NULL);
+        } else if (param instanceof String) {
+            buf.write(TYPE_STRING);
+            buf.writeString((String) param);
+        } else if (param instanceof Integer) {
+            buf.write(TYPE_INT);
+            buf.writeSigned((Integer) param);
+        } else if (param instanceof Long) {
+            buf.write(TYPE_LONG);
+            buf.writeSigned((Long) param);
+        } else if (param instanceof Double) {
+            buf.write(TYPE_DOUBLE);
+            buf.writeLong(Double.doubleToRawLongBits((Double) param));
+        } else if (param instanceof Float) {
+            buf.write(TYPE_FLOAT);
+            buf.writeSigned(Float.floatToRawIntBits((Float) param));
+        } else if (param instanceof Boolean) {
+            buf.write(TYPE_BOOLEAN);
+            buf.write((Boolean) param ? 1 : 0);
+        } else if (param instanceof Character) {
+            buf.write(TYPE_CHAR);
+            buf.writeVarint((Character) param);
+        } else if (param instanceof Byte) {
+            buf.write(TYPE_BYTE);
+            buf.write((Byte) param);
+        } else if (param instanceof Short) {
+            buf.write(TYPE_SHORT);
+            buf.writeSigned((Short) param);
+        } else if (param instanceof Date) {
+            buf.write(TYPE_DATE);
+            buf.writeSigned(((Date) param).getTime());
+        } else if (param instanceof java.util.Calendar) {
+            buf.write(TYPE_DATE);
+            buf.writeSigned(((java.util.Calendar) param).getTimeInMillis());
+        } else {
+            buf.write(TYPE_STRING);
+            buf.writeString(param.toString());
+        }
+    }
+
+    /**
+     * Writes a string ref, using the dictionary for strings that aren't too long.
+     */
+    private void writeRef(String str, Bytes buf) {
+        if (str == null) {
+            buf.writeVarint(0);
+        } else if (str.length() <= MAX_DICTIONARY_STRING) {
+            int id = idOf(str);
+            if (id > 0) {
+                buf.writeVarint(((long) id << 1) | 1);
+            } else {
+                buf.writeString(str);
+            }
+        } else {
+            buf.writeString(str);
+        }
+    }
+
+    /**
+     * A varint count of the throwables in the cause chain, then for each: a ref of the
+     * class name, a ref of the message, a varint frame count and for each frame: refs of the
+     * class, method and file and a zigzag line number.
+     */
+    private void writeThrown(Throwable thrown, Bytes buf) {
+        int count = 0;
+        for (Throwable t = thrown; t != null; t = t.getCause()) {
+            if (++count >= ThrowableRenderer.MAX_CAUSES) {
+                break;
+            }
+        }
+        buf.writeVarint(count);
+        Throwable t = thrown;
+        for (int i = 0; i < count; i++) {
+            writeRef(ThrowableRenderer.className(t), buf);
+            buf.writeString(t.getLocalizedMessage());
+            StackTraceElement[] trace = t.getStackTrace();
+            buf.writeVarint(trace.length);
+            for (StackTraceElement frame : trace) {
+                writeRef(frame.getClassName(), buf);
+                writeRef(frame.getMethodName(), buf);
+                writeRef(frame.getFileName(), buf);
+                buf.writeSigned(frame.getLineNumber());
+            }
+            t = t.getCause();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A growable byte array.
+     */
+    static class Bytes {
+
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void ensure(int extra) {
+            if ((length + extra) > bytes.length) {
+                byte[] tmp = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, tmp, 0, length);
+                bytes = tmp;
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] buf, int off, int len) {
+            ensure(len);
+            System.arraycopy(buf, off, bytes, length, len);
+            length += len;
+        }
+
+        void writeLong(long val) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                bytes[length++] = (byte) (val >>> i);
+            }
+        }
+
+        /**
+         * Zigzag encoding so small negative numbers are small varints.
+         */
+        void writeSigned(long val) {
+            writeVarint((val << 1) ^ (val >> 63));
+        }
+
+        /**
+         * Writes an inline string ref, null is zero.
+         */
+        void writeString(String str) {
+            if (str == null) {
+                writeVarint(0);
+                return;
+            }
+            int len = str.length();
+            int utfLen = 0;
+            for (int i = 0; i < len; i++) {
+                char ch = str.charAt(i);
+                if (ch < 0x80) {
+                    utfLen++;
+                } else if (ch < 0x800) {
+                    utfLen += 2;
+                } else if (Character.isHighSurrogate(ch) && ((i + 1) < len)
+                        && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    utfLen += 4;
+                    i++;
+                } else {
+                    utfLen += 3;
+                }
+            }
+            writeVarint(((long) utfLen + 1) << 1);
+            ensure(utfLen);
+            byte[] b = bytes;
+            int pos = length;
+            for (int i = 0; i < len; i++) {
+                char ch = str.charAt(i);
+                if (ch < 0x80) {
+                    b[pos++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    b[pos++] = (byte) (0xC0 | (ch >> 6));
+                    b[pos++] = (byte) (0x80 | (ch & 0x3F));
+                } else if (Character.isHighSurrogate(ch) && ((i + 1) < len)
+                        && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(ch, str.charAt(++i));
+                    b[pos++] = (byte) (0xF0 | (cp >> 18));
+                    b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    b[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    b[pos++] = (byte) (0xE0 | (ch >> 12));
+                    b[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                    b[pos++] = (byte) (0x80 | (ch & 0x3F));
+                }
+            }
+            length = pos;
+        }
+
+        void writeVarint(long val) {
+            ensure(10);
+            while ((val & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((val & 0x7F) | 0x80);
+                val >>>= 7;
+            }
+            bytes[length++] = (byte) val;
+        }
+    }
+
+    /**
+     * String to id, in access order so the eldest entry is the least recently used.
+     */
+    private static class Dictionary extends LinkedHashMap<String, Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        Dictionary() {
+            super(256, .75f, true);
+        }
+    }
+
+}
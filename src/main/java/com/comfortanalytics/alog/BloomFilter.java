@@ -0,0 +1,117 @@
+package com.comfortanalytics.alog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A fixed size bloom filter of string tokens.
+ *
+ * @author Aaron Hansen
+ */
+class BloomFilter {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final int HASHES = 7;
+    private static final long MAX_BITS = 1L << 24;
+    private static final long MIN_BITS = 8192;
+
+    private final long[] bits;
+    private final int hashes;
+    private final long size;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param expected The expected number of distinct tokens, the filter will have a false
+     *                 positive rate of roughly 1% at that size.  The filter is at least
+     *                 1 KB and at most 2 MB.
+     */
+    BloomFilter(long expected) {
+        this(new long[(int) (Math.min(MAX_BITS, Math.max(MIN_BITS, expected * 10)) / 64)],
+             HASHES);
+    }
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.size = bits.length * 64L;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    void add(String token) {
+        long h1 = token.hashCode();
+        long h2 = fnv(token);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * False means the token was definitely never added.
+     */
+    boolean mightContain(String token) {
+        long h1 = token.hashCode();
+        long h2 = fnv(token);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static BloomFilter read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        int hashes = din.readInt();
+        long[] bits = new long[din.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = din.readLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    void write(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(hashes);
+        dout.writeInt(bits.length);
+        byte[] buf = new byte[8192];
+        int len = 0;
+        for (long l : bits) {
+            for (int i = 56; i >= 0; i -= 8) {
+                buf[len++] = (byte) (l >>> i);
+            }
+            if (len == buf.length) {
+                dout.write(buf, 0, len);
+                len = 0;
+            }
+        }
+        dout.write(buf, 0, len);
+        dout.flush();
+    }
+
+    /**
+     * 64 bit FNV-1a of the chars, a second hash independent of String.hashCode.
+     */
+    private static long fnv(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, len = token.length(); i < len; i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash | 1;
+    }
+
+}
@@ -0,0 +1,237 @@
+package com.comfortanalytics.alog;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Async log handler that writes to the stdout or stderr file descriptor directly, bypassing
+ * the synchronized System.out and System.err streams.  Records are encoded into a batch
+ * buffer which is written with a single write when it fills or the write thread flushes,
+ * rather than one write per record.  A FileOutputStream is used rather than its channel,
+ * because interrupting a thread blocked on the channel would close the file descriptor for
+ * the entire process.
+ * <p>
+ * Before each batch is written, the corresponding System stream is flushed so that anything
+ * other code has printed to it appears first.  Closing this handler does not close the file
+ * descriptor.
+ *
+ * @author Aaron Hansen
+ */
+public class ConsoleLogHandler extends AsyncLogHandler implements LogSink {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private ByteBuffer batch;
+    private CharsetEncoder encoder;
+    private String encoderCharset;
+    private final Object lock = new Object();
+    private String name;
+    private OutputStream out;
+    private boolean stderr = false;
+    private PrintStream stream;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes to stdout, unless the stderr key is configured.
+     */
+    public ConsoleLogHandler() {
+        this.name = "Async Console Handler";
+        configure();
+        setStream(stderr);
+        start();
+    }
+
+    /**
+     * @param stderr True for the stderr file descriptor, false for stdout.
+     */
+    public ConsoleLogHandler(String name, boolean stderr) {
+        this.name = name;
+        configure();
+        setStream(stderr);
+        start();
+    }
+
+    /**
+     * For testing, writes to the given output and coordinates with the given stream.
+     */
+    ConsoleLogHandler(String name, OutputStream out, PrintStream stream) {
+        this.name = name;
+        configure();
+        this.out = out;
+        this.stream = stream;
+        start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes any batched records.
+     */
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            drain();
+        }
+    }
+
+    /**
+     * True if writing to stderr rather than stdout.
+     */
+    public boolean isStderr() {
+        return stderr;
+    }
+
+    /**
+     * Writes a record formatted by a FanOutLogHandler.
+     */
+    public void write(LogRecord record, byte[] buf, int len) {
+        synchronized (lock) {
+            ByteBuffer tmp = getBatch();
+            if (tmp.remaining() < len) {
+                drain();
+            }
+            if (len > tmp.capacity()) {
+                writeFully(ByteBuffer.wrap(buf, 0, len));
+            } else {
+                tmp.put(buf, 0, len);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Load configuration from LogManager.
+     */
+    @Override
+    protected void configure() {
+        super.configure();
+        LogManager manager = LogManager.getLogManager();
+        try {
+            String prop = manager.getProperty(PROPERTY_BASE + ".encoding");
+            setEncoding(optString(prop, null));
+        } catch (Exception x) {
+            try {
+                setEncoding(null);
+            } catch (Exception ignore) {
+            }
+        }
+        String prop = manager.getProperty(PROPERTY_BASE + ".stderr");
+        stderr = optBoolean(prop, false);
+    }
+
+    @Override
+    protected String getThreadName() {
+        return name;
+    }
+
+    protected void write(LogRecord record) {
+        StringBuilder chars = format(record);
+        synchronized (lock) {
+            ByteBuffer tmp = getBatch();
+            CharsetEncoder enc = getEncoder();
+            CharBuffer in = CharBuffer.wrap(chars);
+            enc.reset();
+            CoderResult res = enc.encode(in, tmp, true);
+            while (res.isOverflow()) {
+                drain();
+                res = enc.encode(in, tmp, true);
+            }
+            while (enc.flush(tmp).isOverflow()) {
+                drain();
+            }
+            if (getBufferSize() <= 0) {
+                drain();
+            }
+        }
+        addUnflushed(chars.length());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the batch in a single call, after flushing the System stream.  Called with the
+     * lock held.
+     */
+    private void drain() {
+        ByteBuffer tmp = batch;
+        if ((tmp == null) || (tmp.position() == 0)) {
+            return;
+        }
+        tmp.flip();
+        try {
+            writeFully(tmp);
+        } finally {
+            tmp.clear();
+        }
+    }
+
+    /**
+     * The batch buffer, allocated on first use so the buffer size can be configured after
+     * construction.
+     */
+    private ByteBuffer getBatch() {
+        if (batch == null) {
+            batch = ByteBuffer.allocate(Math.max(getBufferSize(), 1024));
+        }
+        return batch;
+    }
+
+    private CharsetEncoder getEncoder() {
+        String charset = getEncoding();
+        if (charset == null) {
+            charset = Charset.defaultCharset().name();
+        }
+        if ((encoder == null) || !charset.equals(encoderCharset)) {
+            encoder = Charset.forName(charset).newEncoder()
+                             .onMalformedInput(CodingErrorAction.REPLACE)
+                             .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoderCharset = charset;
+        }
+        return encoder;
+    }
+
+    private void setStream(boolean stderr) {
+        this.stderr = stderr;
+        if (stderr) {
+            out = new FileOutputStream(FileDescriptor.err);
+            stream = System.err;
+        } else {
+            out = new FileOutputStream(FileDescriptor.out);
+            stream = System.out;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) {
+        stream.flush();
+        try {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+        } catch (IOException x) {
+            AlogException.throwRuntime(x);
+        }
+    }
+
+}
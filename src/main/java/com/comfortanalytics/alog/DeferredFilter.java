@@ -0,0 +1,15 @@
+package com.comfortanalytics.alog;
+
+import java.util.logging.Filter;
+
+/**
+ * Marks a Filter as too expensive to run on the thread that logs, such as one that applies
+ * regular expressions to messages.  When an AsyncLogHandler has a deferred filter, records
+ * are only checked against it on the write thread, after they have been dequeued.  Other
+ * filters are applied before records are enqueued.
+ *
+ * @author Aaron Hansen
+ */
+public interface DeferredFilter extends Filter {
+
+}
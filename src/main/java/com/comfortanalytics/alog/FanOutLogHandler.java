@@ -0,0 +1,161 @@
+package com.comfortanalytics.alog;
+
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * One queue and write thread for several sinks, such as a file and the console.  Each record
+ * is formatted and encoded once, then the same bytes are written to every sink that accepts
+ * it.
+ * <p>
+ * FileLogHandler and PrintStreamLogHandler are sinks, a PrintStreamLogHandler decodes the
+ * bytes with the encoding of this handler so its stream can use its own charset.  A handler
+ * used as a sink keeps its own level, filter, backups, index and bloom filter, but the
+ * format, formatter, encoding and trace settings of the fan out handler are used instead of
+ * its own.  A sink should not also be attached to a logger, and records below the level of
+ * this handler never reach any sink, so this level should be the lowest of the sinks.
+ * <p>
+ * Closing this handler closes its sinks.
+ *
+ * @author Aaron Hansen
+ */
+public class FanOutLogHandler extends AsyncLogHandler {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final RecordEncoder encoder = new RecordEncoder();
+    private String name;
+    private volatile LogSink[] sinks = new LogSink[0];
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    public FanOutLogHandler() {
+        this("Fan Out Log Handler");
+    }
+
+    public FanOutLogHandler(String name, LogSink... sinks) {
+        this.name = name;
+        configure();
+        for (LogSink sink : sinks) {
+            addSink(sink);
+        }
+        start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds a destination, if it isn't already one.
+     */
+    public synchronized FanOutLogHandler addSink(LogSink sink) {
+        LogSink[] cur = sinks;
+        for (LogSink s : cur) {
+            if (s == sink) {
+                return this;
+            }
+        }
+        LogSink[] tmp = new LogSink[cur.length + 1];
+        System.arraycopy(cur, 0, tmp, 0, cur.length);
+        tmp[cur.length] = sink;
+        if (sink instanceof FileLogHandler) {
+            ((FileLogHandler) sink).setFanOut(this);
+        } else if (sink instanceof PrintStreamLogHandler) {
+            ((PrintStreamLogHandler) sink).setFanOut(this);
+        }
+        sinks = tmp;
+        return this;
+    }
+
+    /**
+     * Waits for the queue to drain, then closes the sinks.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        for (LogSink sink : sinks) {
+            sink.close();
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (LogSink sink : sinks) {
+            sink.flush();
+        }
+    }
+
+    public LogSink[] getSinks() {
+        return sinks.clone();
+    }
+
+    /**
+     * Removes the destination without closing it.
+     */
+    public synchronized FanOutLogHandler removeSink(LogSink sink) {
+        LogSink[] cur = sinks;
+        for (int i = 0; i < cur.length; i++) {
+            if (cur[i] == sink) {
+                LogSink[] tmp = new LogSink[cur.length - 1];
+                System.arraycopy(cur, 0, tmp, 0, i);
+                System.arraycopy(cur, i + 1, tmp, i, tmp.length - i);
+                sinks = tmp;
+                if (sink instanceof FileLogHandler) {
+                    ((FileLogHandler) sink).setFanOut(null);
+                } else if (sink instanceof PrintStreamLogHandler) {
+                    ((PrintStreamLogHandler) sink).setFanOut(null);
+                }
+                break;
+            }
+        }
+        return this;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void configure() {
+        super.configure();
+        LogManager manager = LogManager.getLogManager();
+        try {
+            String prop = manager.getProperty(PROPERTY_BASE + ".encoding");
+            setEncoding(optString(prop, "UTF-8"));
+        } catch (Exception x) {
+            try {
+                setEncoding(null);
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    @Override
+    protected String getThreadName() {
+        return name;
+    }
+
+    @Override
+    protected void write(LogRecord record) {
+        LogSink[] targets = sinks;
+        int len = 0;
+        for (LogSink sink : targets) {
+            if (!sink.isLoggable(record)) {
+                continue;
+            }
+            if (len == 0) {
+                len = encoder.encode(format(record), getEncoding());
+            }
+            sink.write(record, encoder.array(), len);
+        }
+        addUnflushed(len);
+    }
+
+}
@@ -10,12 +10,14 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.logging.Formatter;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -25,18 +27,33 @@ import java.util.zip.ZipOutputStream;
  *
  * @author Aaron Hansen
  */
-public class FileLogHandler extends AsyncLogHandler {
+public class FileLogHandler extends AsyncLogHandler implements LogSink {
 
     ///////////////////////////////////////////////////////////////////////////
     // Fields
     ///////////////////////////////////////////////////////////////////////////
 
-    private static Map<String, FileLogHandler> allHandlers = new HashMap<String, FileLogHandler>();
+    private static final ConcurrentHashMap<String, FileLogHandler> allHandlers =
+            new ConcurrentHashMap<String, FileLogHandler>();
+    /**
+     * Handlers by the File objects they were requested with, so repeat lookups don't have to
+     * resolve the canonical path.
+     */
+    private static final ConcurrentHashMap<File, FileLogHandler> byFile =
+            new ConcurrentHashMap<File, FileLogHandler>();
     private int backupThreshold = DEFAULT_BACKUP_THRESHOLD;
-    private StringBuilder builder;
-    private Calendar calendar;
+    private BinaryWriter binaryWriter;
+    private BloomFilter bloom;
+    private boolean bloomComplete;
+    private boolean bloomFilter = false;
+    private Matcher bloomMatcher;
+    private Pattern bloomTokens;
+    private AsyncLogHandler fanOut;
     private File file;
     private FileOutputStream fileOut;
+    private LogIndex index;
+    private int indexInterval = 0;
+    private int journalSize = 0;
     private long length;
     private int maxBackups = DEFAULT_MAX_BACKUPS;
     private PrintStream out;
@@ -51,14 +68,36 @@ public class FileLogHandler extends AsyncLogHandler {
     }
 
     /**
-     * Will start by appending to an existing file.
+     * Will start by appending to an existing file.  The file isn't opened until the first
+     * record is written.
      */
     private FileLogHandler(File file) {
         configure();
+        if (this.file != null) {
+            //a configured filename doesn't apply to a handler for a specific file
+            allHandlers.remove(canonicalPath(this.file), this);
+        }
         setFile(file);
         start();
     }
 
+    /**
+     * A file written by a RoutingLogHandler.  It isn't configured, started or registered,
+     * records are only written to it through the LogSink interface.
+     */
+    FileLogHandler(File file, RoutingLogHandler router) {
+        this.file = file;
+        fanOut = router;
+        backupThreshold = router.getBackupThreshold();
+        maxBackups = router.getMaxBackups();
+        setBufferSize(router.getBufferSize());
+        try {
+            setEncoding(router.getEncoding());
+        } catch (Exception x) {
+            AlogException.throwRuntime(x);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Public Methods
     ///////////////////////////////////////////////////////////////////////////
@@ -81,15 +120,46 @@ public class FileLogHandler extends AsyncLogHandler {
         } catch (IOException x) {
             AlogException.throwRuntime(x);
         }
-        synchronized (FileLogHandler.class) {
-            allHandlers.remove(file.getAbsolutePath());
+        if (index != null) {
+            index.close();
+        }
+        LogJournal journal = getJournal();
+        if (journal != null) {
+            setJournal(null);
+            boolean clean = !journal.hasEntries();
+            journal.close();
+            if (clean) {
+                LogJournal.journalFile(file).delete();
+            }
+        }
+        String path = canonicalPath(file);
+        synchronized (allHandlers) {
+            allHandlers.remove(path, this);
+            for (Map.Entry<File, FileLogHandler> e : byFile.entrySet()) {
+                if (e.getValue() == this) {
+                    byFile.remove(e.getKey(), this);
+                }
+            }
         }
     }
 
+    /**
+     * Flushes the file, then commits the written records in the journal.
+     */
     @Override
     public void flush() {
-        if (out != null) {
-            out.flush();
+        long mark = getWrittenMark();
+        PrintStream tmp = out;
+        if (tmp != null) {
+            tmp.flush();
+        }
+        LogJournal journal = getJournal();
+        if ((journal != null) && (mark >= 0)) {
+            journal.commit(mark);
+        }
+        LogIndex idx = index;
+        if (idx != null) {
+            idx.flush();
         }
     }
 
@@ -101,18 +171,58 @@ public class FileLogHandler extends AsyncLogHandler {
     }
 
     /**
-     * Will return an existing handler for the given file, or create a new one.
+     * Whether or not a bloom filter of tokens is built for each file and stored in its
+     * backup.
+     */
+    public boolean getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * The pattern used to extract bloom filter tokens from messages, or null.
+     */
+    public String getBloomTokens() {
+        Pattern p = bloomTokens;
+        return p == null ? null : p.pattern();
+    }
+
+    /**
+     * Will return an existing handler for the given file, or create a new one.  Files are
+     * compared by canonical path, and repeat calls with an equal File are a lock free
+     * lookup.
      */
-    public static synchronized FileLogHandler getHandler(File file) {
-        String path = file.getAbsolutePath();
-        FileLogHandler handler = allHandlers.get(path);
-        if (handler == null) {
-            handler = new FileLogHandler(file);
-            allHandlers.put(path, handler);
+    public static FileLogHandler getHandler(File file) {
+        FileLogHandler handler = byFile.get(file);
+        if (handler != null) {
+            return handler;
+        }
+        String path = canonicalPath(file);
+        synchronized (allHandlers) {
+            handler = allHandlers.get(path);
+            if (handler == null) {
+                handler = new FileLogHandler(file);
+                allHandlers.put(path, handler);
+            }
+            //under the lock, so a handler closed in the meantime can't be cached
+            byFile.put(file, handler);
         }
         return handler;
     }
 
+    /**
+     * Bytes between entries in the time index, zero means there is no index.
+     */
+    public int getIndexInterval() {
+        return indexInterval;
+    }
+
+    /**
+     * Bytes in the crash journal, zero means there is no journal.
+     */
+    public int getJournalSize() {
+        return journalSize;
+    }
+
     /**
      * The number of backup files to retain.
      */
@@ -128,6 +238,78 @@ public class FileLogHandler extends AsyncLogHandler {
         return this;
     }
 
+    /**
+     * When true, the logger name of every record, and any tokens matched by the bloom tokens
+     * pattern, are added to a bloom filter that is stored in the backup of the file.  Use
+     * LogSearch to skip backups that can't contain a token.  False by default.
+     */
+    public FileLogHandler setBloomFilter(boolean arg) {
+        bloomFilter = arg;
+        return this;
+    }
+
+    /**
+     * A regular expression for extracting bloom filter tokens from formatted messages.  If
+     * the pattern has a capturing group, the first group of each match is the token, otherwise
+     * the entire match is.  For example "requestId=(\\w+)".  Null by default.  Messages with
+     * parameters are formatted an additional time to apply the pattern.
+     */
+    public FileLogHandler setBloomTokens(String regex) {
+        if (regex == null) {
+            bloomTokens = null;
+        } else {
+            bloomTokens = Pattern.compile(regex);
+        }
+        return this;
+    }
+
+    /**
+     * When greater than zero, a sparse time index is maintained next to the log, and stored
+     * in each backup, so that time ranges can be read with LogIndex.  An entry is added
+     * every interval bytes, or every second, whichever comes first.  Zero (the default)
+     * disables the index.
+     *
+     * @param bytes For example, 64 * 1024.
+     */
+    public FileLogHandler setIndexInterval(int bytes) {
+        indexInterval = bytes;
+        return this;
+    }
+
+    /**
+     * When greater than zero, every queued record is also appended to a memory mapped ring
+     * of this many bytes next to the log (the log name plus ".journal").  Records are removed
+     * from the ring once they have been flushed to the log, so the ring holds the records that
+     * would otherwise be lost if the process dies.  The operating system writes the mapped
+     * pages even after a crash or kill -9, and the records are recovered, with the prefix
+     * "(recovered) ", when the handler is next started.  If the ring fills, the oldest
+     * records are overwritten.
+     * <p>
+     * Journaled records are encoded by the publishing thread, which costs about as much as
+     * formatting them.  Zero (the default) disables the journal.
+     *
+     * @param bytes For example, 1024 * 1024.
+     */
+    public FileLogHandler setJournalSize(int bytes) {
+        journalSize = bytes;
+        if ((file == null) || !isOpen()) {
+            //start will open it
+            return this;
+        }
+        LogJournal old = getJournal();
+        setJournal(null);
+        if (old != null) {
+            old.close();
+        }
+        if (bytes > 0) {
+            //records in an existing journal of this handler are still queued
+            openJournal(old == null);
+        } else if (old != null) {
+            LogJournal.journalFile(file).delete();
+        }
+        return this;
+    }
+
     /**
      * The default is 10.
      */
@@ -136,6 +318,17 @@ public class FileLogHandler extends AsyncLogHandler {
         return this;
     }
 
+    /**
+     * Writes a record formatted by a fan out or routing handler, then rolls the file if
+     * necessary.
+     */
+    public void write(LogRecord record, byte[] buf, int len) {
+        open();
+        prepare(record);
+        out.write(buf, 0, len);
+        houseKeeping();
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Protected Methods
     ///////////////////////////////////////////////////////////////////////////
@@ -149,6 +342,14 @@ public class FileLogHandler extends AsyncLogHandler {
         LogManager manager = LogManager.getLogManager();
         String prop = manager.getProperty(PROPERTY_BASE + ".backupThreshold");
         setBackupThreshold(optInt(prop, DEFAULT_BACKUP_THRESHOLD));
+        prop = manager.getProperty(PROPERTY_BASE + ".bloomFilter");
+        setBloomFilter(optBoolean(prop, false));
+        prop = manager.getProperty(PROPERTY_BASE + ".bloomTokens");
+        try {
+            setBloomTokens(prop);
+        } catch (Exception x) {
+            Alog.rootLogger().log(Level.WARNING, "Invalid bloomTokens: " + prop, x);
+        }
         try {
             prop = manager.getProperty(PROPERTY_BASE + ".encoding");
             setEncoding(optString(prop, "UTF-8"));
@@ -158,12 +359,16 @@ public class FileLogHandler extends AsyncLogHandler {
             } catch (Exception ignore) {
             }
         }
+        prop = manager.getProperty(PROPERTY_BASE + ".indexInterval");
+        setIndexInterval(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".journalSize");
+        setJournalSize(optInt(prop, 0));
         prop = manager.getProperty(PROPERTY_BASE + ".maxBackups");
         setMaxBackups(optInt(prop, DEFAULT_MAX_BACKUPS));
         prop = manager.getProperty(PROPERTY_BASE + ".filename");
         if (prop != null) {
             File f = makeFile(prop);
-            allHandlers.put(f.getAbsolutePath(), this);
+            allHandlers.put(canonicalPath(f), this);
             setFile(f);
         }
     }
@@ -173,6 +378,18 @@ public class FileLogHandler extends AsyncLogHandler {
         return file.getName();
     }
 
+    /**
+     * Opens the journal, if there is a journal size, and queues any records it recovers
+     * before new records can be published.
+     */
+    @Override
+    protected void start() {
+        super.start();
+        if ((journalSize > 0) && (getJournal() == null)) {
+            openJournal(true);
+        }
+    }
+
     @Override
     protected void houseKeeping() {
         if (length > backupThreshold) {
@@ -187,26 +404,120 @@ public class FileLogHandler extends AsyncLogHandler {
     ///////////////////////////////////////////////////////////////////////////
 
     protected void write(LogRecord record) {
-        Formatter formatter = getFormatter();
-        if (formatter != null) {
-            out.println(formatter.format(record));
+        open();
+        prepare(record);
+        if ((getFormat() == LogFormat.BINARY) && (getFormatter() == null)) {
+            if (binaryWriter == null) {
+                binaryWriter = new BinaryWriter();
+            }
+            try {
+                binaryWriter.write(record, out, length == 0);
+            } catch (IOException x) {
+                AlogException.throwRuntime(x);
+            }
             return;
         }
-        if (builder == null) {
-            builder = new StringBuilder();
-            calendar = Calendar.getInstance();
+        out.print(format(record));
+    }
+
+    /**
+     * Updates the index and bloom filter before the record is written.
+     */
+    private void prepare(LogRecord record) {
+        if (indexInterval > 0) {
+            if (index == null) {
+                index = new LogIndex(file);
+            }
+            try {
+                if (index.update(record.getMillis(), length, indexInterval)) {
+                    //binary ranges must start with a session
+                    if (binaryWriter != null) {
+                        binaryWriter.reset();
+                    }
+                }
+            } catch (IOException x) {
+                AlogException.throwRuntime(x);
+            }
+        }
+        if (bloomFilter) {
+            addTokens(record);
+        }
+    }
+
+    /**
+     * Adds the tokens of the record to the bloom filter of the current file.
+     */
+    private void addTokens(LogRecord record) {
+        if (bloom == null) {
+            bloom = new BloomFilter(backupThreshold / 64);
+            //if the file already has content, the filter would be missing its tokens
+            bloomComplete = length == 0;
+        }
+        String name = record.getLoggerName();
+        if (name != null) {
+            bloom.add(name);
+        }
+        Pattern pattern = bloomTokens;
+        if (pattern == null) {
+            return;
+        }
+        String msg = Utils.formatMessage(record);
+        if (msg == null) {
+            return;
+        }
+        Matcher matcher = bloomMatcher;
+        if ((matcher == null) || (matcher.pattern() != pattern)) {
+            matcher = bloomMatcher = pattern.matcher(msg);
+        } else {
+            matcher.reset(msg);
+        }
+        while (matcher.find()) {
+            String token = matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+            if (token != null) {
+                bloom.add(token);
+            }
+        }
+    }
+
+    /**
+     * The canonical path of the file, or the absolute path if it can't be resolved.
+     */
+    static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException x) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Closes the file without closing the handler, the next write will reopen it.
+     */
+    void closeFile() {
+        flush();
+        setFile(file);
+        if (index != null) {
+            index.close();
+            index = null;
         }
-        Utils.write(record, out, builder, calendar);
     }
 
     /**
      * Backup files for this log, found in the same directory as the active log.
      */
     File[] getBackups() {
+        return getBackups(file);
+    }
+
+    /**
+     * Backup files for the given log, found in the same directory as the log, sorted oldest
+     * first.
+     */
+    static File[] getBackups(final File file) {
         File dir = file.getAbsoluteFile().getParentFile();
         File[] backups = dir.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return name.endsWith(".zip") && name.startsWith(file.getName());
+                return isBackup(file.getName(), name);
             }
         });
         if (backups == null) {
@@ -216,6 +527,65 @@ public class FileLogHandler extends AsyncLogHandler {
         return backups;
     }
 
+    /**
+     * True if the name is that of a backup of the log, as made by uniqueFile: the log name, a
+     * dot, a timestamp, an optional dot and counter, then .zip.  Other logs in the same
+     * directory can share the prefix, such as routed files or shards, so nothing else may
+     * match.
+     */
+    static boolean isBackup(String logName, String name) {
+        int len = name.length() - 4;
+        if ((len <= logName.length()) || !name.startsWith(logName) || !name.endsWith(".zip")) {
+            return false;
+        }
+        int i = logName.length();
+        if (name.charAt(i++) != '.') {
+            return false;
+        }
+        //date, a dash, then hours and minutes, with optional seconds and millis
+        int digits = countDigits(name, i, len);
+        if ((digits != 6) || (i + digits >= len) || (name.charAt(i + digits) != '-')) {
+            return false;
+        }
+        i += digits + 1;
+        digits = countDigits(name, i, len);
+        if ((digits != 4) && (digits != 6) && (digits != 9)) {
+            return false;
+        }
+        i += digits;
+        if (i == len) {
+            return true;
+        }
+        if (name.charAt(i++) != '.') {
+            return false;
+        }
+        digits = countDigits(name, i, len);
+        return (digits > 0) && ((i + digits) == len);
+    }
+
+    /**
+     * The number of consecutive digits starting at the index, stopping at the end index.
+     */
+    private static int countDigits(String str, int start, int end) {
+        int ret = 0;
+        for (int i = start; i < end; i++) {
+            char ch = str.charAt(i);
+            if ((ch < '0') || (ch > '9')) {
+                break;
+            }
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * True for zip entries in backups that hold the index or bloom filter rather than log
+     * content.
+     */
+    static boolean isSidecar(String entryName) {
+        return entryName.endsWith(LogIndex.EXTENSION) || entryName.endsWith(LogSearch.EXTENSION);
+    }
+
     File getFile() {
         return file;
     }
@@ -224,6 +594,9 @@ public class FileLogHandler extends AsyncLogHandler {
      * Zips the current log file, deletes the unzipped version, then starts a new one.
      */
     private void makeBackup() {
+        Object rollover = LogEvents.beginRollover();
+        //only measured for flight recorder events
+        long rolledBytes = (rollover == null) ? 0 : file.length();
         if (getMaxBackups() > 0) {
             try {
                 if (out != null) {
@@ -235,20 +608,35 @@ public class FileLogHandler extends AsyncLogHandler {
             } catch (Exception x) {
                 Alog.rootLogger().log(Level.WARNING, "Closing streams", x);
             }
+            Object compress = LogEvents.beginCompress();
+            if ((rollover != null) || (compress != null)) {
+                //closing wrote any buffered bytes
+                rolledBytes = file.length();
+            }
             ZipOutputStream zip = null;
             FileOutputStream fout = null;
             FileInputStream in = null;
+            File back = null;
             try {
-                File back = uniqueFile();
+                back = uniqueFile();
                 fout = new FileOutputStream(back);
                 zip = new ZipOutputStream(fout);
-                zip.putNextEntry(new ZipEntry(file.getName()));
-                in = new FileInputStream(file);
-                byte[] bytes = new byte[4096];
-                int len = in.read(bytes);
-                while (len > 0) {
-                    zip.write(bytes, 0, len);
-                    len = in.read(bytes);
+                if (index != null) {
+                    index.zip(file, zip);
+                } else {
+                    zip.putNextEntry(new ZipEntry(file.getName()));
+                    in = new FileInputStream(file);
+                    byte[] bytes = new byte[4096];
+                    int len = in.read(bytes);
+                    while (len > 0) {
+                        zip.write(bytes, 0, len);
+                        len = in.read(bytes);
+                    }
+                }
+                if ((bloom != null) && bloomComplete) {
+                    zip.putNextEntry(new ZipEntry(file.getName() + LogSearch.EXTENSION));
+                    bloom.write(zip);
+                    zip.closeEntry();
                 }
             } catch (Exception x) {
                 Alog.rootLogger().log(Level.SEVERE, "Log backup error", x);
@@ -274,13 +662,29 @@ public class FileLogHandler extends AsyncLogHandler {
                     Alog.rootLogger().log(Level.FINEST, "Log backup error", x);
                 }
             }
+            if ((back != null) && (compress != null)) {
+                LogEvents.endCompress(compress, file, rolledBytes, back.length());
+            }
+        }
+        //traces referenced by id must be printed again in the new file
+        getThrowableRenderer().clear();
+        AsyncLogHandler fan = fanOut;
+        if (fan != null) {
+            fan.getThrowableRenderer().clear();
+        }
+        if (index != null) {
+            index.delete();
         }
+        bloom = null;
         try {
             file.delete();
             setFile(file);
+            //the handler is in use, recreate the file right away for tailing tools
+            open();
         } catch (Exception e) {
             AlogException.throwRuntime(e);
         }
+        LogEvents.endRollover(rollover, file, rolledBytes);
     }
 
     static File makeFile(String pattern) {
@@ -334,19 +738,71 @@ public class FileLogHandler extends AsyncLogHandler {
         return file;
     }
 
+    /**
+     * The fan out or routing handler whose trace cache must be cleared when the file is
+     * backed up.
+     */
+    void setFanOut(AsyncLogHandler fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Creates the journal, first recovering the records of an existing one if requested.
+     */
+    private void openJournal(boolean recover) {
+        File journalFile = LogJournal.journalFile(file);
+        try {
+            List<LogRecord> recovered = null;
+            if (recover) {
+                recovered = LogJournal.recover(journalFile);
+            }
+            setJournal(new LogJournal(journalFile, journalSize));
+            if (recovered != null) {
+                for (LogRecord record : recovered) {
+                    publishRecovered(record);
+                }
+            }
+        } catch (IOException x) {
+            Alog.rootLogger().log(Level.WARNING, "Journal " + journalFile, x);
+        }
+    }
+
+    /**
+     * Opens the file for appending, if it isn't already open.
+     */
+    private void open() {
+        if (out != null) {
+            return;
+        }
+        try {
+            length = file.length();
+            fileOut = new FileOutputStream(file, true);
+            OutputStream tmp = fileOut;
+            if (getBufferSize() > 0) {
+                tmp = new BufferedOutputStream(tmp, getBufferSize());
+            }
+            tmp = new MeterStream(tmp);
+            out = new PrintStream(tmp, false, getEncoding());
+        } catch (Exception x) {
+            AlogException.throwRuntime(x);
+        }
+    }
+
+    /**
+     * Closes the current file, the given file will be opened by the next write.
+     */
     private void setFile(File file) {
         try {
             this.file = file;
-            this.length = file.length();
             if (out != null) {
                 out.close();
                 out = null;
                 fileOut.close();
                 fileOut = null;
             }
-            fileOut = new FileOutputStream(file, true);
-            OutputStream tmp = new MeterStream(new BufferedOutputStream(fileOut));
-            out = new PrintStream(tmp, false, getEncoding());
+            if (binaryWriter != null) {
+                binaryWriter.reset();
+            }
         } catch (Exception x) {
             AlogException.throwRuntime(x);
         }
@@ -453,18 +909,21 @@ public class FileLogHandler extends AsyncLogHandler {
         public void write(byte[] buf, int off, int len) throws IOException {
             out.write(buf, off, len);
             length += len;
+            addUnflushed(len);
         }
 
         @Override
         public void write(int b) throws IOException {
             out.write(b);
             length++;
+            addUnflushed(1);
         }
 
         @Override
         public void write(byte[] buf) throws IOException {
             out.write(buf);
             length += buf.length;
+            addUnflushed(buf.length);
         }
     }
 
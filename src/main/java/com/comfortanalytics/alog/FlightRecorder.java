@@ -0,0 +1,138 @@
+package com.comfortanalytics.alog;
+
+/**
+ * Fixed size rings of unformatted records, either one for the handler or one per publishing
+ * thread.  Once a ring is full, each new record replaces the oldest.  Instances are immutable
+ * apart from the rings, a handler replaces its recorder when the configuration changes.
+ *
+ * @author Aaron Hansen
+ */
+class FlightRecorder {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final Ring global;
+    private final int levelValue;
+    private final ThreadLocal<Ring> rings;
+    private final int triggerValue;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param levelValue   Records below this level are recorded.
+     * @param triggerValue Records at or above this level release the ring.
+     * @param size         The capacity of each ring.
+     * @param perThread    True for a ring per publishing thread.
+     */
+    FlightRecorder(int levelValue, int triggerValue, final int size, boolean perThread) {
+        this.levelValue = levelValue;
+        this.triggerValue = triggerValue;
+        if (perThread) {
+            global = null;
+            rings = new ThreadLocal<Ring>() {
+                @Override
+                protected Ring initialValue() {
+                    return new Ring(size);
+                }
+            };
+        } else {
+            global = new Ring(size);
+            rings = null;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds the record to the ring of the calling thread, or the global ring.
+     */
+    void add(Object item) {
+        if (rings != null) {
+            rings.get().add(item);
+            return;
+        }
+        synchronized (global) {
+            global.add(item);
+        }
+    }
+
+    /**
+     * Removes and returns the records of the calling thread, or the global ring, oldest
+     * first.  Returns null if there aren't any.
+     */
+    Object[] drain() {
+        if (rings != null) {
+            return rings.get().drain();
+        }
+        synchronized (global) {
+            return global.drain();
+        }
+    }
+
+    /**
+     * True if a record of the given level should be recorded rather than queued.
+     */
+    boolean isRecorded(int level) {
+        return level < levelValue;
+    }
+
+    /**
+     * True if a record of the given level releases the ring.
+     */
+    boolean isTrigger(int level) {
+        return level >= triggerValue;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static class Ring {
+
+        private int count;
+        private final Object[] items;
+        private int next;
+
+        Ring(int size) {
+            items = new Object[Math.max(size, 1)];
+        }
+
+        void add(Object item) {
+            items[next] = item;
+            if (++next == items.length) {
+                next = 0;
+            }
+            if (count < items.length) {
+                count++;
+            }
+        }
+
+        Object[] drain() {
+            if (count == 0) {
+                return null;
+            }
+            Object[] ret = new Object[count];
+            int idx = next - count;
+            if (idx < 0) {
+                idx += items.length;
+            }
+            for (int i = 0; i < count; i++) {
+                ret[i] = items[idx];
+                items[idx] = null;
+                if (++idx == items.length) {
+                    idx = 0;
+                }
+            }
+            count = 0;
+            next = 0;
+            return ret;
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+package com.comfortanalytics.alog;
+
+import java.util.Calendar;
+import java.util.IdentityHashMap;
+import java.util.logging.LogRecord;
+
+/**
+ * Formats log records as JSON lines, directly into a reusable StringBuilder.  Keys are
+ * pre-escaped constants and strings that don't need escaping, which is most of them, are
+ * appended without being examined character by character.
+ *
+ * @author Aaron Hansen
+ */
+class JsonWriter {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final char[] CAUSE = ",\"cause\":{\"class\":".toCharArray();
+    private static final char[] CLASS = ",\"class\":".toCharArray();
+    private static final char[] EXCEPTION = ",\"exception\":{\"class\":".toCharArray();
+    private static final char[] FRAMES = ",\"frames\":[".toCharArray();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] LEVEL = "\",\"level\":\"".toCharArray();
+    private static final char[] LOGGER = ",\"logger\":".toCharArray();
+    private static final char[] MESSAGE = ",\"message\":".toCharArray();
+    private static final char[] METHOD = ",\"method\":".toCharArray();
+    private static final char[] MORE = ",\"more\":".toCharArray();
+    private static final char[] MSG = ",\"msg\":".toCharArray();
+    private static final char[] REPEAT = ",\"repeat\":true".toCharArray();
+    private static final char[] SEQ = ",\"seq\":".toCharArray();
+    private static final char[] THREAD = ",\"thread\":".toCharArray();
+    private static final char[] TRACE = ",\"trace\":\"".toCharArray();
+    private static final char[] TS = "{\"ts\":\"".toCharArray();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private JsonWriter() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Appends the record as a single line JSON object, terminated with the line separator.
+     */
+    static void format(LogRecord record,
+                       StringBuilder buf,
+                       Calendar calendar,
+                       ThrowableRenderer renderer) {
+        format(record, -1, buf, calendar, renderer);
+    }
+
+    /**
+     * Appends the record as a single line JSON object, terminated with the line separator.
+     *
+     * @param seq The sequence number assigned by the handler, omitted if negative.
+     */
+    static void format(LogRecord record,
+                       long seq,
+                       StringBuilder buf,
+                       Calendar calendar,
+                       ThrowableRenderer renderer) {
+        buf.append(TS);
+        calendar.setTimeInMillis(record.getMillis());
+        Utils.encodeIso(calendar, buf);
+        buf.append(LEVEL).append(record.getLevel().getName()).append('"');
+        if (record.getLoggerName() != null) {
+            buf.append(LOGGER);
+            appendString(record.getLoggerName(), buf);
+        }
+        if (record.getSourceClassName() != null) {
+            buf.append(CLASS);
+            appendString(record.getSourceClassName(), buf);
+        }
+        if (record.getSourceMethodName() != null) {
+            buf.append(METHOD);
+            appendString(record.getSourceMethodName(), buf);
+        }
+        buf.append(THREAD).append(record.getThreadID());
+        if (seq >= 0) {
+            buf.append(SEQ).append(seq);
+        }
+        String msg = Utils.formatMessage(record);
+        if (msg != null) {
+            buf.append(MSG);
+            appendString(msg, buf);
+        }
+        Throwable thrown = record.getThrown();
+        if (thrown != null) {
+            appendThrown(thrown, buf, renderer);
+        }
+        buf.append('}').append(Utils.LINE_SEPARATOR);
+    }
+
+    /**
+     * Appends the string as a quoted and escaped JSON string.
+     */
+    static void appendString(String str, StringBuilder buf) {
+        buf.append('"');
+        int len = str.length();
+        int i = 0;
+        char ch;
+        //fast path, find the first char needing escape
+        for (; i < len; i++) {
+            ch = str.charAt(i);
+            if ((ch < 0x20) || (ch == '"') || (ch == '\\')) {
+                break;
+            }
+        }
+        if (i == len) {
+            buf.append(str).append('"');
+            return;
+        }
+        buf.append(str, 0, i);
+        for (; i < len; i++) {
+            ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                case '\b':
+                    buf.append("\\b");
+                    break;
+                case '\f':
+                    buf.append("\\f");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        buf.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+                    } else {
+                        buf.append(ch);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Exceptions are nested objects: class, message, trace (the id when the trace cache is
+     * enabled), repeat (when the trace was previously written), frames, more and cause.
+     */
+    private static void appendThrown(Throwable thrown,
+                                     StringBuilder buf,
+                                     ThrowableRenderer renderer) {
+        String id = renderer.lookup(thrown);
+        boolean repeat = renderer.isRepeat();
+        IdentityHashMap<Throwable, Throwable> seen = new IdentityHashMap<Throwable, Throwable>();
+        StackTraceElement[] enclosing = null;
+        int depth = 0;
+        Throwable t = thrown;
+        while ((t != null) && (depth < ThrowableRenderer.MAX_CAUSES)) {
+            if (seen.put(t, t) != null) {
+                break;
+            }
+            buf.append(depth == 0 ? EXCEPTION : CAUSE);
+            appendString(ThrowableRenderer.className(t), buf);
+            String msg = t.getLocalizedMessage();
+            if (msg != null) {
+                buf.append(MESSAGE);
+                appendString(msg, buf);
+            }
+            if ((depth == 0) && (id != null)) {
+                buf.append(TRACE).append(id).append('"');
+                if (repeat) {
+                    buf.append(REPEAT);
+                }
+            }
+            StackTraceElement[] trace = t.getStackTrace();
+            if (!repeat) {
+                appendFrames(trace, enclosing, buf, renderer);
+            }
+            enclosing = trace;
+            depth++;
+            t = t.getCause();
+        }
+        while (--depth >= 0) {
+            buf.append('}');
+        }
+    }
+
+    private static void appendFrames(StackTraceElement[] trace,
+                                     StackTraceElement[] enclosing,
+                                     StringBuilder buf,
+                                     ThrowableRenderer renderer) {
+        int common = ThrowableRenderer.commonFrames(trace, enclosing);
+        int last = trace.length - 1 - common;
+        int maxDepth = renderer.getMaxDepth();
+        boolean fold = renderer.getFoldPackages().length > 0;
+        int printed = 0;
+        int folded = 0;
+        int i = 0;
+        buf.append(FRAMES);
+        for (; i <= last; i++) {
+            StackTraceElement frame = trace[i];
+            if ((i > 0) && fold && renderer.isFolded(frame)) {
+                folded++;
+                continue;
+            }
+            if (folded > 0) {
+                appendFolded(folded, buf);
+                folded = 0;
+            }
+            if ((maxDepth > 0) && (printed >= maxDepth)) {
+                break;
+            }
+            if (buf.charAt(buf.length() - 1) != '[') {
+                buf.append(',');
+            }
+            appendString(frame.toString(), buf);
+            printed++;
+        }
+        if (folded > 0) {
+            appendFolded(folded, buf);
+        }
+        buf.append(']');
+        int remaining = (last - i + 1) + common;
+        if (remaining > 0) {
+            buf.append(MORE).append(remaining);
+        }
+    }
+
+    private static void appendFolded(int count, StringBuilder buf) {
+        if (buf.charAt(buf.length() - 1) != '[') {
+            buf.append(',');
+        }
+        buf.append("\"... ").append(count).append(" folded\"");
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.comfortanalytics.alog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of durations in log scale buckets, from which percentiles can be read while the
+ * durations are being recorded.  Each power of two is split into eight buckets, so a
+ * percentile is within 12.5% of the true value.  Durations are in nanoseconds.
+ *
+ * @author Aaron Hansen
+ */
+public class LatencyHistogram {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Class Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final int BUCKETS = 488;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Instance Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    LatencyHistogram() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The number of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The longest recorded duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The duration in nanoseconds that the given percent of recorded durations did not
+     * exceed, or zero if nothing has been recorded.
+     *
+     * @param percent 0-100, for example 99.9.
+     */
+    public long getPercentile(double percent) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * (Math.min(percent, 100d) / 100d));
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(lowest(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    /**
+     * The count and the 50th, 99th and 99.9th percentiles and max in microseconds.
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " p50=" + (getPercentile(50) / 1000) + "us"
+                + " p99=" + (getPercentile(99) / 1000) + "us"
+                + " p99.9=" + (getPercentile(99.9) / 1000) + "us"
+                + " max=" + (getMax() / 1000) + "us";
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The bucket of a duration.
+     */
+    static int index(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The smallest duration in a bucket.
+     */
+    static long lowest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = (index / SUB_BUCKETS) + SUB_BITS - 1;
+        if (exp > 62) {
+            return Long.MAX_VALUE;
+        }
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        long tmp = max.get();
+        while ((nanos > tmp) && !max.compareAndSet(tmp, nanos)) {
+            tmp = max.get();
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+package com.comfortanalytics.alog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads log records from files written in the binary format, and a command line tool that
+ * prints binary logs, including zipped backups, as text or JSON.
+ * <p>
+ * Usage: java -cp alog.jar com.comfortanalytics.alog.LogDecoder [-json] [-backups] file...
+ * <ul>
+ * <li>-json prints JSON lines rather than the default text format.
+ * <li>-backups also prints the zipped backups of each file, oldest first, before the file
+ * itself.
+ * </ul>
+ * Corrupt frames are skipped: when a frame fails its checksum, has a length the writer would
+ * never use, or runs past the end of the stream, decoding resumes at the next byte that
+ * begins a valid frame.  A truncated frame at the end of a file, such as one being written
+ * when the process died, is skipped the same way, which ends the stream.
+ *
+ * @author Aaron Hansen
+ */
+public class LogDecoder {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * How far back the stream must be able to reset to resync after a corrupt frame: the
+     * longest payload, its varint length and its checksum.
+     */
+    private static final int MAX_MARK = BinaryWriter.MAX_FRAME + 14;
+
+    private int corrupt;
+    private final CRC32 crc = new CRC32();
+    private Map<Integer, String> dictionary = new HashMap<Integer, String>();
+    private DataInputStream in;
+    private long lastMillis;
+    private byte[] payload = new byte[1024];
+    private int payloadLength;
+    private int pos;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the file header from the stream.
+     *
+     * @throws IOException If the stream doesn't begin with the binary log header.
+     */
+    public LogDecoder(InputStream in) throws IOException {
+        this(in, true);
+    }
+
+    /**
+     * Use a false header argument to decode a range that begins at a session, such as those
+     * returned by LogIndex.  If the range happens to begin with the file header, it will
+     * still be consumed.
+     *
+     * @param in     The binary log.
+     * @param header If true, the stream must begin with the file header.
+     * @throws IOException If the header is required and missing.
+     */
+    public LogDecoder(InputStream in, boolean header) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        this.in = new DataInputStream(in);
+        byte[] magic = new byte[BinaryWriter.MAGIC.length + 1];
+        in.mark(magic.length);
+        int len = 0;
+        while (len < magic.length) {
+            int count = in.read(magic, len, magic.length - len);
+            if (count < 0) {
+                break;
+            }
+            len += count;
+        }
+        boolean valid = (len == magic.length);
+        for (int i = 0; valid && (i < BinaryWriter.MAGIC.length); i++) {
+            valid = magic[i] == BinaryWriter.MAGIC[i];
+        }
+        if (valid) {
+            if (magic[BinaryWriter.MAGIC.length] != BinaryWriter.VERSION) {
+                throw new IOException(
+                        "Unsupported binary log version: " + magic[BinaryWriter.MAGIC.length]);
+            }
+        } else if (header) {
+            throw new IOException("Not a binary log");
+        } else {
+            in.reset();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Closes the underlying stream.
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * The number of corrupt frames that were skipped, consecutive corrupt bytes count once.
+     */
+    public int getCorruptFrames() {
+        return corrupt;
+    }
+
+    /**
+     * Prints the given files, see the class documentation for the arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean json = false;
+        boolean backups = false;
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(System.out, 65536), false, "UTF-8");
+        int files = 0;
+        for (String arg : args) {
+            if (arg.equals("-json")) {
+                json = true;
+            } else if (arg.equals("-backups")) {
+                backups = true;
+            } else {
+                File file = new File(arg);
+                if (backups) {
+                    for (File backup : FileLogHandler.getBackups(file)) {
+                        print(backup, json, out);
+                    }
+                }
+                if (file.exists()) {
+                    print(file, json, out);
+                }
+                files++;
+            }
+        }
+        out.flush();
+        if (files == 0) {
+            System.err.println(
+                    "Usage: java com.comfortanalytics.alog.LogDecoder [-json] [-backups] file...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints every record in a binary log file or a zipped backup of one.
+     *
+     * @param file A binary log, or a zip file containing binary logs.
+     * @param json True for JSON lines, false for the text format.
+     * @param out  Where to print.
+     */
+    public static void print(File file, boolean json, PrintStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".zip")) {
+                ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in));
+                in = zip;
+                ZipEntry entry = zip.getNextEntry();
+                while (entry != null) {
+                    //backups can contain an index, a bloom filter and the log split into blocks
+                    if (!FileLogHandler.isSidecar(entry.getName())) {
+                        print(new LogDecoder(zip, false), json, out);
+                    }
+                    entry = zip.getNextEntry();
+                }
+            } else {
+                print(new LogDecoder(in), json, out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the next record, or null at the end of the stream.
+     */
+    public LogRecord read() throws IOException {
+        while (nextFrame()) {
+            int type = payload[pos++];
+            switch (type) {
+                case BinaryWriter.FRAME_SESSION:
+                    dictionary.clear();
+                    lastMillis = readVarint();
+                    break;
+                case BinaryWriter.FRAME_DICT:
+                    int id = (int) readVarint();
+                    dictionary.put(id, readRef());
+                    break;
+                case BinaryWriter.FRAME_RECORD:
+                    return readRecord();
+                default:
+                    corrupt++;
+            }
+        }
+        return null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static void print(LogDecoder decoder, boolean json, PrintStream out)
+            throws IOException {
+        StringBuilder buf = new StringBuilder();
+        Calendar calendar = Calendar.getInstance();
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        LogRecord record = decoder.read();
+        while (record != null) {
+            if (json) {
+                JsonWriter.format(record, buf, calendar, renderer);
+            } else {
+                Utils.format(record, buf, calendar, renderer);
+            }
+            out.print(buf);
+            buf.setLength(0);
+            record = decoder.read();
+        }
+    }
+
+    /**
+     * Reads the next valid frame into the payload buffer, skipping corrupt bytes.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean nextFrame() throws IOException {
+        boolean resync = false;
+        while (true) {
+            in.mark(MAX_MARK);
+            int result = readFrame();
+            if (result > 0) {
+                return true;
+            }
+            if (result < 0) {
+                return false;
+            }
+            if (!resync) {
+                resync = true;
+                corrupt++;
+            }
+            //try again one byte after the start of the bad frame
+            in.reset();
+            in.read();
+        }
+    }
+
+    /**
+     * Reads a frame into the payload buffer.
+     *
+     * @return 1 if it's valid, 0 if it's corrupt or truncated, or -1 at the end of the stream.
+     */
+    private int readFrame() throws IOException {
+        long len;
+        try {
+            len = readStreamVarint();
+        } catch (EOFException x) {
+            return -1;
+        }
+        if ((len < 1) || (len > BinaryWriter.MAX_FRAME)) {
+            return 0;
+        }
+        payloadLength = (int) len;
+        try {
+            //checked before reading the rest, so scanning for a frame is cheap
+            int type = in.readUnsignedByte();
+            if (type > BinaryWriter.FRAME_RECORD) {
+                return 0;
+            }
+            if (payload.length < payloadLength) {
+                payload = new byte[Math.max(payloadLength, payload.length * 2)];
+            }
+            payload[0] = (byte) type;
+            in.readFully(payload, 1, payloadLength - 1);
+            int check = in.readInt();
+            crc.reset();
+            crc.update(payload, 0, payloadLength);
+            pos = 0;
+            return check == (int) crc.getValue() ? 1 : 0;
+        } catch (EOFException x) {
+            return 0;
+        }
+    }
+
+    private Level readLevel() {
+        int idx = payload[pos++];
+        if ((idx > 0) && (idx < BinaryWriter.LEVELS.length)) {
+            return BinaryWriter.LEVELS[idx];
+        }
+        int val = (int) readSigned();
+        String name = readRef();
+        try {
+            return Level.parse(name);
+        } catch (Exception x) {
+            return Level.parse(String.valueOf(val));
+        }
+    }
+
+    private Object readParam() {
+        switch (payload[pos++]) {
+            case BinaryWriter.TYPE_STRING:
+                return readRef();
+            case BinaryWriter.TYPE_INT:
+                return (int) readSigned();
+            case BinaryWriter.TYPE_LONG:
+                return readSigned();
+            case BinaryWriter.TYPE_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (payload[pos++] & 0xFF);
+                }
+                return Double.longBitsToDouble(bits);
+            case BinaryWriter.TYPE_FLOAT:
+                return Float.intBitsToFloat((int) readSigned());
+            case BinaryWriter.TYPE_BOOLEAN:
+                return payload[pos++] != 0;
+            case BinaryWriter.TYPE_CHAR:
+                return (char) readVarint();
+            case BinaryWriter.TYPE_BYTE:
+                return payload[pos++];
+            case BinaryWriter.TYPE_SHORT:
+                return (short) readSigned();
+            case BinaryWriter.TYPE_DATE:
+                return new Date(readSigned());
+            default:
+                return null;
+        }
+    }
+
+    private LogRecord readRecord() {
+        lastMillis += readSigned();
+        Level level = readLevel();
+        LogRecord record = new LogRecord(level, null);
+        record.setMillis(lastMillis);
+        record.setLoggerName(readRef());
+        record.setSourceClassName(readRef());
+        record.setSourceMethodName(readRef());
+        record.setThreadID((int) readVarint());
+        record.setMessage(readRef());
+        int count = (int) readVarint();
+        if (count > 0) {
+            Object[] params = new Object[count];
+            for (int i = 0; i < count; i++) {
+                params[i] = readParam();
+            }
+            record.setParameters(params);
+        }
+        record.setThrown(readThrown());
+        return record;
+    }
+
+    private String readRef() {
+        long ref = readVarint();
+        if (ref == 0) {
+            return null;
+        }
+        if ((ref & 1) == 1) {
+            return dictionary.get((int) (ref >>> 1));
+        }
+        int len = (int) (ref >>> 1) - 1;
+        String ret;
+        try {
+            ret = new String(payload, pos, len, "UTF-8");
+        } catch (IOException x) {
+            throw new IllegalStateException(x.getMessage());
+        }
+        pos += len;
+        return ret;
+    }
+
+    private long readSigned() {
+        long val = readVarint();
+        return (val >>> 1) ^ -(val & 1);
+    }
+
+    /**
+     * Reads a varint from the frame directly from the stream.
+     */
+    private long readStreamVarint() throws IOException {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            ret |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        return -1;
+    }
+
+    private Throwable readThrown() {
+        int count = (int) readVarint();
+        Decoded first = null;
+        Decoded last = null;
+        for (int i = 0; i < count; i++) {
+            Decoded t = new Decoded(readRef(), readRef());
+            StackTraceElement[] trace = new StackTraceElement[(int) readVarint()];
+            for (int j = 0; j < trace.length; j++) {
+                String cls = readRef();
+                String method = readRef();
+                String file = readRef();
+                trace[j] = new StackTraceElement(cls, method, file, (int) readSigned());
+            }
+            t.setStackTrace(trace);
+            if (first == null) {
+                first = t;
+            } else {
+                last.initCause(t);
+            }
+            last = t;
+        }
+        return first;
+    }
+
+    private long readVarint() {
+        long ret = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = payload[pos++];
+            ret |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Stands in for a throwable that was logged, it reports the original class name.
+     */
+    static class Decoded extends Throwable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String className;
+
+        Decoded(String className, String message) {
+            super(message);
+            this.className = className;
+        }
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+
+        String getClassName() {
+            return className;
+        }
+
+        @Override
+        public String toString() {
+            String msg = getLocalizedMessage();
+            return (msg != null) ? (className + ": " + msg) : className;
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.comfortanalytics.alog;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * What AlogLogger enqueues in place of a LogRecord.  It holds an optional parameter as a
+ * primitive so the caller doesn't box it, the record is built by the write thread.
+ *
+ * @author Aaron Hansen
+ */
+class LogEntry {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    static final int NONE = 0;
+    static final int OBJECT = 1;
+    static final int BOOLEAN = 2;
+    static final int INT = 3;
+    static final int LONG = 4;
+    static final int DOUBLE = 5;
+
+    final Level level;
+    final String loggerName;
+    final String message;
+    final long millis;
+    final Object object;
+    final long primitive;
+    final int threadId;
+    final Throwable thrown;
+    final int type;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param primitive Boolean, int and long values as longs, doubles as their raw bits.
+     */
+    LogEntry(Level level, String loggerName, String message, int type, Object object,
+             long primitive, Throwable thrown) {
+        this.level = level;
+        this.loggerName = loggerName;
+        this.message = message;
+        this.millis = System.currentTimeMillis();
+        this.object = object;
+        this.primitive = primitive;
+        this.threadId = (int) Thread.currentThread().getId();
+        this.thrown = thrown;
+        this.type = type;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The estimated heap retained while queued.
+     */
+    int estimateSize() {
+        int ret = AsyncLogHandler.estimateSize(message, null, thrown);
+        if (object instanceof String) {
+            ret += 40 + 2 * ((String) object).length();
+        }
+        return ret;
+    }
+
+    /**
+     * True if the message or a string parameter is longer than the given number of chars.
+     */
+    boolean isLongerThan(int max) {
+        if ((message != null) && (message.length() > max)) {
+            return true;
+        }
+        return (object instanceof String) && (((String) object).length() > max);
+    }
+
+    /**
+     * False if the parameter is an object that could change before the write thread formats
+     * it.
+     */
+    boolean isImmutable() {
+        if ((type != OBJECT) || (object == null)) {
+            return true;
+        }
+        return (object instanceof String)
+                || (object instanceof Integer)
+                || (object instanceof Double)
+                || (object instanceof Float)
+                || (object instanceof Long)
+                || (object instanceof Short)
+                || (object instanceof Byte)
+                || (object instanceof Boolean)
+                || (object instanceof Character)
+                || (object instanceof Enum);
+    }
+
+    /**
+     * A new record with the same contents.  The source class and method are inferred from the
+     * caller of AlogLogger the first time they are requested, so this must be called on the
+     * logging thread if they are needed.
+     */
+    LogRecord toRecord() {
+        LogRecord ret = new CallerRecord(level, message);
+        ret.setLoggerName(loggerName);
+        ret.setMillis(millis);
+        ret.setThreadID(threadId);
+        ret.setThrown(thrown);
+        switch (type) {
+            case OBJECT:
+                ret.setParameters(new Object[]{object});
+                break;
+            case BOOLEAN:
+                ret.setParameters(new Object[]{primitive != 0});
+                break;
+            case INT:
+                ret.setParameters(new Object[]{(int) primitive});
+                break;
+            case LONG:
+                ret.setParameters(new Object[]{primitive});
+                break;
+            case DOUBLE:
+                ret.setParameters(new Object[]{Double.longBitsToDouble(primitive)});
+                break;
+        }
+        return ret;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The JDK infers the caller as the first frame after java.util.logging.Logger, which
+     * would be AlogLogger.  This infers the first frame after AlogLogger instead.
+     */
+    private static class CallerRecord extends LogRecord {
+
+        private static final long serialVersionUID = 1L;
+
+        private boolean inferred;
+
+        CallerRecord(Level level, String msg) {
+            super(level, msg);
+        }
+
+        @Override
+        public String getSourceClassName() {
+            if (!inferred) {
+                inferCaller();
+            }
+            return super.getSourceClassName();
+        }
+
+        @Override
+        public String getSourceMethodName() {
+            if (!inferred) {
+                inferCaller();
+            }
+            return super.getSourceMethodName();
+        }
+
+        @Override
+        public void setSourceClassName(String sourceClassName) {
+            inferred = true;
+            super.setSourceClassName(sourceClassName);
+        }
+
+        @Override
+        public void setSourceMethodName(String sourceMethodName) {
+            inferred = true;
+            super.setSourceMethodName(sourceMethodName);
+        }
+
+        private void inferCaller() {
+            inferred = true;
+            String facade = AlogLogger.class.getName();
+            boolean found = false;
+            for (StackTraceElement elem : new Throwable().getStackTrace()) {
+                if (elem.getClassName().equals(facade)) {
+                    found = true;
+                } else if (found) {
+                    super.setSourceClassName(elem.getClassName());
+                    super.setSourceMethodName(elem.getMethodName());
+                    return;
+                }
+            }
+            //not on the logging thread, prevent the jdk from walking the stack as well
+            super.setSourceClassName(null);
+            super.setSourceMethodName(null);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.comfortanalytics.alog;
+
+import java.io.File;
+
+/**
+ * Hooks for Java Flight Recorder events.  This is the baseline implementation, which does
+ * nothing so the calls are removed by the compiler.  On Java 11 and later, the version in
+ * the multi-release section of the jar (src/main/java11) commits events whenever they are
+ * enabled in a recording.
+ * <p>
+ * The begin methods return an event to be passed to the matching end method, or null if
+ * the event isn't enabled.
+ *
+ * @author Aaron Hansen
+ */
+class LogEvents {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private LogEvents() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Called by the write thread before the first record written since the last flush.
+     */
+    static Object beginBatch() {
+        return null;
+    }
+
+    /**
+     * Called by the write thread before compressing a log file into a backup.
+     */
+    static Object beginCompress() {
+        return null;
+    }
+
+    /**
+     * Called by the write thread before rolling a log file over.
+     */
+    static Object beginRollover() {
+        return null;
+    }
+
+    /**
+     * A record was dropped, the handler provides the reason with dropReason.
+     *
+     * @param bytes The estimated size of the record, or zero if unknown.
+     */
+    static void drop(AsyncLogHandler handler, int level, int bytes) {
+    }
+
+    /**
+     * Called by the write thread after a flush.
+     *
+     * @param records The number of records written since the last flush.
+     * @param bytes   The bytes, or characters, written since the last flush.
+     */
+    static void endBatch(Object event, AsyncLogHandler handler, int records, long bytes) {
+    }
+
+    /**
+     * @param bytes      The size of the log file.
+     * @param compressed The size of the backup.
+     */
+    static void endCompress(Object event, File file, long bytes, long compressed) {
+    }
+
+    /**
+     * @param bytes The size of the log file that was rolled over.
+     */
+    static void endRollover(Object event, File file, long bytes) {
+    }
+
+    /**
+     * A record was queued, implementations may sample these.
+     *
+     * @param depth The number of records queued after this one was added.
+     */
+    static void publish(AsyncLogHandler handler, int level, int depth) {
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.comfortanalytics.alog;
+
+/**
+ * The built in layouts for log records.  A Formatter set on a handler takes precedence over
+ * the format.
+ *
+ * @author Aaron Hansen
+ */
+public enum LogFormat {
+
+    /**
+     * A compact binary format, only supported by the FileLogHandler, other handlers will use
+     * TEXT instead.  Use LogDecoder to convert binary logs and their backups to text or JSON.
+     */
+    BINARY,
+
+    /**
+     * One JSON object per line, with the fields ts, level, logger, class, method, thread, seq,
+     * msg and exception.  Fields without values are omitted.  Seq is the order in which the
+     * handler received the record.
+     */
+    JSON,
+
+    /**
+     * The default Alog format: [timestamp] LEVEL - class - method - logger - message.
+     */
+    TEXT;
+
+    /**
+     * Case insensitive parse of the name, returns the default if the value is null or
+     * unknown.
+     */
+    static LogFormat parse(String val, LogFormat defaultValue) {
+        if (val != null) {
+            val = val.trim();
+            for (LogFormat format : values()) {
+                if (format.name().equalsIgnoreCase(val)) {
+                    return format;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+}
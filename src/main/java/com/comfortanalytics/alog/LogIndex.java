@@ -0,0 +1,552 @@
+package com.comfortanalytics.alog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A sparse time index of a log file, used to read a time range without scanning everything.
+ * <p>
+ * When a FileLogHandler has an index interval, it maintains a sidecar file next to the
+ * active log (the log name plus ".idx").  The sidecar is a sequence of 16 byte entries: the
+ * timestamp of a record and the byte offset in the log where that record begins.  Entries
+ * are added every index interval bytes, or every second, whichever comes first.  Timestamps
+ * never decrease, each is the max of all timestamps seen so far.
+ * <p>
+ * Backups of indexed logs store the log as a series of compressed blocks (the log name plus
+ * a block number) that each start on an index entry, plus the index itself.  Reading a range
+ * from a backup only inflates the blocks that contain the range.
+ * <p>
+ * Ranges are approximate, they begin and end on index entries, so callers should filter
+ * records by their timestamps.  When the binary format is indexed, every index entry starts
+ * a new session, so each range can be decoded with new LogDecoder(in, false).
+ *
+ * @author Aaron Hansen
+ */
+public class LogIndex {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The approximate uncompressed size of each block in an indexed backup.
+     */
+    static int BLOCK_SIZE = 1024 * 1024;
+    static final String EXTENSION = ".idx";
+    static final long INDEX_MILLIS = 1000;
+
+    private File file;
+    private long lastMillis = Long.MIN_VALUE;
+    private long lastOffset = -1;
+    private long maxMillis = Long.MIN_VALUE;
+    private DataOutputStream out;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * For writing the index of the given log file.
+     */
+    LogIndex(File log) {
+        this.file = indexFile(log);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the backups and active log that may contain records in the time range, oldest
+     * first.  Files without an index are always included.
+     *
+     * @param log  The active log file.
+     * @param from Inclusive start time in millis.
+     * @param to   Inclusive end time in millis.
+     */
+    public static File[] find(File log, long from, long to) throws IOException {
+        List<File> all = new ArrayList<File>();
+        Collections.addAll(all, FileLogHandler.getBackups(log));
+        if (log.exists()) {
+            all.add(log);
+        }
+        List<File> ret = new ArrayList<File>();
+        long[] first = new long[all.size()];
+        for (int i = 0; i < first.length; i++) {
+            long[][] entries = readEntries(all.get(i));
+            first[i] = ((entries == null) || (entries[0].length == 0))
+                    ? Long.MIN_VALUE : entries[0][0];
+        }
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] > to) {
+                continue;
+            }
+            if (((i + 1) < first.length) && (first[i + 1] != Long.MIN_VALUE)
+                    && (first[i + 1] < from)) {
+                continue;
+            }
+            ret.add(all.get(i));
+        }
+        return ret.toArray(new File[ret.size()]);
+    }
+
+    /**
+     * Returns the bytes of a single log, or zipped backup, that may contain records in the
+     * time range.  If the file has no index, the entire log is returned.
+     *
+     * @param file An active log or a zip backup.
+     * @param from Inclusive start time in millis.
+     * @param to   Inclusive end time in millis.
+     */
+    public static InputStream open(File file, long from, long to) throws IOException {
+        if (file.getName().endsWith(".zip")) {
+            return openZip(file, from, to);
+        }
+        long start = 0;
+        long end = Long.MAX_VALUE;
+        File idx = indexFile(file);
+        if (idx.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(idx, "r");
+            try {
+                long count = raf.length() / 16;
+                long i = search(raf, count, from);
+                if (i >= 0) {
+                    raf.seek(i * 16 + 8);
+                    start = raf.readLong();
+                }
+                i = search(raf, count, after(to)) + 1;
+                if (i < count) {
+                    raf.seek(i * 16 + 8);
+                    end = raf.readLong();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        InputStream in = new FileInputStream(file);
+        skipFully(in, start);
+        return new Limit(new BufferedInputStream(in), end - start);
+    }
+
+    /**
+     * Concatenates open() for every file returned by find().  Only use this with text
+     * formats, binary ranges should be decoded individually.
+     */
+    public static InputStream read(File log, long from, long to) throws IOException {
+        List<InputStream> list = new ArrayList<InputStream>();
+        for (File f : find(log, from, to)) {
+            list.add(open(f, from, to));
+        }
+        return new SequenceInputStream(Collections.enumeration(list));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds an entry if the interval has passed since the last.  Must be called by the write
+     * thread before writing each record, even those that won't get an entry, so the entry
+     * timestamps are the max of every record before them.
+     *
+     * @param millis   Timestamp of the record about to be written.
+     * @param offset   Where the record will begin in the log.
+     * @param interval Bytes between entries.
+     * @return True if an entry was added.
+     */
+    boolean update(long millis, long offset, int interval) throws IOException {
+        if (millis > maxMillis) {
+            maxMillis = millis;
+        } else {
+            millis = maxMillis;
+        }
+        if (lastOffset >= 0) {
+            if (offset <= lastOffset) {
+                return false;
+            }
+            if (((offset - lastOffset) < interval) && ((millis - lastMillis) < INDEX_MILLIS)) {
+                return false;
+            }
+        }
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true), 1024));
+        }
+        out.writeLong(millis);
+        out.writeLong(offset);
+        lastMillis = millis;
+        lastOffset = offset;
+        return true;
+    }
+
+    void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException x) {
+                AlogException.throwRuntime(x);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the sidecar, the next entry will start a new one.
+     */
+    void delete() {
+        close();
+        file.delete();
+        lastMillis = Long.MIN_VALUE;
+        lastOffset = -1;
+        maxMillis = Long.MIN_VALUE;
+    }
+
+    void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException x) {
+                AlogException.throwRuntime(x);
+            }
+        }
+    }
+
+    /**
+     * The sidecar for the given log.
+     */
+    static File indexFile(File log) {
+        return new File(log.getAbsoluteFile().getParentFile(), log.getName() + EXTENSION);
+    }
+
+    /**
+     * Writes the log into the zip as blocks that start on index entries, followed by the
+     * index.  Any existing sidecar is closed and should be deleted by the caller.
+     */
+    void zip(File log, ZipOutputStream zip) throws IOException {
+        close();
+        long[][] entries = readEntries(log);
+        long[] offsets = entries[1];
+        List<Long> starts = new ArrayList<Long>();
+        starts.add(0L);
+        long blockStart = 0;
+        for (long offset : offsets) {
+            if ((offset - blockStart) >= BLOCK_SIZE) {
+                starts.add(offset);
+                blockStart = offset;
+            }
+        }
+        InputStream in = new FileInputStream(log);
+        try {
+            byte[] buf = new byte[8192];
+            for (int i = 0, len = starts.size(); i < len; i++) {
+                zip.putNextEntry(new ZipEntry(blockName(log.getName(), i)));
+                long remaining = (i + 1) < len
+                        ? starts.get(i + 1) - starts.get(i) : Long.MAX_VALUE;
+                while (remaining > 0) {
+                    int count = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (count < 0) {
+                        break;
+                    }
+                    zip.write(buf, 0, count);
+                    remaining -= count;
+                }
+                zip.closeEntry();
+            }
+        } finally {
+            in.close();
+        }
+        zip.putNextEntry(new ZipEntry(log.getName() + EXTENSION));
+        DataOutputStream out = new DataOutputStream(zip);
+        out.writeInt(starts.size());
+        for (Long start : starts) {
+            out.writeLong(start);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            out.writeLong(entries[0][i]);
+            out.writeLong(offsets[i]);
+        }
+        out.flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * The next millisecond, so inclusive end times can use search.
+     */
+    private static long after(long millis) {
+        return millis == Long.MAX_VALUE ? millis : millis + 1;
+    }
+
+    private static String blockName(String log, int block) {
+        StringBuilder buf = new StringBuilder(log).append('.');
+        if (block < 1000) {
+            buf.append('0');
+        }
+        if (block < 100) {
+            buf.append('0');
+        }
+        if (block < 10) {
+            buf.append('0');
+        }
+        return buf.append(block).toString();
+    }
+
+    /**
+     * Index of the last entry whose timestamp is less than the given time, or -1.
+     */
+    private static int search(long[] times, long millis) {
+        int lo = 0;
+        int hi = times.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * Same as the other search, but reads entries directly from the sidecar.
+     */
+    private static long search(RandomAccessFile raf, long count, long millis) throws IOException {
+        long lo = 0;
+        long hi = count - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            raf.seek(mid * 16);
+            if (raf.readLong() < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    private static InputStream openZip(File file, long from, long to) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        String log = null;
+        ZipEntry idx = null;
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+            ZipEntry entry = e.nextElement();
+            if (entry.getName().endsWith(EXTENSION)) {
+                idx = entry;
+                log = entry.getName().substring(0, entry.getName().length() - EXTENSION.length());
+                break;
+            }
+        }
+        if (idx == null) {
+            //not indexed, return everything
+            List<InputStream> list = new ArrayList<InputStream>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries();
+                 e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!FileLogHandler.isSidecar(entry.getName())) {
+                    list.add(zip.getInputStream(entry));
+                }
+            }
+            return new ZipStream(zip, new SequenceInputStream(Collections.enumeration(list)));
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(zip.getInputStream(idx)));
+        long[] starts = new long[in.readInt()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = in.readLong();
+        }
+        long[][] entries = read(in);
+        in.close();
+        long start = 0;
+        long end = Long.MAX_VALUE;
+        int i = search(entries[0], from);
+        if (i >= 0) {
+            start = entries[1][i];
+        }
+        i = search(entries[0], after(to)) + 1;
+        if (i < entries[0].length) {
+            end = entries[1][i];
+        }
+        int block = 0;
+        while (((block + 1) < starts.length) && (starts[block + 1] <= start)) {
+            block++;
+        }
+        List<InputStream> list = new ArrayList<InputStream>();
+        for (int b = block; (b < starts.length) && (starts[b] < end); b++) {
+            ZipEntry entry = zip.getEntry(blockName(log, b));
+            if (entry != null) {
+                list.add(zip.getInputStream(entry));
+            }
+        }
+        InputStream ret = new SequenceInputStream(Collections.enumeration(list));
+        skipFully(ret, start - starts[block]);
+        return new ZipStream(zip, new Limit(ret, end - start));
+    }
+
+    private static long[][] read(DataInputStream in) throws IOException {
+        List<long[]> list = new ArrayList<long[]>();
+        while (true) {
+            try {
+                list.add(new long[]{in.readLong(), in.readLong()});
+            } catch (EOFException x) {
+                break;
+            }
+        }
+        long[][] ret = new long[2][list.size()];
+        for (int i = 0; i < ret[0].length; i++) {
+            ret[0][i] = list.get(i)[0];
+            ret[1][i] = list.get(i)[1];
+        }
+        return ret;
+    }
+
+    /**
+     * Timestamps in the first array, offsets in the second.  Reads the sidecar of a log, or
+     * the index inside a backup.  Returns null for zips without an index.
+     */
+    static long[][] readEntries(File file) throws IOException {
+        if (file.getName().endsWith(".zip")) {
+            ZipFile zip = new ZipFile(file);
+            try {
+                for (Enumeration<? extends ZipEntry> e = zip.entries();
+                     e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.getName().endsWith(EXTENSION)) {
+                        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(zip.getInputStream(entry)));
+                        for (int i = in.readInt(); --i >= 0; ) {
+                            in.readLong();
+                        }
+                        return read(in);
+                    }
+                }
+                return null;
+            } finally {
+                zip.close();
+            }
+        }
+        File idx = indexFile(file);
+        if (!idx.exists()) {
+            return new long[2][0];
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(idx)));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Limits the number of bytes read from the inner stream.
+     */
+    private static class Limit extends FilterInputStream {
+
+        private long remaining;
+
+        Limit(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int ret = super.read();
+            if (ret >= 0) {
+                remaining--;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int ret = super.read(b, off, (int) Math.min(len, remaining));
+            if (ret > 0) {
+                remaining -= ret;
+            }
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(Math.min(n, remaining));
+            remaining -= ret;
+            return ret;
+        }
+    }
+
+    /**
+     * Closes the zip file when the stream is closed.
+     */
+    private static class ZipStream extends FilterInputStream {
+
+        private ZipFile zip;
+
+        ZipStream(ZipFile zip, InputStream in) {
+            super(in);
+            this.zip = zip;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+}
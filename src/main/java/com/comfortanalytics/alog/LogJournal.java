@@ -0,0 +1,319 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A memory mapped ring of records that have been queued but not yet flushed to the log, so
+ * they survive the death of the process.  The operating system owns the pages of the
+ * mapping, so they are written to the file even after a crash or kill -9.
+ * <p>
+ * The file (the log name plus ".journal") is a 24 byte header followed by the ring.  The
+ * header is a magic number, an unused int, and the logical start and end of the uncommitted
+ * entries.  Each entry is its payload length, the sequence number of the record, and the
+ * payload.  An entry that doesn't fit before the end of the ring is written at the
+ * beginning, and a length of -1 marks the skipped space when there is room for it.  When
+ * the ring is full, the oldest entries are overwritten.
+ * <p>
+ * Payloads are the time, level, thread id, logger name, formatted message and stack trace
+ * of a record.  Strings are an int length followed by UTF-8 bytes, and -1 means null.
+ *
+ * @author Aaron Hansen
+ */
+class LogJournal {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Class Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    static final String EXTENSION = ".journal";
+    private static final int ENTRY_HEADER = 12;
+    private static final int HEADER = 24;
+    private static final int MAGIC = 0x414c4a31;
+    private static final int WRAP = -1;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Instance Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private MappedByteBuffer buf;
+    private int capacity;
+    private long end;
+    private RandomAccessFile raf;
+    private long start;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new, empty journal, replacing any existing file.
+     *
+     * @param size Bytes in the ring.
+     */
+    LogJournal(File file, int size) throws IOException {
+        file.delete();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(HEADER + size);
+        capacity = size;
+        buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + size);
+        buf.putInt(0, MAGIC);
+        writeHeader();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds an encoded record to the ring, overwriting the oldest entries if necessary.
+     * Records larger than the ring are not journaled.
+     */
+    synchronized void append(byte[] payload, long sequence) {
+        if (buf == null) {
+            return;
+        }
+        int size = ENTRY_HEADER + payload.length;
+        if (size > capacity) {
+            return;
+        }
+        int pos = position(end);
+        int remaining = HEADER + capacity - pos;
+        if (size > remaining) {
+            //the entry goes at the beginning, after skipping the rest of the ring
+            while ((start < end) && ((capacity - (end - start)) < (remaining + size))) {
+                skip();
+            }
+            if (start == end) {
+                //empty, just start the next lap
+                end += remaining;
+                start = end;
+            } else {
+                if (remaining >= 4) {
+                    buf.putInt(pos, WRAP);
+                }
+                end += remaining;
+            }
+            pos = HEADER;
+        } else {
+            while ((capacity - (end - start)) < size) {
+                skip();
+            }
+        }
+        buf.putInt(pos, payload.length);
+        buf.putLong(pos + 4, sequence);
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos + ENTRY_HEADER);
+        dup.put(payload);
+        end += size;
+        writeHeader();
+    }
+
+    synchronized void close() {
+        if (raf == null) {
+            return;
+        }
+        try {
+            buf.force();
+            raf.close();
+        } catch (IOException x) {
+            Alog.rootLogger().log(Level.FINE, "Closing journal", x);
+        }
+        raf = null;
+        buf = null;
+    }
+
+    /**
+     * True if there are uncommitted entries.
+     */
+    synchronized boolean hasEntries() {
+        return start < end;
+    }
+
+    /**
+     * Removes entries whose sequence is less than or equal to the given, once their records
+     * have been flushed to the log.
+     */
+    synchronized void commit(long sequence) {
+        if (buf == null) {
+            return;
+        }
+        boolean changed = false;
+        while (start < end) {
+            int pos = position(start);
+            int remaining = HEADER + capacity - pos;
+            if ((remaining < 4) || (buf.getInt(pos) == WRAP)) {
+                start += remaining;
+            } else if (buf.getLong(pos + 4) <= sequence) {
+                start += ENTRY_HEADER + buf.getInt(pos);
+            } else {
+                break;
+            }
+            changed = true;
+        }
+        if (changed) {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Encodes the record for the journal, called by the publishing thread.
+     */
+    static byte[] encode(LogRecord record) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(record.getMillis());
+            out.writeInt(record.getLevel().intValue());
+            out.writeInt(record.getThreadID());
+            writeString(record.getLoggerName(), out);
+            writeString(Utils.formatMessage(record), out);
+            Throwable thrown = record.getThrown();
+            if (thrown == null) {
+                writeString(null, out);
+            } else {
+                StringWriter trace = new StringWriter();
+                thrown.printStackTrace(new PrintWriter(trace));
+                writeString(trace.toString(), out);
+            }
+            return bytes.toByteArray();
+        } catch (IOException x) {
+            throw new IllegalStateException(x.toString());
+        }
+    }
+
+    static File journalFile(File log) {
+        return new File(log.getPath() + EXTENSION);
+    }
+
+    /**
+     * The uncommitted records of an existing journal, in the order they were published.
+     * Their messages are prefixed with "(recovered) ", and stack traces are appended to the
+     * message.  Returns an empty list if the file doesn't exist or isn't a journal.
+     */
+    static List<LogRecord> recover(File file) throws IOException {
+        List<LogRecord> ret = new ArrayList<LogRecord>();
+        if (!file.exists() || (file.length() <= HEADER)) {
+            return ret;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (buf.getInt(0) != MAGIC) {
+                return ret;
+            }
+            int capacity = bytes.length - HEADER;
+            long start = buf.getLong(8);
+            long end = buf.getLong(16);
+            if ((start < 0) || (end < start) || ((end - start) > capacity)) {
+                return ret;
+            }
+            while (start < end) {
+                int pos = HEADER + (int) (start % capacity);
+                int remaining = HEADER + capacity - pos;
+                int len = remaining < 4 ? WRAP : buf.getInt(pos);
+                if (len == WRAP) {
+                    start += remaining;
+                    continue;
+                }
+                if ((len < 0) || ((ENTRY_HEADER + len) > remaining)) {
+                    break;
+                }
+                buf.position(pos + ENTRY_HEADER);
+                ret.add(decode(buf));
+                start += ENTRY_HEADER + len;
+            }
+        } catch (RuntimeException x) {
+            //keep what was recovered before the damage
+            Alog.rootLogger().log(Level.FINE, "Damaged journal: " + file, x);
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    private static LogRecord decode(ByteBuffer buf) {
+        long millis = buf.getLong();
+        Level level = Level.parse(String.valueOf(buf.getInt()));
+        int thread = buf.getInt();
+        String logger = readString(buf);
+        String msg = readString(buf);
+        String trace = readString(buf);
+        StringBuilder text = new StringBuilder("(recovered) ");
+        if (msg != null) {
+            text.append(msg);
+        }
+        if (trace != null) {
+            text.append(Utils.LINE_SEPARATOR).append(trace);
+        }
+        LogRecord ret = new LogRecord(level, text.toString());
+        ret.setMillis(millis);
+        ret.setLoggerName(logger);
+        ret.setThreadID(thread);
+        return ret;
+    }
+
+    /**
+     * The position in the buffer of a logical offset.
+     */
+    private int position(long offset) {
+        return HEADER + (int) (offset % capacity);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException x) {
+            throw new IllegalStateException(x.toString());
+        }
+    }
+
+    /**
+     * Drops the oldest entry, or the skipped space at the end of the ring.
+     */
+    private void skip() {
+        int pos = position(start);
+        int remaining = HEADER + capacity - pos;
+        if ((remaining < 4) || (buf.getInt(pos) == WRAP)) {
+            start += remaining;
+        } else {
+            start += ENTRY_HEADER + buf.getInt(pos);
+        }
+    }
+
+    private void writeHeader() {
+        buf.putLong(8, start);
+        buf.putLong(16, end);
+    }
+
+    private static void writeString(String str, DataOutputStream out) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,291 @@
+package com.comfortanalytics.alog;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads the shards of a ShardedLogHandler back as a single log, ordered by sequence number,
+ * and a command line tool that prints them.
+ * <p>
+ * Usage: java -cp alog.jar com.comfortanalytics.alog.LogMerge [-backups] file
+ * <ul>
+ * <li>file is the base name of the shards, such as app.log for app.log.0, app.log.1 and so
+ * on.
+ * <li>-backups also merges the zipped backups of each shard, which must then all be present
+ * for the output to be complete.  Backups that were trimmed leave gaps in the sequence.
+ * </ul>
+ * Each shard is read in order and only its next line is held in memory, so shards of any
+ * size can be merged.  A line without a sequence number, such as one written before the
+ * file was a shard, is kept after the line that preceded it in its shard.
+ *
+ * @author Aaron Hansen
+ */
+public class LogMerge {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final String SEQ = ",\"seq\":";
+
+    private final PriorityQueue<Shard> heads = new PriorityQueue<Shard>();
+    private final List<Shard> shards = new ArrayList<Shard>();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param log     The base name of the shards.
+     * @param backups True to also merge the zipped backups of each shard.
+     */
+    public LogMerge(File log, boolean backups) throws IOException {
+        for (int i = 0; ; i++) {
+            File file = ShardedLogHandler.shardFile(log, i);
+            File[] tmp = new File[0];
+            if (backups) {
+                tmp = FileLogHandler.getBackups(file);
+            }
+            if (!file.exists() && (tmp.length == 0)) {
+                break;
+            }
+            List<File> files = new ArrayList<File>();
+            for (File backup : tmp) {
+                files.add(backup);
+            }
+            if (tmp.length > 1) {
+                //names of backups made in the same millisecond don't sort by age
+                sortBySequence(files);
+            }
+            if (file.exists()) {
+                files.add(file);
+            }
+            Shard shard = new Shard(i, files);
+            shards.add(shard);
+            if (shard.next()) {
+                heads.add(shard);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Closes any open shards.
+     */
+    public void close() throws IOException {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        heads.clear();
+    }
+
+    /**
+     * The number of shards found.
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Prints the merged shards, see the class documentation for the arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean backups = false;
+        File log = null;
+        for (String arg : args) {
+            if (arg.equals("-backups")) {
+                backups = true;
+            } else {
+                log = new File(arg);
+            }
+        }
+        if (log == null) {
+            System.err.println("Usage: java com.comfortanalytics.alog.LogMerge [-backups] file");
+            System.exit(1);
+        }
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(System.out, 65536), false, "UTF-8");
+        merge(log, backups, out);
+        out.flush();
+    }
+
+    /**
+     * Prints the shards of the log as a single log.
+     *
+     * @param log     The base name of the shards.
+     * @param backups True to also merge the zipped backups of each shard.
+     * @param out     Where to print.
+     * @return The number of lines printed.
+     */
+    public static long merge(File log, boolean backups, PrintStream out) throws IOException {
+        long count = 0;
+        LogMerge merge = new LogMerge(log, backups);
+        try {
+            String line = merge.readLine();
+            while (line != null) {
+                out.print(line);
+                out.print(Utils.LINE_SEPARATOR);
+                count++;
+                line = merge.readLine();
+            }
+        } finally {
+            merge.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the line with the lowest sequence number of all shards, or null when every
+     * shard has been read.  The line separator isn't included.
+     */
+    public String readLine() throws IOException {
+        Shard shard = heads.poll();
+        if (shard == null) {
+            return null;
+        }
+        String ret = shard.line;
+        if (shard.next()) {
+            heads.add(shard);
+        }
+        return ret;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The sequence number of the first line in the file, or -1 if it doesn't have one.
+     */
+    private static long firstSequence(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                LogIndex.open(file, Long.MIN_VALUE, Long.MAX_VALUE), "UTF-8"));
+        try {
+            String line = in.readLine();
+            return line == null ? -1 : parseSequence(line);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The seq field of a JSON line, or -1 if it doesn't have one.  Quotes in strings are
+     * escaped, so the first match is always the field.
+     */
+    static long parseSequence(String line) {
+        int idx = line.indexOf(SEQ);
+        if (idx < 0) {
+            return -1;
+        }
+        long ret = 0;
+        boolean digits = false;
+        for (int i = idx + SEQ.length(), len = line.length(); i < len; i++) {
+            char ch = line.charAt(i);
+            if ((ch < '0') || (ch > '9')) {
+                break;
+            }
+            ret = ret * 10 + (ch - '0');
+            digits = true;
+        }
+        return digits ? ret : -1;
+    }
+
+    /**
+     * Sorts files by the sequence number of their first line.
+     */
+    private static void sortBySequence(List<File> files) throws IOException {
+        final HashMap<File, Long> first = new HashMap<File, Long>();
+        for (File file : files) {
+            first.put(file, firstSequence(file));
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = first.get(a);
+                long y = first.get(b);
+                if (x != y) {
+                    return x < y ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the files of a single shard, oldest first.
+     */
+    private static class Shard implements Comparable<Shard> {
+
+        private final List<File> files;
+        private int fileIndex;
+        private final int id;
+        private BufferedReader in;
+        private String line;
+        private long sequence = -1;
+
+        Shard(int id, List<File> files) {
+            this.id = id;
+            this.files = files;
+        }
+
+        public int compareTo(Shard other) {
+            if (sequence != other.sequence) {
+                return sequence < other.sequence ? -1 : 1;
+            }
+            return id - other.id;
+        }
+
+        void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+            fileIndex = files.size();
+        }
+
+        /**
+         * Reads the next line, opening the next file as needed.  Returns false when there
+         * are no more.
+         */
+        boolean next() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (fileIndex >= files.size()) {
+                        line = null;
+                        return false;
+                    }
+                    File file = files.get(fileIndex++);
+                    in = new BufferedReader(new InputStreamReader(
+                            LogIndex.open(file, Long.MIN_VALUE, Long.MAX_VALUE), "UTF-8"));
+                }
+                line = in.readLine();
+                if (line != null) {
+                    long seq = parseSequence(line);
+                    if (seq >= 0) {
+                        sequence = seq;
+                    }
+                    return true;
+                }
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+}
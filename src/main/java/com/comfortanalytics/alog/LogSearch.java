@@ -0,0 +1,188 @@
+package com.comfortanalytics.alog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.LogRecord;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds log records containing a token, using the bloom filters stored in backups to skip
+ * those that can't contain it.
+ * <p>
+ * When a FileLogHandler has bloom filters enabled, it adds the logger name of every record,
+ * and any tokens matched by the bloom tokens pattern, to a filter for the current file.  When
+ * the file is backed up, the filter is stored in the zip.  Backups without a filter, such as
+ * those of a file that was appended to by an earlier process, are always searched.
+ * <p>
+ * Usage: java -cp alog.jar com.comfortanalytics.alog.LogSearch token file
+ * <p>
+ * Prints every line (or decoded binary record) of the file and its backups that contains the
+ * token.
+ *
+ * @author Aaron Hansen
+ */
+public class LogSearch {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    static final String EXTENSION = ".bloom";
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private LogSearch() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the backups, oldest first, and the active log that may contain the token.  The
+     * active log is always included if it exists.
+     *
+     * @param log   The active log file.
+     * @param token A logger name, or a token matched by the bloom tokens pattern.
+     */
+    public static File[] find(File log, String token) throws IOException {
+        List<File> ret = new ArrayList<File>();
+        for (File backup : FileLogHandler.getBackups(log)) {
+            BloomFilter filter = readFilter(backup);
+            if ((filter == null) || filter.mightContain(token)) {
+                ret.add(backup);
+            }
+        }
+        if (log.exists()) {
+            ret.add(log);
+        }
+        return ret.toArray(new File[ret.size()]);
+    }
+
+    /**
+     * Prints the records containing a token, see the class documentation for the arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: java com.comfortanalytics.alog.LogSearch token file");
+            System.exit(1);
+        }
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(System.out, 65536), false, "UTF-8");
+        search(new File(args[1]), args[0], out);
+        out.flush();
+    }
+
+    /**
+     * Prints the lines of text logs, or the records of binary logs, that contain the token.
+     *
+     * @param log   The active log file.
+     * @param token The string to search for.
+     * @param out   Where to print matches.
+     * @return The number of matches.
+     */
+    public static int search(File log, String token, PrintStream out) throws IOException {
+        int count = 0;
+        for (File file : find(log, token)) {
+            InputStream in = new BufferedInputStream(
+                    LogIndex.open(file, Long.MIN_VALUE, Long.MAX_VALUE));
+            try {
+                if (isBinary(in)) {
+                    count += searchBinary(in, token, out);
+                } else {
+                    count += searchText(in, token, out);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return count;
+    }
+
+    private static boolean isBinary(InputStream in) throws IOException {
+        byte[] magic = BinaryWriter.MAGIC;
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * The filter stored in a backup, or null.
+     */
+    static BloomFilter readFilter(File backup) throws IOException {
+        ZipFile zip = new ZipFile(backup);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (entry.getName().endsWith(EXTENSION)) {
+                    InputStream in = new BufferedInputStream(zip.getInputStream(entry));
+                    try {
+                        return BloomFilter.read(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static int searchBinary(InputStream in, String token, PrintStream out)
+            throws IOException {
+        int count = 0;
+        LogDecoder decoder = new LogDecoder(in, false);
+        StringBuilder buf = new StringBuilder();
+        Calendar calendar = Calendar.getInstance();
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        LogRecord record = decoder.read();
+        while (record != null) {
+            Utils.format(record, buf, calendar, renderer);
+            if (buf.indexOf(token) >= 0) {
+                out.print(buf);
+                count++;
+            }
+            buf.setLength(0);
+            record = decoder.read();
+        }
+        return count;
+    }
+
+    private static int searchText(InputStream in, String token, PrintStream out)
+            throws IOException {
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.contains(token)) {
+                out.println(line);
+                count++;
+            }
+            line = reader.readLine();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.comfortanalytics.alog;
+
+import java.util.logging.LogRecord;
+
+/**
+ * A destination of a FanOutLogHandler.  The fan out handler formats each record once and
+ * writes the same bytes to every sink that accepts the record.
+ *
+ * @author Aaron Hansen
+ */
+public interface LogSink {
+
+    /**
+     * Called when the fan out handler is closed.
+     */
+    public void close();
+
+    public void flush();
+
+    /**
+     * Whether the sink wants the record, such as by its level.
+     */
+    public boolean isLoggable(LogRecord record);
+
+    /**
+     * Writes an already formatted record, called only by the write thread of the fan out
+     * handler.
+     *
+     * @param record The record that was formatted.
+     * @param buf    The encoded record, terminated with the line separator.
+     * @param len    The number of bytes in the buffer to write.
+     */
+    public void write(LogRecord record, byte[] buf, int len);
+
+}
@@ -0,0 +1,257 @@
+package com.comfortanalytics.alog;
+
+import java.math.BigInteger;
+import java.text.DecimalFormatSymbols;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A message pattern parsed once and cached, so applying parameters doesn't re-parse it for
+ * every record.
+ * <p>
+ * Patterns containing a brace followed by a digit, such as {0}, use the MessageFormat style
+ * like the java.util.logging Formatter, all others use the String.format style.  Only the
+ * simple forms are compiled: %s, %d, %% and %n, or {n} without a format type.  Anything else,
+ * or parameters the simple forms can't reproduce exactly, falls back to String.format or
+ * MessageFormat.
+ *
+ * @author Aaron Hansen
+ */
+class MessageTemplate {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The cache is cleared when it grows past this, it should only be reached when patterns
+     * are built dynamically.
+     */
+    static int MAX_TEMPLATES = 1024;
+
+    private static final boolean ASCII_DIGITS = new DecimalFormatSymbols().getZeroDigit() == '0';
+    private static final ConcurrentHashMap<String, MessageTemplate> cache =
+            new ConcurrentHashMap<String, MessageTemplate>();
+    private static final ThreadLocal<NumberFormat> numberFormat = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+            return NumberFormat.getInstance();
+        }
+    };
+
+    private int[] args;
+    private boolean braces;
+    private char[] conversions;
+    private String[] literals;
+    private final String pattern;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private MessageTemplate(String pattern) {
+        this.pattern = pattern;
+        braces = isBraceStyle(pattern);
+        if (braces) {
+            compileBraces();
+        } else {
+            compilePrintf();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the message with the parameters applied.
+     */
+    String format(Object[] params) {
+        if ((literals != null) && (args.length == 0)) {
+            return literals[0];
+        }
+        StringBuilder buf = new StringBuilder(pattern.length() + 16 * params.length);
+        format(params, buf);
+        return buf.toString();
+    }
+
+    /**
+     * Appends the message with the parameters applied.
+     */
+    void format(Object[] params, StringBuilder buf) {
+        if ((literals == null) || !isSupported(params)) {
+            buf.append(fallback(params));
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            buf.append(literals[i]);
+            int idx = args[i];
+            if (idx >= params.length) {
+                //MessageFormat leaves missing arguments as is
+                buf.append('{').append(idx).append('}');
+                continue;
+            }
+            Object param = params[idx];
+            if (param == null) {
+                buf.append("null");
+            } else if (param instanceof String) {
+                buf.append((String) param);
+            } else if (braces && (param instanceof Number)) {
+                buf.append(numberFormat.get().format(param));
+            } else {
+                buf.append(param.toString());
+            }
+        }
+        buf.append(literals[args.length]);
+    }
+
+    /**
+     * Returns the cached template for the pattern, compiling it if necessary.
+     */
+    static MessageTemplate get(String pattern) {
+        MessageTemplate ret = cache.get(pattern);
+        if (ret == null) {
+            ret = new MessageTemplate(pattern);
+            if (cache.size() >= MAX_TEMPLATES) {
+                cache.clear();
+            }
+            cache.put(pattern, ret);
+        }
+        return ret;
+    }
+
+    private void compileBraces() {
+        List<String> lits = new ArrayList<String>();
+        List<Integer> idxs = new ArrayList<Integer>();
+        StringBuilder buf = new StringBuilder();
+        int len = pattern.length();
+        for (int i = 0; i < len; i++) {
+            char ch = pattern.charAt(i);
+            if ((ch == '\'') || (ch == '}')) {
+                return; //quoting and unbalanced braces are left to MessageFormat
+            } else if (ch == '{') {
+                int end = pattern.indexOf('}', i);
+                if ((end < 0) || (end == (i + 1)) || (end - i > 10)) {
+                    return;
+                }
+                int idx = 0;
+                for (int j = i + 1; j < end; j++) {
+                    char digit = pattern.charAt(j);
+                    if ((digit < '0') || (digit > '9')) {
+                        return; //format types and styles
+                    }
+                    idx = idx * 10 + (digit - '0');
+                }
+                lits.add(buf.toString());
+                buf.setLength(0);
+                idxs.add(idx);
+                i = end;
+            } else {
+                buf.append(ch);
+            }
+        }
+        lits.add(buf.toString());
+        finish(lits, idxs, null);
+    }
+
+    private void compilePrintf() {
+        List<String> lits = new ArrayList<String>();
+        List<Integer> idxs = new ArrayList<Integer>();
+        StringBuilder convs = new StringBuilder();
+        StringBuilder buf = new StringBuilder();
+        int len = pattern.length();
+        int next = 0;
+        for (int i = 0; i < len; i++) {
+            char ch = pattern.charAt(i);
+            if (ch != '%') {
+                buf.append(ch);
+                continue;
+            }
+            if (++i == len) {
+                return;
+            }
+            ch = pattern.charAt(i);
+            if (ch == '%') {
+                buf.append('%');
+            } else if (ch == 'n') {
+                buf.append(Utils.LINE_SEPARATOR);
+            } else if ((ch == 's') || ((ch == 'd') && ASCII_DIGITS)) {
+                lits.add(buf.toString());
+                buf.setLength(0);
+                idxs.add(next++);
+                convs.append(ch);
+            } else {
+                return; //flags, widths, indexes and other conversions
+            }
+        }
+        lits.add(buf.toString());
+        finish(lits, idxs, convs.toString().toCharArray());
+    }
+
+    private String fallback(Object[] params) {
+        if (braces) {
+            return MessageFormat.format(pattern, params);
+        }
+        return String.format(pattern, params);
+    }
+
+    private void finish(List<String> lits, List<Integer> idxs, char[] convs) {
+        args = new int[idxs.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = idxs.get(i);
+        }
+        conversions = convs;
+        literals = lits.toArray(new String[lits.size()]);
+    }
+
+    private static boolean isBraceStyle(String pattern) {
+        int idx = pattern.indexOf('{');
+        while ((idx >= 0) && (idx < pattern.length() - 1)) {
+            char ch = pattern.charAt(idx + 1);
+            if ((ch >= '0') && (ch <= '9')) {
+                return true;
+            }
+            idx = pattern.indexOf('{', idx + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Whether the compiled form produces exactly what String.format or MessageFormat would.
+     */
+    private boolean isSupported(Object[] params) {
+        if (braces) {
+            for (int idx : args) {
+                if ((idx < params.length) && (params[idx] instanceof Date)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (args.length > params.length) {
+            return false; //String.format throws
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object param = params[i];
+            if (param instanceof Formattable) {
+                return false;
+            }
+            if ((conversions[i] == 'd') && (param != null)) {
+                if (!((param instanceof Integer)
+                        || (param instanceof Long)
+                        || (param instanceof Short)
+                        || (param instanceof Byte)
+                        || (param instanceof BigInteger))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
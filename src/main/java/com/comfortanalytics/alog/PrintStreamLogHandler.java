@@ -1,26 +1,39 @@
 package com.comfortanalytics.alog;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Calendar;
-import java.util.logging.Formatter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.LogRecord;
 
 /**
- * Async log handler for writing to streams such as System.out.
+ * Async log handler for writing to streams such as System.out.  Formatted records are
+ * buffered as characters, so the stream encodes them with its own charset, and the buffer is
+ * printed in a single call when it fills or the write thread flushes.  Records from a fan out
+ * handler are decoded with the encoding of the fan out handler and printed as characters as
+ * well, so they are also encoded with the charset of the stream.
+ * <p>
+ * Use getHandler to share a single handler, and therefore a single write thread, among all
+ * the loggers that print to the same stream.
  *
  * @author Aaron Hansen
  */
-public class PrintStreamLogHandler extends AsyncLogHandler {
+public class PrintStreamLogHandler extends AsyncLogHandler implements LogSink {
 
-    private StringBuilder builder;
-    private Calendar calendar;
+    private static final ConcurrentHashMap<PrintStream, PrintStreamLogHandler> allHandlers =
+            new ConcurrentHashMap<PrintStream, PrintStreamLogHandler>();
+    private AsyncLogHandler fanOut;
     private String name;
     private PrintStream out;
+    private final StringBuilder pending = new StringBuilder();
 
+    /**
+     * Writes to System.out.
+     */
     public PrintStreamLogHandler() {
         this.name = "Async Log Handler";
         configure();
-        this.out = out;
+        this.out = System.out;
         start();
     }
 
@@ -33,33 +46,115 @@ public class PrintStreamLogHandler extends AsyncLogHandler {
 
     @Override
     public void close() {
+        PrintStream tmp = out;
         super.close();
         out = null;
+        if (tmp != null) {
+            allHandlers.remove(tmp, this);
+        }
     }
 
+    /**
+     * Prints any buffered records, then flushes the stream.
+     */
     @Override
     public void flush() {
-        if (out != null) {
-            out.flush();
+        PrintStream tmp = out;
+        if (tmp != null) {
+            synchronized (pending) {
+                drain(tmp);
+            }
+            tmp.flush();
         }
     }
 
+    /**
+     * Will return an existing handler for the given stream, or create a new one.  Streams are
+     * compared by identity.
+     */
+    public static PrintStreamLogHandler getHandler(PrintStream out) {
+        PrintStreamLogHandler handler = allHandlers.get(out);
+        if (handler != null) {
+            return handler;
+        }
+        synchronized (allHandlers) {
+            handler = allHandlers.get(out);
+            if (handler == null) {
+                String name = "Async PrintStream Logger";
+                if (out == System.out) {
+                    name = "Async System.out Logger";
+                } else if (out == System.err) {
+                    name = "Async System.err Logger";
+                }
+                handler = new PrintStreamLogHandler(name, out);
+                allHandlers.put(out, handler);
+            }
+        }
+        return handler;
+    }
+
     @Override
     protected String getThreadName() {
         return name;
     }
 
-    protected void write(LogRecord record) {
-        Formatter formatter = getFormatter();
-        if (formatter != null) {
-            out.println(formatter.format(record));
+    /**
+     * Writes a record formatted by a FanOutLogHandler, does nothing once closed.
+     */
+    public void write(LogRecord record, byte[] buf, int len) {
+        PrintStream tmp = out;
+        if (tmp == null) {
             return;
         }
-        if (builder == null) {
-            builder = new StringBuilder();
-            calendar = Calendar.getInstance();
+        AsyncLogHandler fan = fanOut;
+        String encoding = (fan == null) ? null : fan.getEncoding();
+        if (encoding == null) {
+            encoding = Charset.defaultCharset().name();
+        }
+        String str;
+        try {
+            str = new String(buf, 0, len, encoding);
+        } catch (IOException x) {
+            //the fan out handler just encoded with it
+            throw new IllegalStateException(x.getMessage());
+        }
+        synchronized (pending) {
+            drain(tmp);
+            tmp.print(str);
+        }
+    }
+
+    protected void write(LogRecord record) {
+        StringBuilder buf = format(record);
+        int size = getBufferSize();
+        if (size <= 0) {
+            out.print(buf);
+        } else {
+            synchronized (pending) {
+                pending.append(buf);
+                if (pending.length() >= size) {
+                    drain(out);
+                }
+            }
+        }
+        addUnflushed(buf.length());
+    }
+
+    /**
+     * The fan out handler whose encoding the records it writes are decoded with.
+     */
+    void setFanOut(AsyncLogHandler fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Prints and clears the buffer, called with its lock held.
+     */
+    private void drain(PrintStream out) {
+        if (pending.length() > 0) {
+            out.print(pending);
+            pending.setLength(0);
         }
-        Utils.write(record, out, builder, calendar);
     }
 
 }
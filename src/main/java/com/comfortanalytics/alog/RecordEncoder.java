@@ -0,0 +1,63 @@
+package com.comfortanalytics.alog;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes formatted records into a reusable byte buffer, for handlers that write the same
+ * bytes to one or more sinks.  Only used by a single write thread.
+ *
+ * @author Aaron Hansen
+ */
+class RecordEncoder {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private ByteBuffer bytes;
+    private CharsetEncoder encoder;
+    private String encoderCharset;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The bytes of the last encoding.
+     */
+    byte[] array() {
+        return bytes.array();
+    }
+
+    /**
+     * Encodes the chars into the reusable byte buffer.
+     *
+     * @param charset Null for the platform charset.
+     * @return The number of bytes.
+     */
+    int encode(CharSequence chars, String charset) {
+        if (charset == null) {
+            charset = Charset.defaultCharset().name();
+        }
+        if ((encoder == null) || !charset.equals(encoderCharset)) {
+            encoder = Charset.forName(charset).newEncoder()
+                             .onMalformedInput(CodingErrorAction.REPLACE)
+                             .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoderCharset = charset;
+        }
+        int max = (int) Math.ceil(chars.length() * (double) encoder.maxBytesPerChar());
+        if ((bytes == null) || (bytes.capacity() < max)) {
+            bytes = ByteBuffer.allocate(Math.max(max, 1024));
+        }
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(chars), bytes, true);
+        encoder.flush(bytes);
+        return bytes.position();
+    }
+
+}
@@ -0,0 +1,454 @@
+package com.comfortanalytics.alog;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * One queue and write thread for many log files, such as one per tenant or subsystem.  The
+ * file of each record is chosen by a key, which is either a logger name prefix or a record
+ * parameter, and named after the key in the route directory.  Keys are sanitized, so any
+ * character other than a letter, digit, dash, dot or underscore becomes an underscore.
+ * Records without a key go to default.log.
+ * <p>
+ * Only the most recently written files are kept open.  When more than the max open files are
+ * needed, the least recently written is closed, and files that haven't been written for the
+ * idle timeout are closed as well.  A closed file is reopened for appending by its next
+ * record, so thousands of destinations only cost a single thread and the max open files
+ * worth of descriptors.  Each file is backed up and trimmed like a FileLogHandler, using the
+ * backup threshold and max backups of this handler.
+ * <p>
+ * Records are formatted and encoded once, by this handler.  When routing by parameter, the
+ * key is taken on the publishing thread, before the message can be formatted early because
+ * of an unfamiliar parameter type or a max message size.  The trace cache is disabled, since
+ * it would be shared by all the files and a trace id could refer to a trace printed in
+ * another file.  The binary format isn't supported.
+ *
+ * @author Aaron Hansen
+ */
+public class RoutingLogHandler extends AsyncLogHandler {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The key of records that don't have one.
+     */
+    static final String DEFAULT_KEY = "default";
+    /**
+     * Millis after which a file that hasn't been written is closed; 1 minute by default.
+     */
+    static int DEFAULT_IDLE_TIMEOUT = 60000;
+    /**
+     * The number of files that can be open at once; 100 by default.
+     */
+    static int DEFAULT_MAX_OPEN_FILES = 100;
+
+    private int backupThreshold = DEFAULT_BACKUP_THRESHOLD;
+    private File directory;
+    private final RecordEncoder encoder = new RecordEncoder();
+    private final LinkedHashMap<String, Route> files;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long lastIdleCheck;
+    private int maxBackups = DEFAULT_MAX_BACKUPS;
+    private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    private String name;
+    private int routeDepth = 0;
+    private int routeParameter = -1;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Uses the configured route directory, logs by default.
+     */
+    public RoutingLogHandler() {
+        this("Routing Log Handler", null);
+    }
+
+    /**
+     * @param directory Where the files are written, if null the configured route directory
+     *                  is used.
+     */
+    public RoutingLogHandler(String name, File directory) {
+        this.name = name;
+        //access order, so the eldest entry is the least recently written
+        files = new LinkedHashMap<String, Route>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+                if (size() > maxOpenFiles) {
+                    eldest.getValue().file.closeFile();
+                    return true;
+                }
+                return false;
+            }
+        };
+        configure();
+        if (directory != null) {
+            this.directory = directory;
+        }
+        start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Waits for the queue to drain, then closes all open files.
+     * <p>
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        synchronized (files) {
+            for (Route route : files.values()) {
+                route.file.closeFile();
+            }
+            files.clear();
+        }
+    }
+
+    /**
+     * Flushes all open files.
+     */
+    @Override
+    public void flush() {
+        synchronized (files) {
+            for (Route route : files.values()) {
+                route.file.flush();
+            }
+        }
+    }
+
+    /**
+     * The approximate size after which a file is backed up.
+     */
+    public int getBackupThreshold() {
+        return backupThreshold;
+    }
+
+    /**
+     * Where the files are written.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Millis after which a file that hasn't been written is closed.
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * The number of backups kept for each file.
+     */
+    public int getMaxBackups() {
+        return maxBackups;
+    }
+
+    /**
+     * The number of files that can be open at once.
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * The number of logger name segments used as the key, zero means the entire logger name.
+     */
+    public int getRouteDepth() {
+        return routeDepth;
+    }
+
+    /**
+     * The index of the record parameter used as the key, or -1 to route by logger name.
+     */
+    public int getRouteParameter() {
+        return routeParameter;
+    }
+
+    /**
+     * The approximate size after which a file is backed up; only applies to files opened
+     * after this is called.
+     */
+    public RoutingLogHandler setBackupThreshold(int arg) {
+        backupThreshold = arg;
+        return this;
+    }
+
+    /**
+     * Where the files are written.  Should be set before any records are published.
+     */
+    public RoutingLogHandler setDirectory(File directory) {
+        if (directory == null) {
+            throw new NullPointerException("Null directory");
+        }
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * Millis after which a file that hasn't been written is closed, zero or less to only
+     * close files when the max open files is exceeded.
+     */
+    public RoutingLogHandler setIdleTimeout(int millis) {
+        idleTimeout = millis;
+        return this;
+    }
+
+    /**
+     * The number of backups kept for each file; only applies to files opened after this is
+     * called.
+     */
+    public RoutingLogHandler setMaxBackups(int arg) {
+        maxBackups = arg;
+        return this;
+    }
+
+    /**
+     * The number of files that can be open at once, must be at least one.
+     */
+    public RoutingLogHandler setMaxOpenFiles(int arg) {
+        if (arg < 1) {
+            throw new IllegalArgumentException("Max open files must be > 0");
+        }
+        maxOpenFiles = arg;
+        return this;
+    }
+
+    /**
+     * The number of logger name segments used as the key, zero means the entire logger name.
+     * For example, with a depth of 2, records of logger a.b.c are written to a.b.log.
+     */
+    public RoutingLogHandler setRouteDepth(int segments) {
+        routeDepth = segments;
+        return this;
+    }
+
+    /**
+     * The index of the record parameter used as the key, or -1 to route by logger name.
+     * For example, with an index of 0, the record "{0} logged in" with the parameter acme is
+     * written to acme.log.
+     */
+    public RoutingLogHandler setRouteParameter(int index) {
+        routeParameter = index;
+        return this;
+    }
+
+    /**
+     * Does nothing, the trace cache size is always zero, see the class documentation.
+     */
+    @Override
+    public RoutingLogHandler setTraceCacheSize(int size) {
+        super.setTraceCacheSize(0);
+        return this;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Protected Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void configure() {
+        super.configure();
+        LogManager manager = LogManager.getLogManager();
+        String prop = manager.getProperty(PROPERTY_BASE + ".backupThreshold");
+        setBackupThreshold(optInt(prop, DEFAULT_BACKUP_THRESHOLD));
+        try {
+            prop = manager.getProperty(PROPERTY_BASE + ".encoding");
+            setEncoding(optString(prop, "UTF-8"));
+        } catch (Exception x) {
+            try {
+                setEncoding(null);
+            } catch (Exception ignore) {
+            }
+        }
+        prop = manager.getProperty(PROPERTY_BASE + ".idleTimeout");
+        setIdleTimeout(optInt(prop, DEFAULT_IDLE_TIMEOUT));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxBackups");
+        setMaxBackups(optInt(prop, DEFAULT_MAX_BACKUPS));
+        prop = manager.getProperty(PROPERTY_BASE + ".maxOpenFiles");
+        setMaxOpenFiles(Math.max(optInt(prop, DEFAULT_MAX_OPEN_FILES), 1));
+        prop = manager.getProperty(PROPERTY_BASE + ".routeDepth");
+        setRouteDepth(optInt(prop, 0));
+        prop = manager.getProperty(PROPERTY_BASE + ".routeDirectory");
+        setDirectory(FileLogHandler.makeFile(optString(prop, "logs")));
+        prop = manager.getProperty(PROPERTY_BASE + ".routeParameter");
+        setRouteParameter(optInt(prop, -1));
+    }
+
+    @Override
+    protected String getThreadName() {
+        return name;
+    }
+
+    /**
+     * Closes idle files.
+     */
+    @Override
+    protected void houseKeeping() {
+        closeIdle();
+    }
+
+    @Override
+    protected void write(LogRecord record) {
+        Object queued = getWriteKey();
+        //keys that sanitize to the same name must share a file
+        String key = sanitize(queued != null ? (String) queued : getKey(record));
+        int len = encoder.encode(format(record), getEncoding());
+        synchronized (files) {
+            Route route = files.get(key);
+            if (route == null) {
+                if (!directory.exists()) {
+                    directory.mkdirs();
+                }
+                File file = new File(directory, key + ".log");
+                route = new Route(new FileLogHandler(file, this));
+                files.put(key, route);
+            }
+            route.lastWrite = System.currentTimeMillis();
+            route.file.write(record, encoder.array(), len);
+        }
+        addUnflushed(len);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Closes files that haven't been written for the idle timeout, checked at most once a
+     * second.
+     */
+    private void closeIdle() {
+        int timeout = idleTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if ((now - lastIdleCheck) < Math.min(timeout, 1000)) {
+            return;
+        }
+        lastIdleCheck = now;
+        synchronized (files) {
+            Iterator<Route> it = files.values().iterator();
+            while (it.hasNext()) {
+                Route route = it.next();
+                //least recently written first
+                if ((now - route.lastWrite) < timeout) {
+                    break;
+                }
+                route.file.closeFile();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The key of the record, or the default key if it doesn't have one.
+     */
+    String getKey(LogRecord record) {
+        String ret = null;
+        int param = routeParameter;
+        if (param >= 0) {
+            Object[] params = record.getParameters();
+            if ((params != null) && (param < params.length) && (params[param] != null)) {
+                ret = params[param].toString();
+            }
+        } else {
+            ret = record.getLoggerName();
+            int depth = routeDepth;
+            if ((ret != null) && (depth > 0)) {
+                int idx = -1;
+                while (depth-- > 0) {
+                    idx = ret.indexOf('.', idx + 1);
+                    if (idx < 0) {
+                        break;
+                    }
+                }
+                if (idx > 0) {
+                    ret = ret.substring(0, idx);
+                }
+            }
+        }
+        if ((ret == null) || (ret.length() == 0)) {
+            return DEFAULT_KEY;
+        }
+        return ret;
+    }
+
+    /**
+     * The number of files currently open.
+     */
+    int getOpenFiles() {
+        synchronized (files) {
+            return files.size();
+        }
+    }
+
+    /**
+     * Closes idle files while nothing is being written.
+     */
+    @Override
+    void idle() {
+        closeIdle();
+    }
+
+    /**
+     * Takes the key of records routed by parameter while the parameters are still there.
+     */
+    @Override
+    Object queueKey(LogRecord record) {
+        return routeParameter >= 0 ? getKey(record) : null;
+    }
+
+    /**
+     * Replaces any character other than a letter, digit, dash or underscore with an
+     * underscore.  Dots are also allowed, except for the first character.  Returns the key
+     * itself if nothing was replaced.
+     */
+    static String sanitize(String key) {
+        StringBuilder buf = null;
+        for (int i = 0, len = key.length(); i < len; i++) {
+            char ch = key.charAt(i);
+            boolean valid = ((ch >= 'a') && (ch <= 'z')) || ((ch >= 'A') && (ch <= 'Z'))
+                    || ((ch >= '0') && (ch <= '9')) || (ch == '-') || (ch == '_')
+                    //a leading dot would hide the file, or with a second leave the directory
+                    || ((ch == '.') && (i > 0));
+            if (buf != null) {
+                buf.append(valid ? ch : '_');
+            } else if (!valid) {
+                buf = new StringBuilder(len);
+                buf.append(key, 0, i).append('_');
+            }
+        }
+        return buf == null ? key : buf.toString();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * An open file and when it was last written.
+     */
+    private static class Route {
+
+        final FileLogHandler file;
+        long lastWrite;
+
+        Route(FileLogHandler file) {
+            this.file = file;
+        }
+    }
+
+}
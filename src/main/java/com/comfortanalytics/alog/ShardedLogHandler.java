@@ -0,0 +1,142 @@
+package com.comfortanalytics.alog;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Splits a log across several files, each with its own queue and write thread, for when a
+ * single write thread can't format records as fast as they are produced.  The shards of
+ * app.log are app.log.0, app.log.1 and so on, and each is a FileLogHandler that is backed up
+ * and trimmed on its own.
+ * <p>
+ * Every record of a publishing thread goes to the same shard, so the records of a thread
+ * remain in order.  Shards always use the JSON format, and their sequence numbers come from a
+ * counter shared by all shards, so every line carries a timestamp and a sequence number that
+ * is unique across the shards.  The priority lane of the shards is disabled, so each shard is
+ * written in sequence order.  Use LogMerge to read the shards back as a single log.  A
+ * configured formatter would remove the sequence numbers, so one should not be used.
+ * <p>
+ * Records below the level of this handler, or rejected by its filter, never reach a shard.
+ *
+ * @author Aaron Hansen
+ */
+public class ShardedLogHandler extends Handler {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The default number of shards; 4.
+     */
+    static int DEFAULT_SHARDS = 4;
+
+    private final File file;
+    private final AtomicLong sequence = new AtomicLong();
+    private final FileLogHandler[] shards;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Uses the configured filename and number of shards.
+     */
+    public ShardedLogHandler() {
+        this(null, 0);
+    }
+
+    /**
+     * @param file   The base name of the shards, if null the configured filename is used.
+     * @param shards The number of shards, if less than one the configured number is used.
+     */
+    public ShardedLogHandler(File file, int shards) {
+        LogManager manager = LogManager.getLogManager();
+        String prop = manager.getProperty(AsyncLogHandler.PROPERTY_BASE + ".level");
+        setLevel(AsyncLogHandler.optLevel(prop, Level.INFO));
+        prop = manager.getProperty(AsyncLogHandler.PROPERTY_BASE + ".filter");
+        setFilter(AsyncLogHandler.optFilter(prop, null));
+        if (file == null) {
+            prop = manager.getProperty(AsyncLogHandler.PROPERTY_BASE + ".filename");
+            file = FileLogHandler.makeFile(AsyncLogHandler.optString(prop, "java.log"));
+        }
+        if (shards < 1) {
+            prop = manager.getProperty(AsyncLogHandler.PROPERTY_BASE + ".shards");
+            shards = Math.max(AsyncLogHandler.optInt(prop, DEFAULT_SHARDS), 1);
+        }
+        this.file = file;
+        this.shards = new FileLogHandler[shards];
+        for (int i = 0; i < shards; i++) {
+            FileLogHandler shard = FileLogHandler.getHandler(shardFile(file, i));
+            shard.setFormat(LogFormat.JSON);
+            shard.setPriorityQueueSize(0);
+            shard.setSharedSequence(sequence);
+            //this handler does the filtering
+            shard.setLevel(Level.ALL);
+            this.shards[i] = shard;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Closes all shards, each waits for its queue to drain.
+     */
+    @Override
+    public void close() {
+        for (FileLogHandler shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (FileLogHandler shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * The base name of the shards.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * A copy of the shard handlers, ordered by shard number.
+     */
+    public FileLogHandler[] getShards() {
+        return shards.clone();
+    }
+
+    /**
+     * Queues the record in the shard of the calling thread.
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        FileLogHandler[] tmp = shards;
+        tmp[(int) (Thread.currentThread().getId() % tmp.length)].publish(record);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The file of a shard: the base name, a dot, then the shard number.
+     */
+    static File shardFile(File file, int shard) {
+        return new File(file.getPath() + '.' + shard);
+    }
+
+}
@@ -0,0 +1,360 @@
+package com.comfortanalytics.alog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders stack traces into a StringBuilder rather than through a PrintStream.  Supports
+ * limiting the number of frames printed for each throwable in a cause chain, folding runs of
+ * frames from uninteresting packages, and a cache of recently rendered traces so that repeats
+ * are referenced by a short id rather than printed again.
+ * <p>
+ * Instances are not thread safe, they are meant to be used by a single write thread.
+ *
+ * @author Aaron Hansen
+ */
+class ThrowableRenderer {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final String CAUSED_BY = "Caused by: ";
+    static final int MAX_CAUSES = 32;
+
+    private TraceCache cache;
+    private int cacheSize = 0;
+    private String[] foldPackages = new String[0];
+    private int maxDepth = 0;
+    private boolean repeat;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Forget all previously rendered traces, so the next occurrence of each will be printed in
+     * full.  Should be called whenever output moves to a new file.
+     */
+    void clear() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    String[] getFoldPackages() {
+        return foldPackages;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Whether or not the trace passed to the last call to lookup had already been rendered.
+     */
+    boolean isRepeat() {
+        return repeat;
+    }
+
+    /**
+     * If the trace cache is enabled, returns the id of the given trace, adding it to the cache
+     * if it isn't already there.  Use isRepeat() afterwards to determine whether or not the
+     * trace was already in the cache.
+     * <p>
+     * The id is the hash of the trace in hex.  If a different trace with the same hash is
+     * cached, a dash and a number unique to the cache are appended, so a reference can only
+     * refer to one trace.
+     *
+     * @return Null if the cache is disabled.
+     */
+    String lookup(Throwable thrown) {
+        repeat = false;
+        if (cacheSize <= 0) {
+            return null;
+        }
+        if (cache == null) {
+            cache = new TraceCache();
+        }
+        TraceKey key = new TraceKey(thrown);
+        String id = cache.get(key);
+        if (id != null) {
+            repeat = true;
+            return id;
+        }
+        id = Integer.toHexString(key.hash);
+        if (cache.ids.containsKey(id)) {
+            id = id + '-' + (++cache.collisions);
+        }
+        cache.put(key, id);
+        cache.ids.put(id, key);
+        return id;
+    }
+
+    /**
+     * Appends the throwable and its causes to the buffer, every line, including the last, is
+     * terminated with the line separator.
+     */
+    void render(Throwable thrown, StringBuilder buf) {
+        String id = lookup(thrown);
+        if (repeat) {
+            renderReference(thrown, id, buf);
+            return;
+        }
+        IdentityHashMap<Throwable, Throwable> seen = new IdentityHashMap<Throwable, Throwable>();
+        StackTraceElement[] enclosing = null;
+        Throwable t = thrown;
+        for (int i = 0; (t != null) && (i < MAX_CAUSES); i++) {
+            if (seen.put(t, t) != null) {
+                buf.append("[CIRCULAR REFERENCE: ").append(t).append(']')
+                   .append(Utils.LINE_SEPARATOR);
+                break;
+            }
+            if (enclosing != null) {
+                buf.append(CAUSED_BY);
+            }
+            buf.append(t);
+            if (id != null) {
+                buf.append(" [trace ").append(id).append(']');
+                id = null;
+            }
+            buf.append(Utils.LINE_SEPARATOR);
+            StackTraceElement[] trace = t.getStackTrace();
+            renderFrames(trace, enclosing, buf);
+            enclosing = trace;
+            t = t.getCause();
+        }
+    }
+
+    /**
+     * Trace caching is disabled by default (zero).
+     *
+     * @param size The number of distinct traces to remember, zero or less to disable.
+     */
+    void setCacheSize(int size) {
+        cacheSize = size;
+        if ((size <= 0) && (cache != null)) {
+            cache = null;
+        }
+    }
+
+    /**
+     * Runs of frames whose class name starts with any of these prefixes are collapsed into a
+     * single line.  The top frame of a trace is never folded.
+     */
+    void setFoldPackages(String... prefixes) {
+        if (prefixes == null) {
+            prefixes = new String[0];
+        }
+        foldPackages = prefixes;
+    }
+
+    /**
+     * The maximum number of frames to print for each throwable in the cause chain, zero or less
+     * for unlimited (the default).
+     */
+    void setMaxDepth(int depth) {
+        maxDepth = depth;
+    }
+
+    /**
+     * Parses a comma separated list of package prefixes.
+     */
+    static String[] parsePackages(String list) {
+        if (list == null) {
+            return new String[0];
+        }
+        String[] tmp = list.split(",");
+        int count = 0;
+        for (int i = 0; i < tmp.length; i++) {
+            tmp[i] = tmp[i].trim();
+            if (tmp[i].length() > 0) {
+                tmp[count++] = tmp[i];
+            }
+        }
+        String[] ret = new String[count];
+        System.arraycopy(tmp, 0, ret, 0, count);
+        return ret;
+    }
+
+    /**
+     * The class name of the throwable, or of the original throwable if it was decoded from a
+     * binary log.
+     */
+    static String className(Throwable thrown) {
+        if (thrown instanceof LogDecoder.Decoded) {
+            return ((LogDecoder.Decoded) thrown).getClassName();
+        }
+        return thrown.getClass().getName();
+    }
+
+    /**
+     * The number of frames at the bottom of the trace that are the same as the enclosing trace.
+     */
+    static int commonFrames(StackTraceElement[] trace, StackTraceElement[] enclosing) {
+        if (enclosing == null) {
+            return 0;
+        }
+        int t = trace.length - 1;
+        int e = enclosing.length - 1;
+        while ((t >= 0) && (e >= 0) && trace[t].equals(enclosing[e])) {
+            t--;
+            e--;
+        }
+        return trace.length - 1 - t;
+    }
+
+    /**
+     * True if the frame should be folded according to the fold packages.
+     */
+    boolean isFolded(StackTraceElement frame) {
+        String cls = frame.getClassName();
+        for (String prefix : foldPackages) {
+            if (cls.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Only prints the header line of each throwable in the chain.
+     */
+    private void renderReference(Throwable thrown, String id, StringBuilder buf) {
+        buf.append(thrown).append(" [same trace as ").append(id).append(']')
+           .append(Utils.LINE_SEPARATOR);
+        IdentityHashMap<Throwable, Throwable> seen = new IdentityHashMap<Throwable, Throwable>();
+        seen.put(thrown, thrown);
+        Throwable t = thrown.getCause();
+        for (int i = 1; (t != null) && (i < MAX_CAUSES); i++) {
+            if (seen.put(t, t) != null) {
+                break;
+            }
+            buf.append(CAUSED_BY).append(t).append(Utils.LINE_SEPARATOR);
+            t = t.getCause();
+        }
+    }
+
+    private void renderFrames(StackTraceElement[] trace,
+                              StackTraceElement[] enclosing,
+                              StringBuilder buf) {
+        //frames in common with the enclosing trace are not repeated, same as the JDK
+        int common = commonFrames(trace, enclosing);
+        int last = trace.length - 1 - common;
+        int printed = 0;
+        int folded = 0;
+        int i = 0;
+        for (; i <= last; i++) {
+            StackTraceElement frame = trace[i];
+            if ((i > 0) && (foldPackages.length > 0) && isFolded(frame)) {
+                folded++;
+                continue;
+            }
+            if (folded > 0) {
+                appendFolded(folded, buf);
+                folded = 0;
+            }
+            if ((maxDepth > 0) && (printed >= maxDepth)) {
+                break;
+            }
+            buf.append("\tat ").append(frame).append(Utils.LINE_SEPARATOR);
+            printed++;
+        }
+        if (folded > 0) {
+            appendFolded(folded, buf);
+        }
+        int remaining = (last - i + 1) + common;
+        if (remaining > 0) {
+            buf.append("\t... ").append(remaining).append(" more").append(Utils.LINE_SEPARATOR);
+        }
+    }
+
+    private static void appendFolded(int count, StringBuilder buf) {
+        buf.append("\t... ").append(count).append(" folded").append(Utils.LINE_SEPARATOR);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * LRU of trace keys to their short id, and the ids in use.
+     */
+    private class TraceCache extends LinkedHashMap<TraceKey, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        int collisions;
+        final HashMap<String, TraceKey> ids = new HashMap<String, TraceKey>();
+
+        TraceCache() {
+            super(16, .75f, true);
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            ids.clear();
+            collisions = 0;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TraceKey, String> eldest) {
+            if (size() > cacheSize) {
+                ids.remove(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Identifies a trace by the types and frames of the entire cause chain.  Messages are
+     * ignored, they are always printed.
+     */
+    private static class TraceKey {
+
+        private final Object[] parts;
+        private final int hash;
+
+        TraceKey(Throwable thrown) {
+            int count = 0;
+            for (Throwable t = thrown; (t != null) && (count < MAX_CAUSES); t = t.getCause()) {
+                count++;
+                if (t.getCause() == t) {
+                    break;
+                }
+            }
+            parts = new Object[count * 2];
+            Throwable t = thrown;
+            for (int i = 0; i < count; i++) {
+                parts[i * 2] = t.getClass();
+                parts[i * 2 + 1] = t.getStackTrace();
+                t = t.getCause();
+            }
+            hash = Arrays.deepHashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TraceKey)) {
+                return false;
+            }
+            TraceKey key = (TraceKey) obj;
+            return (hash == key.hash) && Arrays.deepEquals(parts, key.parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.comfortanalytics.alog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size space-saving sketch of the keys, such as logger names or message templates,
+ * that account for the most log volume.  At most capacity keys are tracked.  When a new key
+ * arrives and the sketch is full, it replaces the key with the fewest bytes and inherits
+ * those bytes as its error, so the bytes of a key are never under counted and over counted
+ * by at most its error.  Any key with more than total bytes / capacity is guaranteed to be
+ * present.
+ * <p>
+ * Records and drops are counted from the time a key entered the sketch.  Drops don't add to
+ * the bytes of a key, since they were never written, so no key has more bytes than the total.
+ * Instead they are weighed separately by the length of the dropped message.
+ * <p>
+ * Drops are counted by publishing threads, which never wait on the sketch for them.  The
+ * totals are updated right away, but a drop is only attributed to its key by the next thread
+ * to record or read the entries, normally the write thread.  If more than a few hundred drops
+ * arrive in the meantime, the oldest are only counted in the totals.
+ *
+ * @author Aaron Hansen
+ */
+public class TopTalkers {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The number of drops that can wait to be attributed to their keys; 256.
+     */
+    static int PENDING_DROPS = 256;
+
+    private final int capacity;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private final AtomicReferenceArray<Drop> pending =
+            new AtomicReferenceArray<Drop>(PENDING_DROPS);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger pendingNext = new AtomicInteger();
+    private long totalBytes;
+    private final AtomicLong totalDroppedBytes = new AtomicLong();
+    private final AtomicLong totalDrops = new AtomicLong();
+    private long totalRecords;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    TopTalkers(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The maximum number of keys tracked.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies of the entries with the most bytes, most first.
+     *
+     * @param max The maximum number of entries to return.
+     */
+    public synchronized List<Entry> getTop(int max) {
+        attributeDrops();
+        List<Entry> ret = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            ret.add(entry.copy());
+        }
+        Collections.sort(ret, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.bytes != b.bytes) {
+                    return a.bytes > b.bytes ? -1 : 1;
+                }
+                return a.key.compareTo(b.key);
+            }
+        });
+        if (ret.size() > max) {
+            return new ArrayList<Entry>(ret.subList(0, max));
+        }
+        return ret;
+    }
+
+    /**
+     * Bytes written for all keys, including those no longer tracked.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Message lengths of the drops for all keys, including those no longer tracked.
+     */
+    public long getTotalDroppedBytes() {
+        return totalDroppedBytes.get();
+    }
+
+    /**
+     * Drops for all keys, including those no longer tracked.
+     */
+    public long getTotalDrops() {
+        return totalDrops.get();
+    }
+
+    /**
+     * Records written for all keys, including those no longer tracked.
+     */
+    public synchronized long getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * Forgets all keys and totals.
+     */
+    public synchronized void reset() {
+        entries.clear();
+        for (int i = 0, len = pending.length(); i < len; i++) {
+            if (pending.getAndSet(i, null) != null) {
+                pendingCount.decrementAndGet();
+            }
+        }
+        totalBytes = 0;
+        totalDroppedBytes.set(0);
+        totalDrops.set(0);
+        totalRecords = 0;
+    }
+
+    /**
+     * One line per entry, most bytes first.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (Entry entry : getTop(capacity)) {
+            if (buf.length() > 0) {
+                buf.append(Utils.LINE_SEPARATOR);
+            }
+            buf.append(entry);
+        }
+        return buf.toString();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Counts a drop without taking the lock of the sketch, see the class documentation.
+     */
+    void drop(String key, int bytes) {
+        totalDrops.incrementAndGet();
+        totalDroppedBytes.addAndGet(bytes);
+        int slot = (pendingNext.getAndIncrement() & Integer.MAX_VALUE) % pending.length();
+        //an overwritten drop is only counted in the totals
+        if (pending.getAndSet(slot, new Drop(key, bytes)) == null) {
+            pendingCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * True if anything has been counted since the last reset.
+     */
+    synchronized boolean hasCounts() {
+        return (totalRecords > 0) || (totalDrops.get() > 0);
+    }
+
+    synchronized void record(String key, long bytes) {
+        attributeDrops();
+        totalRecords++;
+        totalBytes += bytes;
+        get(key, bytes).records++;
+    }
+
+    /**
+     * Adds the pending drops to the entries of their keys, called with the lock held.
+     */
+    private void attributeDrops() {
+        if (pendingCount.get() == 0) {
+            return;
+        }
+        for (int i = 0, len = pending.length(); i < len; i++) {
+            Drop drop = pending.getAndSet(i, null);
+            if (drop != null) {
+                pendingCount.decrementAndGet();
+                Entry entry = get(drop.key, 0);
+                entry.drops++;
+                entry.droppedBytes += drop.bytes;
+            }
+        }
+    }
+
+    /**
+     * The entry for the key with the bytes added, replacing the entry with the fewest bytes
+     * if the key isn't tracked and the sketch is full.
+     */
+    private Entry get(String key, long bytes) {
+        if (key == null) {
+            key = "";
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() < capacity) {
+                entry = new Entry(key, 0);
+            } else {
+                Entry min = null;
+                for (Entry tmp : entries.values()) {
+                    if ((min == null) || (tmp.bytes < min.bytes)) {
+                        min = tmp;
+                    }
+                }
+                entries.remove(min.key);
+                entry = new Entry(key, min.bytes);
+            }
+            entries.put(key, entry);
+        }
+        entry.bytes += bytes;
+        return entry;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A drop waiting to be attributed to its key.
+     */
+    private static class Drop {
+
+        final int bytes;
+        final String key;
+
+        Drop(String key, int bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The counts of a single key.
+     */
+    public static class Entry {
+
+        private long bytes;
+        private long droppedBytes;
+        private long drops;
+        private final long error;
+        private final String key;
+        private long records;
+
+        Entry(String key, long error) {
+            this.key = key;
+            this.error = error;
+            this.bytes = error;
+        }
+
+        /**
+         * Bytes written, including the error.  Characters for print stream handlers.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Message lengths of the records dropped since the key entered the sketch, not
+         * included in the bytes.
+         */
+        public long getDroppedBytes() {
+            return droppedBytes;
+        }
+
+        /**
+         * Records dropped since the key entered the sketch.
+         */
+        public long getDrops() {
+            return drops;
+        }
+
+        /**
+         * The most the bytes may be over counted.
+         */
+        public long getError() {
+            return error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Records written since the key entered the sketch.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(key).append(" records=").append(records).append(" bytes=").append(bytes);
+            if (error > 0) {
+                buf.append(" error=").append(error);
+            }
+            buf.append(" drops=").append(drops);
+            if (droppedBytes > 0) {
+                buf.append(" droppedBytes=").append(droppedBytes);
+            }
+            return buf.toString();
+        }
+
+        private Entry copy() {
+            Entry ret = new Entry(key, error);
+            ret.bytes = bytes;
+            ret.droppedBytes = droppedBytes;
+            ret.drops = drops;
+            ret.records = records;
+            return ret;
+        }
+    }
+
+}
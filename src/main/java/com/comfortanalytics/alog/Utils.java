@@ -1,6 +1,5 @@
 package com.comfortanalytics.alog;
 
-import java.io.PrintStream;
 import java.util.Calendar;
 import java.util.TimeZone;
 import java.util.logging.Handler;
@@ -16,6 +15,8 @@ class Utils {
     // Fields
     ///////////////////////////////////////////////////////////////////////////
 
+    static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     private static Calendar calendarCache1;
     private static Calendar calendarCache2;
 
@@ -145,6 +146,55 @@ class Utils {
         return buf;
     }
 
+    /**
+     * Converts a Java Calendar into an ISO 8601 timestamp with millis and the zone offset, for
+     * example 2019-01-31T13:05:59.123-08:00.
+     *
+     * @param calendar The calendar representing the timestamp to encode.
+     * @param buf      The buffer to append the encoded timestamp and return,
+     *                 can be null.
+     * @return The buf argument, or if that was null, a new StringBuilder.
+     */
+    static StringBuilder encodeIso(Calendar calendar, StringBuilder buf) {
+        if (buf == null) {
+            buf = new StringBuilder();
+        }
+        encodeForLogs(calendar, buf);
+        buf.setCharAt(buf.length() - 9, 'T');
+        buf.append('.');
+        int tmp = calendar.get(Calendar.MILLISECOND);
+        if (tmp < 100) {
+            buf.append('0');
+        }
+        if (tmp < 10) {
+            buf.append('0');
+        }
+        buf.append(tmp);
+        tmp = calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+        if (tmp == 0) {
+            buf.append('Z');
+            return buf;
+        }
+        if (tmp < 0) {
+            buf.append('-');
+            tmp = -tmp;
+        } else {
+            buf.append('+');
+        }
+        tmp = tmp / 60000;
+        int hrs = tmp / 60;
+        if (hrs < 10) {
+            buf.append('0');
+        }
+        buf.append(hrs).append(':');
+        tmp = tmp % 60;
+        if (tmp < 10) {
+            buf.append('0');
+        }
+        buf.append(tmp);
+        return buf;
+    }
+
     /**
      * Attempts to reuse a calendar instance, the timezone will be set to
      * TimeZone.getDefault().
@@ -193,13 +243,13 @@ class Utils {
 
 
     /**
-     * Formats and writes the log record the underlying stream.
+     * Appends the record in the default Alog text layout, terminated with the line separator.
+     * Any stack trace is appended as well.
      */
-    static void write(LogRecord record, PrintStream out, StringBuilder builder, Calendar calendar) {
-        if (builder == null) {
-            builder = new StringBuilder();
-            calendar = Calendar.getInstance();
-        }
+    static void format(LogRecord record,
+                       StringBuilder builder,
+                       Calendar calendar,
+                       ThrowableRenderer renderer) {
         builder.append('[');
         // timestamp
         calendar.setTimeInMillis(record.getMillis());
@@ -224,21 +274,35 @@ class Utils {
         // message
         String msg = record.getMessage();
         if ((msg != null) && (msg.length() > 0)) {
+            builder.append(" - ");
             Object[] params = record.getParameters();
             if (params != null) {
-                msg = String.format(msg, params);
+                MessageTemplate.get(msg).format(params, builder);
+            } else {
+                builder.append(msg);
             }
-            builder.append(" - ");
-            builder.append(msg);
         }
-        out.println(builder);
-        builder.setLength(0);
+        builder.append(LINE_SEPARATOR);
         // exception
         Throwable thrown = record.getThrown();
         if (thrown != null) {
-            thrown.printStackTrace(out);
+            renderer.render(thrown, builder);
         }
     }
 
+    /**
+     * Returns the message with any parameters applied, or null if there is no message.
+     */
+    static String formatMessage(LogRecord record) {
+        String msg = record.getMessage();
+        if ((msg == null) || (msg.length() == 0)) {
+            return null;
+        }
+        Object[] params = record.getParameters();
+        if (params != null) {
+            msg = MessageTemplate.get(msg).format(params);
+        }
+        return msg;
+    }
 
 }
@@ -22,8 +22,10 @@
  <p>
 
  Multiple logs can share the same file.  A single FileLogHandler will be
- maintained for each absolute file path.  Be aware that once closed,
- none of the other logs can use the same handler.
+ maintained for each canonical file path.  Be aware that once closed,
+ none of the other logs can use the same handler.  Likewise, a single
+ PrintStreamLogHandler, and write thread, is shared by all logs printing to
+ the same stream.
  <p>
  <pre>
  public static void main(String[] args) {
@@ -45,35 +47,184 @@
  }
  </pre>
  <p>
+ To send the same records to several destinations, such as a file and the console, use a
+ FanOutLogHandler.  Records are queued and formatted once, and the same bytes are written to
+ every sink whose level accepts them.  Print stream sinks decode the bytes, so the stream
+ still uses its own charset.
+ <p>
+ <pre>
+ public static void main(String[] args) {
+    PrintStreamLogHandler console = new PrintStreamLogHandler("console", System.out);
+    console.setLevel(Level.WARNING);
+    FanOutLogHandler fanOut = new FanOutLogHandler(
+            "app", FileLogHandler.getHandler(new File("app.log")), console);
+    Logger.getLogger("").addHandler(fanOut);
+ }
+ </pre>
+ <p>
+ To write many files, such as one per tenant, use a RoutingLogHandler.  It has a single queue
+ and write thread, picks the file of each record from a logger name prefix or a record
+ parameter, and only keeps the most recently written files open.  Each file is backed up like
+ a FileLogHandler.
+ <p>
+ <pre>
+ public static void main(String[] args) {
+    RoutingLogHandler router = new RoutingLogHandler("tenants", new File("tenants"));
+    //tenant.acme.billing is written to tenants/tenant.acme.log
+    router.setRouteDepth(2).setMaxOpenFiles(500);
+    Logger.getLogger("tenant").addHandler(router);
+ }
+ </pre>
+ <p>
+ For hot code paths, Alog.getAlogLogger() returns a facade whose level checks are the same as
+ Logger.isLoggable and whose log methods accept primitive parameters without boxing.  When all
+ of the logger's handlers are async handlers, records are enqueued directly without creating a
+ LogRecord.  The facade caches the handlers of the logger, and compares them with the jul
+ loggers before enqueuing, so changes made directly to a jul logger are seen by the next
+ record.
+ <p>
+ <pre>
+ private static final AlogLogger log = Alog.getAlogLogger(MyClass.class);
+
+ public void handle(Request req) {
+    log.log(Level.FINE, "Request size %d", req.size());
+ }
+ </pre>
+ <p>
+ The write thread records how long each write and flush takes, so slow storage shows up
+ before the queue fills and records are dropped.  It also records end to end latency from
+ when each record was queued: until the write thread took it (getQueueLatency), until it
+ was written to the stream (getCompletionLatency), and until it was flushed
+ (getDurableLatency).  These are log scale histograms that don't allocate.
+ <p>
+ <pre>
+ AsyncLogHandler handler = Alog.getHandler(log);
+ System.out.println(handler.getWriteLatency().getPercentile(99.9));
+ System.out.println(handler.getQueueLatency());
+ </pre>
+ <p>
+ To find the code responsible for the most log volume, track the top talkers.  The loggers
+ and message templates with the most bytes are kept in fixed size sketches, and can be
+ summarized in the log periodically.
+ <p>
+ <pre>
+ handler.setTopTalkerSize(100).setTopTalkerInterval(60000);
+ for (TopTalkers.Entry entry : handler.getTopTemplates().getTop(20)) {
+    System.out.println(entry);
+ }
+ </pre>
+ <p>
+ On Java 11 and later, Java Flight Recorder events in the Alog category show sampled
+ publishes with the queue depth, dropped records with the reason, write batches between
+ flushes, rollovers and compression.  They cost nothing unless enabled in a recording.
+ <p>
 
  <b>Configuration Files</b>
  <p>
  Alog uses configuration as specified by Java Util Logging.  See
  javadoc for java.util.logging.LogManager for details.
  <p>
- There are two handlers:
+ There are five handlers:
  <ul>
+ <li>com.comfortanalytics.alog.ConsoleLogHandler
  <li>com.comfortanalytics.alog.FileLogHandler
  <li>comfortanalytics.alog.PrintStreamLogHandler
+ <li>com.comfortanalytics.alog.RoutingLogHandler
+ <li>com.comfortanalytics.alog.ShardedLogHandler
  </ul>
 
- The following keys can be used with both:
+ The following keys can be used with all of them:
  <ul>
+ <li>com.comfortanalytics.alog.bufferSize - is the size of the buffer between
+ formatting and the stream, in bytes for files and characters for print
+ streams (defaults to 8192, use 0 for unbuffered).
+ <li>com.comfortanalytics.alog.failover - is where records go while the write thread is
+ stalled: stderr, or a file name pattern (defaults to none, records wait for
+ the write thread).
  <li>com.comfortanalytics.alog.filter - is the name of a Filter class to use
- (defaults to no Filter).
+ (defaults to no Filter).  Filters are applied before records are queued,
+ unless they implement DeferredFilter, then they are applied by the write
+ thread.
+ <li>com.comfortanalytics.alog.flushBytes - is the number of bytes written since
+ the last flush after which the write thread flushes (defaults to 0, which
+ leaves it to the buffer).
+ <li>com.comfortanalytics.alog.flushInterval - is the number of milliseconds a
+ written record can remain buffered before the write thread flushes, even
+ if the queue never drains (defaults to 1000, use 0 to disable).
+ <li>com.comfortanalytics.alog.flushOnEmpty - is a boolean that determines whether
+ or not the write thread flushes whenever it drains the queue (defaults to
+ true).
+ <li>com.comfortanalytics.alog.foldPackages - is a comma separated list of
+ package prefixes.  Consecutive stack frames from these packages are
+ collapsed into a single line (defaults to none).
+ <li>com.comfortanalytics.alog.format - is the built in layout to use when
+ there isn't a formatter: TEXT, JSON or BINARY (defaults to TEXT).  JSON
+ writes one object per line with the fields ts, level, logger, class,
+ method, thread, seq, msg and exception.  BINARY is a compact format only
+ supported by the FileLogHandler, see LogDecoder.
  <li>com.comfortanalytics.alog.formatter - is the name of a Formatter class
  to use (defaults to null and uses an optimized Alog format) .
+ <li>com.comfortanalytics.alog.globalMaxQueueBytes - is the limit on the
+ estimated bytes retained by the queues of all handlers in the JVM together
+ (defaults to 0, which is unlimited).
  <li>com.comfortanalytics.alog.inferCaller - is a boolean that
  determines whether or not to infer the source class and method name
  before submitting the log record for async processing (expensive, so
  the default is false).
  <li>com.comfortanalytics.alog.level - is the default level for the Handler
  (defaults to INFO).
+ <li>com.comfortanalytics.alog.maxMessageSize - is the number of characters
+ after which messages and string parameters are truncated (defaults to 0,
+ which is unlimited).
  <li>com.comfortanalytics.alog.maxQueue - is the max async queue size above
  which records are ignored (defaults to 25000, use 0 for infinite).
+ <li>com.comfortanalytics.alog.maxQueueBytes - is the limit on the estimated
+ bytes retained by the queue, above which records finer than WARNING are
+ ignored.  The priority lane may retain another quarter of this for WARNING
+ and above (defaults to 67108864, use 0 for infinite).
+ <li>com.comfortanalytics.alog.maxTraceDepth - is the maximum number of
+ stack frames printed for each exception in a cause chain (defaults to 0,
+ which is unlimited).
+ <li>com.comfortanalytics.alog.priorityQueue - is the capacity reserved for
+ records of WARNING and above, so they are queued even when maxQueue is
+ reached.  When the main queue has a backlog, they are written first
+ (defaults to 1000, use 0 to disable).  The seq field of the JSON format
+ restores the publish order.
+ <li>com.comfortanalytics.alog.recorderLevel - is the level below which records are kept
+ in a fixed size ring in memory by the flight recorder, rather than
+ queued.  They are neither formatted nor written unless a record at or
+ above the recorderTrigger level is published, then the ring is queued
+ ahead of it (defaults to none, which disables the recorder).
+ <li>com.comfortanalytics.alog.recorderPerThread - is a boolean that determines whether the
+ flight recorder keeps a ring for each publishing thread, so a trigger only
+ writes the records of its own thread (defaults to false).
+ <li>com.comfortanalytics.alog.recorderSize - is the number of records in each flight
+ recorder ring (defaults to 1000).
+ <li>com.comfortanalytics.alog.recorderTrigger - is the level at or above which the flight
+ recorder writes its records (defaults to SEVERE).
+ <li>com.comfortanalytics.alog.shutdownTimeout - is the number of milliseconds the
+ shutdown hook gives all handlers in the JVM, together, to write their
+ queued records.  Handlers drain concurrently and records that can't be
+ written in time are reported on System.err (defaults to 15000).
+ <li>com.comfortanalytics.alog.stallTimeout - is the number of milliseconds a single write
+ or flush can block before the watchdog reports the write thread as stalled
+ and sends records to the failover.  The watchdog also restarts write
+ threads that have died (defaults to 30000, use 0 to disable).
  <li>com.comfortanalytics.alog.throttle - is the percentage (0-100) of the
  maxQueue after which log records less than INFO are ignored (defaults to
  90%). A value of 100 effectively disables the throttle.
+ <li>com.comfortanalytics.alog.topTalkerInterval - is the number of milliseconds between
+ summary records of the top 20 loggers and message templates by bytes
+ written, after which the counts are reset (defaults to 0, which is
+ disabled).
+ <li>com.comfortanalytics.alog.topTalkerSize - is the number of logger names and message
+ templates whose records, bytes written and drops are tracked in fixed size
+ sketches, see getTopLoggers and getTopTemplates (defaults to 0, which is
+ disabled).
+ <li>com.comfortanalytics.alog.traceCacheSize - is the number of distinct
+ stack traces to remember.  Once a trace has been printed, repeats are
+ printed as their message lines and a reference to the id of the first
+ (defaults to 0, which is disabled).
  </ul>
 
  The following keys can also be used with the FileLogHandler:
@@ -81,13 +232,59 @@
  <li>com.comfortanalytics.alog.backupThreshold - is the approximate file
  size in bytes to zip up the log file and store it with a timestamp
  appended to the file name (default is 10000000 bytes).
+ <li>com.comfortanalytics.alog.bloomFilter - is a boolean that determines
+ whether or not a bloom filter of logger names and tokens is stored in each
+ backup, see LogSearch (defaults to false).
+ <li>com.comfortanalytics.alog.bloomTokens - is a regular expression for
+ extracting bloom filter tokens from messages.  The first capturing group
+ is the token, or the entire match if there isn't a group (defaults to
+ none).
  <li>com.comfortanalytics.alog.encoding - is the charset for encoding log
  files (default is "UTF-8").
  <li>com.comfortanalytics.alog.filename - is the pattern for generating the
  output file name. See below for details. (default is "java.log").
+ <li>com.comfortanalytics.alog.indexInterval - is the number of bytes
+ between entries in a sparse time index kept next to the log and inside
+ each backup, see LogIndex (defaults to 0, which is disabled).
+ <li>com.comfortanalytics.alog.journalSize - is the number of bytes in a memory
+ mapped crash journal next to the log.  Queued records that haven't been
+ flushed to the log survive the death of the process and are written when
+ the handler is next started (defaults to 0, which is disabled).
  <li>com.comfortanalytics.alog.maxBackups - is the number of zip backups to
  maintain (default is 10).
  </ul>
+ The following keys can also be used with the RoutingLogHandler, as well as
+ the backupThreshold, encoding and maxBackups keys of the FileLogHandler:
+ <ul>
+ <li>com.comfortanalytics.alog.idleTimeout - is the number of milliseconds
+ after which a file that hasn't been written is closed (default is 60000).
+ <li>com.comfortanalytics.alog.maxOpenFiles - is the number of files that can
+ be open at once, the least recently written is closed first (default is
+ 100).
+ <li>com.comfortanalytics.alog.routeDepth - is the number of logger name
+ segments that name the file of a record (defaults to 0, which is the
+ entire logger name).
+ <li>com.comfortanalytics.alog.routeDirectory - is the pattern for the
+ directory of the files, see the filename pattern below (default is
+ "logs").
+ <li>com.comfortanalytics.alog.routeParameter - is the index of the record
+ parameter that names the file of a record, rather than the logger name
+ (defaults to -1, which is disabled).
+ </ul>
+ The following key can also be used with the ShardedLogHandler, whose
+ shards are configured with the keys of the FileLogHandler:
+ <ul>
+ <li>com.comfortanalytics.alog.shards - is the number of files, each with its
+ own queue and write thread, that the log is split across (default is 4).
+ </ul>
+ The following keys can also be used with the ConsoleLogHandler:
+ <ul>
+ <li>com.comfortanalytics.alog.encoding - is the charset for encoding console
+ output (defaults to the platform charset).
+ <li>com.comfortanalytics.alog.stderr - is a boolean that determines whether
+ to write to the stderr file descriptor rather than stdout (defaults to
+ false).
+ </ul>
  The filename pattern uses the following tokens:
  <ul>
  <li>"/" represents the local pathname separator.
@@ -107,6 +304,15 @@
  com.comfortanalytics.alog.maxBackups=5
  </pre>
  <p>
+ When a single write thread can't keep up, a ShardedLogHandler splits the log across
+ myLog.log.0, myLog.log.1 and so on.  The records of a thread always go to the same shard, and
+ every line is JSON with a sequence number that is unique across the shards.  LogMerge prints
+ the shards as a single log in sequence order:
+ <p>
+ <pre>
+ java -cp alog.jar com.comfortanalytics.alog.LogMerge [-backups] myLog.log
+ </pre>
+ <p>
  To replace the root handler that prints to the console with one that
  does it ansynchronously:
  <p>
@@ -0,0 +1,226 @@
+package com.comfortanalytics.alog;
+
+import java.io.File;
+import java.util.logging.Level;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events, used on Java 11 and later in place of the baseline no-op
+ * implementation.  Events are created on the stack and checked with isEnabled, so when they
+ * aren't enabled in a recording the JIT removes them entirely.
+ * <p>
+ * Only one of every 64 publishes is recorded, so the events don't dominate a recording of
+ * a busy application.
+ *
+ * @author Aaron Hansen
+ */
+class LogEvents {
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Class Fields
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static final int PUBLISH_SAMPLE_MASK = 63;
+    private static int publishCount;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors
+    ///////////////////////////////////////////////////////////////////////////
+
+    private LogEvents() {
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package / Private Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    static Object beginBatch() {
+        BatchEvent event = new BatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static Object beginCompress() {
+        CompressEvent event = new CompressEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static Object beginRollover() {
+        RolloverEvent event = new RolloverEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void drop(AsyncLogHandler handler, int level, int bytes) {
+        DropEvent event = new DropEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.handler = handler.getThreadName();
+        event.level = levelName(level);
+        event.reason = handler.dropReason(level, bytes);
+        event.commit();
+    }
+
+    static void endBatch(Object event, AsyncLogHandler handler, int records, long bytes) {
+        if (event == null) {
+            return;
+        }
+        BatchEvent tmp = (BatchEvent) event;
+        tmp.end();
+        if (tmp.shouldCommit()) {
+            tmp.handler = handler.getThreadName();
+            tmp.records = records;
+            tmp.bytes = bytes;
+            tmp.commit();
+        }
+    }
+
+    static void endCompress(Object event, File file, long bytes, long compressed) {
+        if (event == null) {
+            return;
+        }
+        CompressEvent tmp = (CompressEvent) event;
+        tmp.end();
+        if (tmp.shouldCommit()) {
+            tmp.file = file.getPath();
+            tmp.bytes = bytes;
+            tmp.compressed = compressed;
+            tmp.commit();
+        }
+    }
+
+    static void endRollover(Object event, File file, long bytes) {
+        if (event == null) {
+            return;
+        }
+        RolloverEvent tmp = (RolloverEvent) event;
+        tmp.end();
+        if (tmp.shouldCommit()) {
+            tmp.file = file.getPath();
+            tmp.bytes = bytes;
+            tmp.commit();
+        }
+    }
+
+    static void publish(AsyncLogHandler handler, int level, int depth) {
+        PublishEvent event = new PublishEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        //racy, but only the rate matters
+        if ((++publishCount & PUBLISH_SAMPLE_MASK) != 0) {
+            return;
+        }
+        event.handler = handler.getThreadName();
+        event.level = levelName(level);
+        event.queueDepth = depth;
+        event.commit();
+    }
+
+    private static String levelName(int level) {
+        return Level.parse(String.valueOf(level)).getName();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Inner Classes
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Name("com.comfortanalytics.alog.Batch")
+    @Label("Log Write Batch")
+    @Category("Alog")
+    @Description("Records written by a handler between flushes, including the flush")
+    static class BatchEvent extends Event {
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Records")
+        int records;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.comfortanalytics.alog.Compress")
+    @Label("Log Compression")
+    @Category("Alog")
+    @Description("A log file zipped into a backup")
+    static class CompressEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Compressed Bytes")
+        @DataAmount
+        long compressed;
+    }
+
+    @Name("com.comfortanalytics.alog.Drop")
+    @Label("Log Record Dropped")
+    @Category("Alog")
+    @Description("A record that was not queued")
+    static class DropEvent extends Event {
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Level")
+        String level;
+
+        @Label("Reason")
+        @Description("throttle, overflow, bytes or global")
+        String reason;
+    }
+
+    @Name("com.comfortanalytics.alog.Publish")
+    @Label("Log Publish")
+    @Category("Alog")
+    @Description("A sample of queued records, one in 64")
+    static class PublishEvent extends Event {
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Level")
+        String level;
+
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+
+    @Name("com.comfortanalytics.alog.Rollover")
+    @Label("Log Rollover")
+    @Category("Alog")
+    @Description("A log file backed up and replaced, including compression")
+    static class RolloverEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class AlogLoggerTest {
+
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testDirect() throws Exception {
+        Logger logger = Logger.getLogger("direct");
+        logger.setUseParentHandlers(false);
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "direct", new PrintStream(bytes, true));
+        handler.setLevel(Level.ALL);
+        logger.addHandler(handler);
+        AlogLogger log = Alog.getAlogLogger("direct");
+        AlogLogger.refresh();
+        Assert.assertSame(log, Alog.getAlogLogger("direct"));
+        Assert.assertTrue(log.isLoggable(Level.INFO));
+        Assert.assertFalse(log.isLoggable(Level.FINE));
+        log.log(Level.FINE, "fine %d", 1);
+        log.log(Level.INFO, "int %d", 42);
+        log.log(Level.INFO, "long %d", 1234567890123L);
+        log.log(Level.INFO, "double %.1f", 1.5d);
+        log.log(Level.INFO, "boolean %s", true);
+        log.log(Level.INFO, "object %s", new StringBuilder("sb"));
+        log.setLevel(Level.WARNING);
+        Assert.assertFalse(log.isLoggable(Level.INFO));
+        log.info("info");
+        log.warning("last");
+        String out = waitFor("last");
+        Assert.assertFalse(out.contains("fine 1"));
+        Assert.assertTrue(out.contains("int 42"));
+        Assert.assertTrue(out.contains("long 1234567890123"));
+        Assert.assertTrue(out.contains("double 1.5"));
+        Assert.assertTrue(out.contains("boolean true"));
+        Assert.assertTrue(out.contains("object sb"));
+        Assert.assertFalse(out.contains("info"));
+        //changes made directly to the jul logger are seen without a refresh
+        logger.setLevel(Level.FINE);
+        Assert.assertTrue(log.isLoggable(Level.FINE));
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+        Handler plain = new Handler() {
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+        logger.addHandler(plain);
+        log.fine("plain");
+        Assert.assertEquals(records.size(), 1);
+        Assert.assertEquals(records.get(0).getMessage(), "plain");
+        logger.removeHandler(plain);
+        log.fine("direct again");
+        Assert.assertEquals(records.size(), 1);
+        Assert.assertTrue(waitFor("direct again").contains("direct again"));
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        AlogLogger log = Alog.getAlogLogger("configured");
+        Assert.assertFalse(log.isLoggable(Level.FINE));
+        String config = "configured.level=FINE";
+        //seen without a refresh
+        LogManager.getLogManager().readConfiguration(
+                new ByteArrayInputStream(config.getBytes("UTF-8")));
+        Assert.assertTrue(log.isLoggable(Level.FINE));
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testFallback() {
+        Logger logger = Logger.getLogger("fallback");
+        logger.setUseParentHandlers(false);
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+        logger.addHandler(new Handler() {
+            public void publish(LogRecord record) {
+                record.getSourceClassName();
+                records.add(record);
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        });
+        AlogLogger log = Alog.getAlogLogger("fallback");
+        AlogLogger.refresh();
+        log.log(Level.INFO, "value %d", 7L);
+        Assert.assertEquals(records.size(), 1);
+        LogRecord record = records.get(0);
+        Assert.assertEquals(record.getLoggerName(), "fallback");
+        Assert.assertEquals(record.getParameters()[0], 7L);
+        Assert.assertEquals(record.getSourceClassName(), getClass().getName());
+        Assert.assertEquals(record.getSourceMethodName(), "testFallback");
+    }
+
+    private String waitFor(String text) throws Exception {
+        long start = System.currentTimeMillis();
+        String out = bytes.toString();
+        while (!out.contains(text) && ((System.currentTimeMillis() - start) < 5000)) {
+            Thread.sleep(10);
+            out = bytes.toString();
+        }
+        return out;
+    }
+
+}
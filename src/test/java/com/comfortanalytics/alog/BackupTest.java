@@ -55,4 +55,18 @@ public class BackupTest {
         Assert.assertEquals(2, backups.length);
     }
 
+    @Test
+    public void testNames() {
+        Assert.assertTrue(FileLogHandler.isBackup("a.log", "a.log.261019-1205.zip"));
+        Assert.assertTrue(FileLogHandler.isBackup("a.log", "a.log.261019-120530.zip"));
+        Assert.assertTrue(FileLogHandler.isBackup("a.log", "a.log.261019-120530123.zip"));
+        Assert.assertTrue(FileLogHandler.isBackup("a.log", "a.log.261019-120530123.4.zip"));
+        //routed files and shards that share the prefix
+        Assert.assertFalse(FileLogHandler.isBackup("a.log", "a.log.b.log.261019-1205.zip"));
+        Assert.assertFalse(FileLogHandler.isBackup("a.log", "a.log.0.261019-1205.zip"));
+        Assert.assertFalse(FileLogHandler.isBackup("a.log.1", "a.log.10.261019-1205.zip"));
+        Assert.assertFalse(FileLogHandler.isBackup("a.log", "a.log.261019-1205.x.zip"));
+        Assert.assertFalse(FileLogHandler.isBackup("a.log", "a.log.zip"));
+    }
+
 }
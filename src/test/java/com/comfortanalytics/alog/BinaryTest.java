@@ -0,0 +1,182 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class BinaryTest {
+
+    private File file = new File("binary.log").getAbsoluteFile();
+    private FileLogHandler handler;
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+        handler = FileLogHandler.getHandler(file);
+        handler.setFormat(LogFormat.BINARY);
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        for (File f : handler.getBackups()) {
+            f.delete();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void test() throws Exception {
+        Logger log = Alog.getLogger("binary", file);
+        for (int i = 0; i < 10; i++) {
+            log.log(Level.INFO, "count %d of %s", new Object[]{i, "ten"});
+        }
+        log.log(Level.SEVERE, "failed", new IllegalStateException("bad"));
+        handler.waitForEmptyQueue(true);
+        handler.flush();
+        LogDecoder decoder = new LogDecoder(new FileInputStream(file));
+        try {
+            for (int i = 0; i < 10; i++) {
+                LogRecord record = decoder.read();
+                Assert.assertEquals(record.getLevel(), Level.INFO);
+                Assert.assertEquals(record.getLoggerName(), "binary");
+                Assert.assertEquals(Utils.formatMessage(record), "count " + i + " of ten");
+            }
+            LogRecord record = decoder.read();
+            Assert.assertEquals(record.getLevel(), Level.SEVERE);
+            Assert.assertEquals(record.getThrown().toString(),
+                                "java.lang.IllegalStateException: bad");
+            Assert.assertTrue(record.getThrown().getStackTrace().length > 0);
+            Assert.assertNull(decoder.read());
+            Assert.assertEquals(decoder.getCorruptFrames(), 0);
+        } finally {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        BinaryWriter writer = new BinaryWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] starts = new int[10];
+        for (int i = 0; i < 10; i++) {
+            starts[i] = out.size();
+            writer.write(new LogRecord(Level.INFO, "record " + i), out, i == 0);
+        }
+        byte[] bytes = out.toByteArray();
+        //a length far beyond the max frame, it must not be allocated
+        int start = starts[3];
+        bytes[start] = bytes[start + 1] = bytes[start + 2] = bytes[start + 3] = (byte) 0xFF;
+        bytes[start + 4] = 0x7F;
+        //truncated by a crash
+        int len = bytes.length - 3;
+        LogDecoder decoder = new LogDecoder(new ByteArrayInputStream(bytes, 0, len));
+        for (int i = 0; i < 9; i++) {
+            if (i != 3) {
+                Assert.assertEquals(decoder.read().getMessage(), "record " + i);
+            }
+        }
+        Assert.assertNull(decoder.read());
+        Assert.assertEquals(decoder.getCorruptFrames(), 2);
+    }
+
+    @Test
+    public void testMaxFrame() throws Exception {
+        BinaryWriter writer = new BinaryWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder buf = new StringBuilder(BinaryWriter.MAX_FRAME + 1);
+        for (int i = 0; i <= BinaryWriter.MAX_FRAME; i++) {
+            buf.append('x');
+        }
+        LogRecord record = new LogRecord(Level.INFO, "huge {0}");
+        record.setParameters(new Object[]{buf.toString()});
+        buf = null;
+        writer.write(record, out, true);
+        writer.write(new LogRecord(Level.INFO, "next"), out, false);
+        LogDecoder decoder = new LogDecoder(new ByteArrayInputStream(out.toByteArray()));
+        record = decoder.read();
+        Assert.assertTrue(record.getMessage().startsWith("huge xxx"));
+        Assert.assertTrue(record.getMessage().length() < BinaryWriter.MAX_FRAME);
+        Assert.assertNull(record.getParameters());
+        Assert.assertEquals(decoder.read().getMessage(), "next");
+        Assert.assertEquals(decoder.getCorruptFrames(), 0);
+    }
+
+    @Test
+    public void testFullDictionary() throws Exception {
+        BinaryWriter.MAX_DICTIONARY = 4;
+        try {
+            BinaryWriter writer = new BinaryWriter();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.write(record("first", "one {0}"), out, true);
+            //needs more ids than the dictionary holds, none it uses can be redefined
+            LogRecord record = record("second", "two {0}");
+            record.setThrown(new IllegalStateException("bad"));
+            writer.write(record, out, false);
+            writer.write(record("first", "one {0}"), out, false);
+            LogDecoder decoder = new LogDecoder(new ByteArrayInputStream(out.toByteArray()));
+            assertRecord(decoder.read(), "first", "one {0}");
+            record = decoder.read();
+            assertRecord(record, "second", "two {0}");
+            Assert.assertEquals(record.getThrown().toString(),
+                                "java.lang.IllegalStateException: bad");
+            Assert.assertEquals(record.getThrown().getStackTrace()[0].getMethodName(),
+                                "testFullDictionary");
+            assertRecord(decoder.read(), "first", "one {0}");
+            Assert.assertNull(decoder.read());
+            Assert.assertEquals(decoder.getCorruptFrames(), 0);
+        } finally {
+            BinaryWriter.MAX_DICTIONARY = 8192;
+        }
+    }
+
+    @Test
+    public void testInlineMessages() throws Exception {
+        BinaryWriter writer = new BinaryWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogRecord record = new LogRecord(Level.INFO, "no parameters");
+        writer.write(record, out, true);
+        out.reset();
+        //written again rather than referring to the dictionary
+        writer.write(record, out, false);
+        Assert.assertTrue(out.toString("UTF-8").contains("no parameters"));
+        record = new LogRecord(Level.INFO, "template {0}");
+        record.setParameters(new Object[]{"a"});
+        writer.write(record, out, false);
+        out.reset();
+        record.setParameters(new Object[]{"b"});
+        writer.write(record, out, false);
+        Assert.assertFalse(out.toString("UTF-8").contains("template"));
+    }
+
+    private void assertRecord(LogRecord record, String name, String msg) {
+        Assert.assertEquals(record.getLoggerName(), name);
+        Assert.assertEquals(record.getSourceClassName(), name + ".Class");
+        Assert.assertEquals(record.getSourceMethodName(), name + "Method");
+        Assert.assertEquals(record.getMessage(), msg);
+        Assert.assertEquals(record.getParameters()[0], name);
+    }
+
+    private LogRecord record(String name, String msg) {
+        LogRecord record = new LogRecord(Level.INFO, msg);
+        record.setLoggerName(name);
+        record.setSourceClassName(name + ".Class");
+        record.setSourceMethodName(name + "Method");
+        record.setParameters(new Object[]{name});
+        return record;
+    }
+
+}
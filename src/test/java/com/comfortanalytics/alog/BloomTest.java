@@ -0,0 +1,85 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class BloomTest {
+
+    private File file = new File("bloom.log").getAbsoluteFile();
+    private FileLogHandler handler;
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+        handler = FileLogHandler.getHandler(file);
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        for (File f : handler.getBackups()) {
+            f.delete();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testFilter() {
+        BloomFilter filter = new BloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("token" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(filter.mightContain("token" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue(falsePositives < 50);
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        handler.setBloomFilter(true);
+        handler.setBloomTokens("request=(\\w+)");
+        handler.setMaxBackups(5);
+        Logger log = Alog.getLogger("bloom", file);
+        for (int i = 0; i < 3; i++) {
+            handler.setBackupThreshold(100000);
+            log.log(Level.INFO, "request=%s started", "r" + i);
+            log.log(Level.INFO, "request=%s done", "r" + i);
+            handler.waitForEmptyQueue(true);
+            Thread.sleep(50);
+            handler.setBackupThreshold(10);
+            log.info("roll");
+            handler.waitForEmptyQueue(true);
+            Thread.sleep(50);
+        }
+        File[] backups = handler.getBackups();
+        Assert.assertEquals(backups.length, 3);
+        File[] found = LogSearch.find(file, "r1");
+        Assert.assertEquals(found.length, 2);
+        Assert.assertEquals(found[0], backups[1]);
+        Assert.assertEquals(found[1], file);
+        Assert.assertEquals(LogSearch.find(file, "bloom").length, 4);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        Assert.assertEquals(LogSearch.search(file, "r1", out), 2);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.comfortanalytics.alog;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class ConsoleTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void test() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CountingStream counter = new CountingStream(bytes);
+        PrintStream stream = new PrintStream(new BufferedOutputStream(bytes), false, "UTF-8");
+        ConsoleLogHandler handler = new ConsoleLogHandler("console", counter, stream);
+        handler.setEncoding("UTF-8");
+        handler.setFlushOnEmpty(false);
+        handler.setFlushInterval(0);
+        stream.print("printed first\n");
+        for (int i = 0; i < 10; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record \u00e9 " + i));
+        }
+        handler.close();
+        String out = waitFor(bytes, "record \u00e9 9");
+        Assert.assertTrue(out.startsWith("printed first"));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(out.contains("record \u00e9 " + i));
+        }
+        //all ten records fit in one batch
+        Assert.assertEquals(counter.writes, 1);
+    }
+
+    @Test
+    public void testSmallBuffer() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CountingStream counter = new CountingStream(bytes);
+        ConsoleLogHandler handler = new ConsoleLogHandler(
+                "console", counter, new PrintStream(bytes));
+        handler.setBufferSize(0);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            buf.append('x');
+        }
+        handler.publish(new LogRecord(Level.INFO, buf.toString()));
+        handler.publish(new LogRecord(Level.INFO, "short"));
+        handler.close();
+        String out = waitFor(bytes, "short");
+        Assert.assertTrue(out.contains(buf.toString()));
+        Assert.assertTrue(out.indexOf("short") > out.indexOf(buf.toString()));
+    }
+
+    /**
+     * Close can return before the write thread has finished the last record.
+     */
+    private String waitFor(ByteArrayOutputStream bytes, String text) throws Exception {
+        long start = System.currentTimeMillis();
+        String out = bytes.toString("UTF-8");
+        while (!out.contains(text) && ((System.currentTimeMillis() - start) < 5000)) {
+            Thread.sleep(10);
+            out = bytes.toString("UTF-8");
+        }
+        return out;
+    }
+
+    private static class CountingStream extends OutputStream {
+
+        private ByteArrayOutputStream out;
+        int writes;
+
+        CountingStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            writes++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            writes++;
+            out.write(buf, off, len);
+        }
+    }
+
+}
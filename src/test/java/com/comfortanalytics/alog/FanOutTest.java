@@ -0,0 +1,96 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class FanOutTest {
+
+    private File file = new File("fanout.log").getAbsoluteFile();
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        file.delete();
+    }
+
+    @Test
+    public void test() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler console = new PrintStreamLogHandler(
+                "console", new PrintStream(bytes, true));
+        console.setLevel(Level.WARNING);
+        FileLogHandler fileHandler = FileLogHandler.getHandler(file);
+        fileHandler.setLevel(Level.ALL);
+        FanOutLogHandler handler = new FanOutLogHandler("fanout", fileHandler, console);
+        handler.setLevel(Level.ALL);
+        handler.addSink(console);
+        Assert.assertEquals(handler.getSinks().length, 2);
+        handler.publish(new LogRecord(Level.FINE, "fine \u00e9"));
+        handler.publish(new LogRecord(Level.WARNING, "warning"));
+        handler.close();
+        String out = bytes.toString("UTF-8");
+        Assert.assertFalse(out.contains("fine"));
+        Assert.assertEquals(count(out, "warning"), 1);
+        String log = read(file);
+        Assert.assertTrue(log.contains("fine \u00e9"));
+        Assert.assertEquals(count(log, "warning"), 1);
+    }
+
+    @Test
+    public void testStreamCharset() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler console = new PrintStreamLogHandler(
+                "console", new PrintStream(bytes, true, "UTF-16BE"));
+        FanOutLogHandler handler = new FanOutLogHandler("fanout", console);
+        handler.setEncoding("UTF-8");
+        handler.publish(new LogRecord(Level.WARNING, "warning \u00e9"));
+        handler.close();
+        Assert.assertTrue(bytes.toString("UTF-16BE").contains("warning \u00e9"));
+        //closed sinks ignore writes
+        byte[] buf = "late".getBytes("UTF-8");
+        console.write(new LogRecord(Level.WARNING, "late"), buf, buf.length);
+        Assert.assertFalse(bytes.toString("UTF-16BE").contains("late"));
+    }
+
+    private int count(String str, String token) {
+        int ret = 0;
+        int idx = str.indexOf(token);
+        while (idx >= 0) {
+            ret++;
+            idx = str.indexOf(token, idx + 1);
+        }
+        return ret;
+    }
+
+    private String read(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len = in.read(buf);
+        while (len > 0) {
+            out.write(buf, 0, len);
+            len = in.read(buf);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+}
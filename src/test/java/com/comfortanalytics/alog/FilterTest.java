@@ -0,0 +1,89 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.logging.Filter;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class FilterTest {
+
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private PrintStreamLogHandler handler;
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        handler = new PrintStreamLogHandler("filter", new PrintStream(bytes, true));
+    }
+
+    @AfterClass
+    public void teardown() {
+        handler.close();
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testCallerFilter() throws Exception {
+        handler.setLevel(Level.WARNING);
+        handler.publish(new LogRecord(Level.INFO, "info"));
+        Assert.assertEquals(handler.backlog(), 0);
+        handler.setLevel(Level.ALL);
+        handler.setFilter(new Filter() {
+            public boolean isLoggable(LogRecord record) {
+                return !record.getMessage().equals("rejected");
+            }
+        });
+        handler.publish(new LogRecord(Level.INFO, "rejected"));
+        handler.publish(new LogRecord(Level.INFO, "accepted"));
+        String out = waitFor("accepted");
+        handler.setFilter(null);
+        Assert.assertFalse(out.contains("rejected"));
+        Assert.assertFalse(out.contains("info"));
+        Assert.assertTrue(out.contains("accepted"));
+    }
+
+    @Test
+    public void testDeferredFilter() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final boolean[] onCaller = new boolean[1];
+        handler.setFilter(new DeferredFilter() {
+            public boolean isLoggable(LogRecord record) {
+                if (Thread.currentThread() == caller) {
+                    onCaller[0] = true;
+                }
+                return !record.getMessage().equals("deferred reject");
+            }
+        });
+        handler.publish(new LogRecord(Level.INFO, "deferred reject"));
+        handler.publish(new LogRecord(Level.INFO, "deferred accept"));
+        String out = waitFor("deferred accept");
+        handler.setFilter(null);
+        Assert.assertFalse(onCaller[0]);
+        Assert.assertFalse(out.contains("deferred reject"));
+        Assert.assertTrue(out.contains("deferred accept"));
+    }
+
+    /**
+     * Records are written in order, so once the last one appears the earlier ones have been
+     * written or filtered.
+     */
+    private String waitFor(String text) throws Exception {
+        long start = System.currentTimeMillis();
+        String out = bytes.toString();
+        while (!out.contains(text) && ((System.currentTimeMillis() - start) < 5000)) {
+            Thread.sleep(10);
+            out = bytes.toString();
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class FlushTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testFlushBytes() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "flush", new PrintStream(bytes, false));
+        handler.setFlushOnEmpty(false);
+        handler.setFlushInterval(0);
+        handler.setFlushBytes(200);
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        Thread.sleep(200);
+        Assert.assertEquals(bytes.size(), 0);
+        StringBuilder buf = new StringBuilder("second ");
+        for (int i = 0; i < 200; i++) {
+            buf.append('x');
+        }
+        handler.publish(new LogRecord(Level.INFO, buf.toString()));
+        String out = waitFor(bytes, "second");
+        Assert.assertTrue(out.contains("first"));
+        handler.close();
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "flush", new PrintStream(bytes, false));
+        handler.setFlushOnEmpty(false);
+        handler.setFlushInterval(500);
+        long start = System.currentTimeMillis();
+        handler.publish(new LogRecord(Level.INFO, "interval"));
+        Thread.sleep(100);
+        Assert.assertEquals(bytes.size(), 0);
+        waitFor(bytes, "interval");
+        Assert.assertTrue((System.currentTimeMillis() - start) >= 400);
+        handler.close();
+    }
+
+    @Test
+    public void testFlushOnEmpty() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "flush", new PrintStream(bytes, false));
+        handler.setFlushInterval(0);
+        handler.publish(new LogRecord(Level.INFO, "empty"));
+        waitFor(bytes, "empty");
+        handler.close();
+    }
+
+    private String waitFor(ByteArrayOutputStream bytes, String text) throws Exception {
+        long start = System.currentTimeMillis();
+        String out = bytes.toString();
+        while (!out.contains(text) && ((System.currentTimeMillis() - start) < 5000)) {
+            Thread.sleep(10);
+            out = bytes.toString();
+        }
+        Assert.assertTrue(out.contains(text));
+        return out;
+    }
+
+}
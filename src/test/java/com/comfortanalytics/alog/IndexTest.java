@@ -0,0 +1,114 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class IndexTest {
+
+    private File file = new File("index.log").getAbsoluteFile();
+    private FileLogHandler handler;
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+        LogIndex.indexFile(file).delete();
+        handler = FileLogHandler.getHandler(file);
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        for (File f : handler.getBackups()) {
+            f.delete();
+        }
+        file.delete();
+        LogIndex.indexFile(file).delete();
+        LogIndex.BLOCK_SIZE = 1024 * 1024;
+    }
+
+    @Test
+    public void test() throws Exception {
+        LogIndex.BLOCK_SIZE = 1000;
+        handler.setIndexInterval(100);
+        for (int i = 0; i < 100; i++) {
+            LogRecord record = new LogRecord(Level.INFO, "record" + i + ".");
+            record.setLoggerName("index");
+            record.setMillis(i * 1000L);
+            handler.publish(record);
+        }
+        handler.waitForEmptyQueue(true);
+        handler.flush();
+        assertRange(read(LogIndex.open(file, 20000, 30000)));
+        //roll the log into an indexed backup
+        handler.setBackupThreshold(10);
+        LogRecord record = new LogRecord(Level.INFO, "last");
+        record.setMillis(100000);
+        handler.publish(record);
+        handler.waitForEmptyQueue(true);
+        Thread.sleep(100);
+        File[] backups = handler.getBackups();
+        Assert.assertEquals(backups.length, 1);
+        Assert.assertFalse(LogIndex.indexFile(file).exists());
+        File[] found = LogIndex.find(file, 20000, 30000);
+        Assert.assertEquals(found[0], backups[0]);
+        assertRange(read(LogIndex.open(backups[0], 20000, 30000)));
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        File log = new File("order.log").getAbsoluteFile();
+        LogIndex index = new LogIndex(log);
+        index.delete();
+        //r1 is newer than the records after it, which only get entries at 20 and 40
+        long[] millis = {1000, 1500, 1100, 1200, 1300};
+        FileOutputStream out = new FileOutputStream(log);
+        for (int i = 0; i < millis.length; i++) {
+            index.update(millis[i], i * 10, 20);
+            out.write(("r" + i + "......." + '\n').getBytes("UTF-8"));
+        }
+        out.close();
+        index.close();
+        try {
+            String range = read(LogIndex.open(log, 1400, 1600));
+            Assert.assertTrue(range.startsWith("r0"));
+            Assert.assertTrue(range.contains("r1"));
+        } finally {
+            index.delete();
+            log.delete();
+        }
+    }
+
+    private void assertRange(String range) {
+        Assert.assertTrue(range.contains("record20."));
+        Assert.assertTrue(range.contains("record30."));
+        Assert.assertFalse(range.contains("record5."));
+        Assert.assertFalse(range.contains("record50."));
+        Assert.assertFalse(range.contains("record99."));
+    }
+
+    private String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len = in.read(buf);
+        while (len > 0) {
+            out.write(buf, 0, len);
+            len = in.read(buf);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class JournalTest {
+
+    private File file = new File("journal.log").getAbsoluteFile();
+    private File journal = LogJournal.journalFile(file);
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+        journal.delete();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        file.delete();
+        journal.delete();
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        FileLogHandler handler = FileLogHandler.getHandler(file);
+        handler.setJournalSize(4096);
+        for (int i = 0; i < 10; i++) {
+            handler.publish(new LogRecord(Level.INFO, "committed " + i));
+        }
+        handler.waitForEmptyQueue(true);
+        handler.flush();
+        Assert.assertFalse(handler.getJournal().hasEntries());
+        handler.close();
+        Assert.assertFalse(journal.exists());
+        Assert.assertTrue(read(file).contains("committed 9"));
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        //a journal left behind by a process that died
+        LogJournal crashed = new LogJournal(journal, 4096);
+        LogRecord record = new LogRecord(Level.SEVERE, "before the crash %s");
+        record.setParameters(new Object[]{"param"});
+        record.setLoggerName("crash");
+        record.setThrown(new Exception("boom"));
+        crashed.append(LogJournal.encode(record), 1);
+        crashed.append(LogJournal.encode(new LogRecord(Level.FINE, "written")), 2);
+        crashed.commit(1);
+        crashed.append(LogJournal.encode(new LogRecord(Level.FINE, "not written")), 3);
+        crashed.close();
+        FileLogHandler handler = FileLogHandler.getHandler(file);
+        handler.setJournalSize(4096);
+        handler.close();
+        String log = read(file);
+        Assert.assertFalse(log.contains("before the crash"));
+        Assert.assertTrue(log.contains("(recovered) written"));
+        Assert.assertTrue(log.contains("(recovered) not written"));
+        Assert.assertTrue(log.indexOf("(recovered) written") < log.indexOf("not written"));
+    }
+
+    @Test
+    public void testRing() throws Exception {
+        File ring = new File("ring.journal").getAbsoluteFile();
+        LogJournal journal = new LogJournal(ring, 300);
+        for (int i = 0; i < 25; i++) {
+            journal.append(LogJournal.encode(new LogRecord(Level.INFO, "ring " + i)), i);
+        }
+        List<LogRecord> records = LogJournal.recover(ring);
+        Assert.assertTrue(records.size() > 1);
+        Assert.assertTrue(records.size() < 25);
+        int first = 25 - records.size();
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(records.get(i).getMessage(), "(recovered) ring " + (first + i));
+        }
+        journal.commit(23);
+        records = LogJournal.recover(ring);
+        Assert.assertEquals(records.size(), 1);
+        Assert.assertEquals(records.get(0).getMessage(), "(recovered) ring 24");
+        journal.commit(24);
+        Assert.assertFalse(journal.hasEntries());
+        journal.close();
+        ring.delete();
+    }
+
+    private String read(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len = in.read(buf);
+        while (len > 0) {
+            out.write(buf, 0, len);
+            len = in.read(buf);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.comfortanalytics.alog;
+
+import java.util.Calendar;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class JsonTest {
+
+    @Test
+    public void testEscape() {
+        StringBuilder buf = new StringBuilder();
+        JsonWriter.appendString("plain", buf);
+        Assert.assertEquals(buf.toString(), "\"plain\"");
+        buf.setLength(0);
+        JsonWriter.appendString("a\"b\\c\nd\u0001", buf);
+        Assert.assertEquals(buf.toString(), "\"a\\\"b\\\\c\\nd\\u0001\"");
+    }
+
+    @Test
+    public void testRecord() {
+        LogRecord record = new LogRecord(Level.WARNING, "hello %s");
+        record.setLoggerName("json");
+        record.setParameters(new Object[]{"world"});
+        record.setThrown(new IllegalStateException("bad", new Exception("cause")));
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        renderer.setMaxDepth(2);
+        StringBuilder buf = new StringBuilder();
+        JsonWriter.format(record, buf, Calendar.getInstance(), renderer);
+        String json = buf.toString();
+        Assert.assertTrue(json.startsWith("{\"ts\":\""));
+        Assert.assertTrue(json.endsWith("}" + Utils.LINE_SEPARATOR));
+        Assert.assertEquals(json.indexOf('\n'), json.length() - 1);
+        Assert.assertTrue(json.contains("\"level\":\"WARNING\""));
+        Assert.assertTrue(json.contains("\"logger\":\"json\""));
+        Assert.assertTrue(json.contains("\"msg\":\"hello world\""));
+        Assert.assertTrue(json.contains("\"exception\":{\"class\":"
+                + "\"java.lang.IllegalStateException\",\"message\":\"bad\""));
+        Assert.assertTrue(json.contains("\"cause\":{\"class\":\"java.lang.Exception\""));
+        int open = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char ch = json.charAt(i);
+            if (ch == '{') {
+                open++;
+            } else if (ch == '}') {
+                open--;
+            }
+        }
+        Assert.assertEquals(open, 0);
+    }
+
+}
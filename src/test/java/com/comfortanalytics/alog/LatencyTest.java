@@ -0,0 +1,91 @@
+package com.comfortanalytics.alog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class LatencyTest {
+
+    private static final long HOLD = 50;
+    private static final long MILLIS = 1000 * 1000;
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testEndToEnd() throws Exception {
+        SlowHandler handler = new SlowHandler();
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        handler.started.await();
+        for (int i = 0; i < 19; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+        //every record is queued before the writer is released, so each waits at least this
+        long start = System.nanoTime();
+        Thread.sleep(HOLD);
+        while ((System.nanoTime() - start) < (HOLD * MILLIS)) {
+            Thread.sleep(1);
+        }
+        handler.release.countDown();
+        handler.close();
+        LatencyHistogram queue = handler.getQueueLatency();
+        LatencyHistogram completion = handler.getCompletionLatency();
+        Assert.assertEquals(queue.getCount(), 20);
+        Assert.assertEquals(completion.getCount(), 20);
+        //all but the first record waited in the queue for the release
+        Assert.assertTrue(queue.getPercentile(50) >= (HOLD * MILLIS));
+        Assert.assertTrue(queue.getMax() >= (HOLD * MILLIS));
+        //the first was being written until the release
+        Assert.assertTrue(completion.getPercentile(0) >= (HOLD * MILLIS));
+        Assert.assertTrue(completion.getMax() >= queue.getMax());
+        Assert.assertTrue(completion.getPercentile(50) >= queue.getPercentile(50));
+        LatencyHistogram durable = handler.getDurableLatency();
+        Assert.assertTrue(durable.getCount() > 0);
+        Assert.assertTrue(durable.getMax() >= (HOLD * MILLIS));
+    }
+
+    private static class SlowHandler extends AsyncLogHandler {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        SlowHandler() {
+            configure();
+            start();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        protected String getThreadName() {
+            return "slow";
+        }
+
+        @Override
+        protected void write(LogRecord record) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.comfortanalytics.alog;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class LazyTest {
+
+    private File file = new File("lazy.log").getAbsoluteFile();
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        file.delete();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        file.delete();
+    }
+
+    @Test
+    public void test() throws Exception {
+        //other tests in the same JVM may have started it already
+        boolean watchdog = hasThread("Alog Watchdog");
+        FileLogHandler handler = FileLogHandler.getHandler(file);
+        handler.setLevel(Level.INFO);
+        handler.publish(new LogRecord(Level.FINE, "fine"));
+        Thread.sleep(50);
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(hasThread(file.getName()));
+        Assert.assertEquals(hasThread("Alog Watchdog"), watchdog);
+        handler.publish(new LogRecord(Level.INFO, "info"));
+        handler.waitForEmptyQueue(true);
+        Assert.assertTrue(file.exists());
+        Assert.assertTrue(hasThread(file.getName()));
+        Assert.assertTrue(hasThread("Alog Watchdog"));
+        handler.close();
+        Assert.assertTrue(file.length() > 0);
+    }
+
+    private boolean hasThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
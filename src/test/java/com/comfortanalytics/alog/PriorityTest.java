@@ -0,0 +1,94 @@
+package com.comfortanalytics.alog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class PriorityTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        AsyncLogHandler.PRIORITY_BACKLOG = 100;
+    }
+
+    @Test
+    public void test() throws Exception {
+        AsyncLogHandler.PRIORITY_BACKLOG = 5;
+        BlockingHandler handler = new BlockingHandler();
+        handler.setLevel(Level.ALL);
+        handler.setFormat(LogFormat.JSON);
+        handler.setMaxQueueSize(10);
+        handler.setPriorityQueueSize(2);
+        handler.publish(new LogRecord(Level.FINE, "first"));
+        handler.started.await();
+        //the write thread is now blocked, fill the main queue
+        for (int i = 0; i < 20; i++) {
+            handler.publish(new LogRecord(Level.INFO, "info" + i));
+        }
+        Assert.assertEquals(handler.backlog(), 10);
+        handler.publish(new LogRecord(Level.SEVERE, "severe"));
+        handler.publish(new LogRecord(Level.WARNING, "warning"));
+        handler.publish(new LogRecord(Level.SEVERE, "dropped"));
+        Assert.assertEquals(handler.backlog(), 12);
+        handler.release.countDown();
+        handler.close();
+        List<String> lines = handler.lines;
+        Assert.assertEquals(lines.size(), 13);
+        Assert.assertTrue(lines.get(0).contains("\"first\""));
+        Assert.assertTrue(lines.get(1).contains("\"severe\""));
+        Assert.assertTrue(lines.get(1).contains("\"seq\":12"));
+        Assert.assertTrue(lines.get(2).contains("\"warning\""));
+        Assert.assertTrue(lines.get(3).contains("\"info0\""));
+        Assert.assertTrue(lines.get(3).contains("\"seq\":2"));
+    }
+
+    private static class BlockingHandler extends AsyncLogHandler {
+
+        final List<String> lines = new ArrayList<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        BlockingHandler() {
+            configure();
+            start();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        protected String getThreadName() {
+            return "priority";
+        }
+
+        @Override
+        protected void write(LogRecord record) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+            synchronized (lines) {
+                lines.add(format(record).toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.comfortanalytics.alog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class QueueBytesTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        AsyncLogHandler.setGlobalMaxQueueBytes(0);
+    }
+
+    @Test
+    public void testGlobal() throws Exception {
+        BlockingHandler one = new BlockingHandler();
+        BlockingHandler two = new BlockingHandler();
+        AsyncLogHandler.setGlobalMaxQueueBytes(5000);
+        one.block();
+        two.block();
+        for (int i = 0; i < 20; i++) {
+            one.publish(new LogRecord(Level.INFO, message(500)));
+            two.publish(new LogRecord(Level.INFO, message(500)));
+        }
+        Assert.assertTrue((one.backlogBytes() + two.backlogBytes()) <= 5000);
+        Assert.assertTrue(two.backlog() > 0);
+        Assert.assertEquals(two.dropReason(Level.INFO.intValue(), 500), "global");
+        //the limit isn't hit by an empty record
+        Assert.assertEquals(two.dropReason(Level.INFO.intValue(), 0), "overflow");
+        one.close();
+        two.close();
+        AsyncLogHandler.setGlobalMaxQueueBytes(0);
+    }
+
+    @Test
+    public void testMaxQueueBytes() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        handler.setMaxQueueBytes(5000);
+        handler.block();
+        for (int i = 0; i < 20; i++) {
+            handler.publish(new LogRecord(Level.INFO, message(500)));
+        }
+        int backlog = handler.backlog();
+        Assert.assertTrue(backlog > 0);
+        Assert.assertTrue(backlog < 20);
+        Assert.assertTrue(handler.backlogBytes() <= 5000);
+        Assert.assertEquals(handler.dropReason(Level.INFO.intValue(), 500), "bytes");
+        //warnings still have the priority lane
+        handler.publish(new LogRecord(Level.WARNING, message(500)));
+        Assert.assertEquals(handler.backlog(), backlog + 1);
+        handler.close();
+        Assert.assertEquals(handler.lines.size(), backlog + 2);
+    }
+
+    @Test
+    public void testPriorityBytes() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        handler.setMaxQueueBytes(20000);
+        handler.block();
+        for (int i = 0; i < 20; i++) {
+            handler.publish(new LogRecord(Level.WARNING, message(1000)));
+        }
+        //the main queue holds what the priority lane's quarter can't
+        Assert.assertTrue(handler.backlog() < 20);
+        Assert.assertTrue(handler.backlogBytes() <= 25000);
+        handler.close();
+    }
+
+    @Test
+    public void testThrownEstimate() {
+        Exception shallow = new Exception("shallow");
+        shallow.setStackTrace(frames(1));
+        Exception deep = new Exception("deep", shallow);
+        deep.setStackTrace(frames(1000));
+        long small = AsyncLogHandler.estimateThrown(shallow);
+        Assert.assertTrue(AsyncLogHandler.estimateThrown(deep) > (small + 50000));
+        Assert.assertTrue(AsyncLogHandler.estimateSize("msg", null, deep)
+                                  > AsyncLogHandler.estimateSize("msg", null, shallow));
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        handler.setMaxMessageSize(10);
+        LogRecord record = new LogRecord(Level.INFO, "%s " + message(50));
+        record.setParameters(new Object[]{"param"});
+        handler.publish(record);
+        record = new LogRecord(Level.INFO, "short %s");
+        record.setParameters(new Object[]{message(20)});
+        handler.publish(record);
+        handler.close();
+        Assert.assertTrue(handler.lines.get(0).contains(" - param xxxx... [46 chars truncated]"));
+        Assert.assertTrue(handler.lines.get(1).contains(
+                " - short xxxxxxxxxx... [10 chars truncated]"));
+    }
+
+    private StackTraceElement[] frames(int count) {
+        StackTraceElement[] ret = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = new StackTraceElement("Class", "method", "Class.java", i);
+        }
+        return ret;
+    }
+
+    private String message(int len) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            buf.append('x');
+        }
+        return buf.toString();
+    }
+
+    private static class BlockingHandler extends AsyncLogHandler {
+
+        final List<String> lines = new ArrayList<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        BlockingHandler() {
+            configure();
+            start();
+        }
+
+        /**
+         * Blocks the write thread until the handler is closed.
+         */
+        void block() throws Exception {
+            publish(new LogRecord(Level.SEVERE, "block"));
+            started.await();
+        }
+
+        @Override
+        public void close() {
+            release.countDown();
+            super.close();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        protected String getThreadName() {
+            return "bytes";
+        }
+
+        @Override
+        protected void write(LogRecord record) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+            synchronized (lines) {
+                lines.add(format(record).toString());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class RecorderTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testAlogLogger() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = newHandler(bytes);
+        Logger logger = Logger.getLogger("recorder");
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(handler);
+        AlogLogger log = Alog.getAlogLogger("recorder");
+        AlogLogger.refresh();
+        for (int i = 0; i < 5; i++) {
+            log.log(Level.FINE, "fine %d", i);
+        }
+        log.log(Level.SEVERE, "boom %d", 1);
+        handler.close();
+        logger.removeHandler(handler);
+        String out = bytes.toString();
+        Assert.assertFalse(out.contains("fine 1"));
+        Assert.assertTrue(out.contains("fine 2"));
+        Assert.assertTrue(out.indexOf("fine 4") < out.indexOf("boom 1"));
+    }
+
+    @Test
+    public void testNotTriggered() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = newHandler(bytes);
+        handler.publish(new LogRecord(Level.FINE, "fine"));
+        handler.publish(new LogRecord(Level.INFO, "info"));
+        handler.publish(new LogRecord(Level.WARNING, "warning"));
+        handler.close();
+        String out = bytes.toString();
+        Assert.assertFalse(out.contains("fine"));
+        Assert.assertTrue(out.contains("info"));
+        Assert.assertTrue(out.contains("warning"));
+    }
+
+    @Test
+    public void testPerThread() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStreamLogHandler handler = newHandler(bytes);
+        handler.setRecorderPerThread(true);
+        Thread other = new Thread() {
+            public void run() {
+                handler.publish(new LogRecord(Level.FINE, "other"));
+            }
+        };
+        other.start();
+        other.join();
+        handler.publish(new LogRecord(Level.FINE, "mine"));
+        handler.publish(new LogRecord(Level.SEVERE, "boom"));
+        handler.close();
+        String out = bytes.toString();
+        Assert.assertFalse(out.contains("other"));
+        Assert.assertTrue(out.contains("mine"));
+    }
+
+    @Test
+    public void testTrigger() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = newHandler(bytes);
+        for (int i = 0; i < 5; i++) {
+            LogRecord record = new LogRecord(Level.FINE, "fine {0}");
+            record.setParameters(new Object[]{new StringBuilder("sb" + i)});
+            handler.publish(record);
+        }
+        handler.publish(new LogRecord(Level.SEVERE, "boom"));
+        handler.publish(new LogRecord(Level.FINE, "after"));
+        handler.close();
+        String out = bytes.toString();
+        Assert.assertFalse(out.contains("sb1"));
+        Assert.assertFalse(out.contains("after"));
+        int idx = out.indexOf("sb2");
+        Assert.assertTrue(idx >= 0);
+        Assert.assertTrue(idx < out.indexOf("sb3"));
+        Assert.assertTrue(out.indexOf("sb4") < out.indexOf("boom"));
+    }
+
+    private PrintStreamLogHandler newHandler(ByteArrayOutputStream bytes) {
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "recorder", new PrintStream(bytes, true));
+        handler.setLevel(Level.ALL);
+        handler.setRecorderSize(3);
+        handler.setRecorderLevel(Level.INFO);
+        return handler;
+    }
+
+}
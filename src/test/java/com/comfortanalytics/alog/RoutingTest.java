@@ -0,0 +1,162 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class RoutingTest {
+
+    private File dir = new File("routing").getAbsoluteFile();
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        clean();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        clean();
+    }
+
+    @AfterMethod
+    public void clean() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testBackups() throws Exception {
+        RoutingLogHandler handler = new RoutingLogHandler("routing", dir);
+        handler.setRouteDepth(1);
+        handler.setBackupThreshold(10);
+        handler.setMaxBackups(2);
+        for (int i = 0; i < 4; i++) {
+            handler.publish(record("big.one", "backup" + i));
+            handler.publish(record("small", "small" + i));
+            handler.waitForEmptyQueue(true);
+        }
+        handler.close();
+        Assert.assertEquals(FileLogHandler.getBackups(new File(dir, "big.log")).length, 2);
+        Assert.assertEquals(FileLogHandler.getBackups(new File(dir, "small.log")).length, 2);
+    }
+
+    @Test
+    public void testIdle() throws Exception {
+        RoutingLogHandler handler = new RoutingLogHandler("routing", dir);
+        handler.setIdleTimeout(100);
+        handler.publish(record("idle", "idle"));
+        handler.waitForEmptyQueue(true);
+        long start = System.currentTimeMillis();
+        while (handler.getOpenFiles() > 0) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+        handler.publish(record("idle", "reopened"));
+        handler.close();
+        String log = read(new File(dir, "idle.log"));
+        Assert.assertTrue(log.contains("idle"));
+        Assert.assertTrue(log.contains("reopened"));
+    }
+
+    @Test
+    public void testKeys() {
+        RoutingLogHandler handler = new RoutingLogHandler("routing", dir);
+        Assert.assertEquals(handler.getKey(record("a.b.c", "msg")), "a.b.c");
+        handler.setRouteDepth(2);
+        Assert.assertEquals(handler.getKey(record("a.b.c", "msg")), "a.b");
+        Assert.assertEquals(handler.getKey(record("a", "msg")), "a");
+        Assert.assertEquals(handler.getKey(record("", "msg")), RoutingLogHandler.DEFAULT_KEY);
+        handler.setRouteParameter(1);
+        LogRecord record = record("a.b.c", "{0} {1}");
+        record.setParameters(new Object[]{"x", "tenant"});
+        Assert.assertEquals(handler.getKey(record), "tenant");
+        record.setParameters(new Object[]{"x"});
+        Assert.assertEquals(handler.getKey(record), RoutingLogHandler.DEFAULT_KEY);
+        handler.close();
+        //a shared trace cache could refer to a trace in another file
+        handler.setTraceCacheSize(10);
+        Assert.assertEquals(handler.getTraceCacheSize(), 0);
+        Assert.assertEquals(RoutingLogHandler.sanitize("a-b_c.d"), "a-b_c.d");
+        Assert.assertEquals(RoutingLogHandler.sanitize("../x y"), "_._x_y");
+    }
+
+    @Test
+    public void testMutableParameter() throws Exception {
+        RoutingLogHandler handler = new RoutingLogHandler("routing", dir);
+        handler.setRouteParameter(1);
+        handler.setMaxMessageSize(1000);
+        //an unfamiliar number has the message formatted before it's queued
+        StringBuilder tenant = new StringBuilder("tenant");
+        LogRecord record = record("any", "{0} for {1}");
+        record.setParameters(new Object[]{new AtomicLong(5), tenant});
+        handler.publish(record);
+        tenant.setLength(0);
+        tenant.append("other");
+        handler.close();
+        Assert.assertTrue(read(new File(dir, "tenant.log")).contains("5 for tenant"));
+        Assert.assertFalse(new File(dir, RoutingLogHandler.DEFAULT_KEY + ".log").exists());
+        Assert.assertFalse(new File(dir, "other.log").exists());
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        RoutingLogHandler handler = new RoutingLogHandler("routing", dir);
+        handler.setRouteDepth(1);
+        handler.setMaxOpenFiles(2);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 5; j++) {
+                handler.publish(record("tenant" + j + ".sub", "tenant" + j + " record" + i));
+            }
+        }
+        handler.waitForEmptyQueue(true);
+        Assert.assertTrue(handler.getOpenFiles() <= 2);
+        handler.close();
+        Assert.assertEquals(handler.getOpenFiles(), 0);
+        for (int j = 0; j < 5; j++) {
+            String log = read(new File(dir, "tenant" + j + ".log"));
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(log.contains("tenant" + j + " record" + i));
+            }
+            Assert.assertFalse(log.contains("tenant" + ((j + 1) % 5) + " "));
+        }
+    }
+
+    private String read(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len = in.read(buf);
+        while (len > 0) {
+            out.write(buf, 0, len);
+            len = in.read(buf);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private LogRecord record(String logger, String msg) {
+        LogRecord record = new LogRecord(Level.INFO, msg);
+        record.setLoggerName(logger);
+        return record;
+    }
+
+}
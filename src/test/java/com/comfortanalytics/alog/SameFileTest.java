@@ -32,6 +32,39 @@ public class SameFileTest {
         Logger log = Alog.getLogger("same", file);
         Logger another = Alog.getLogger("anothersame", file);
         Assert.assertEquals(log.getHandlers()[0], another.getHandlers()[0]);
+        Assert.assertSame(Alog.getLogger("same", file), log);
+        Assert.assertEquals(log.getHandlers().length, 1);
+    }
+
+    @Test
+    public void testCanonical() {
+        File dir = file.getParentFile();
+        File alias = new File(new File(dir, "."), file.getName());
+        Assert.assertSame(FileLogHandler.getHandler(alias), FileLogHandler.getHandler(file));
+        FileLogHandler handler = FileLogHandler.getHandler(file);
+        handler.close();
+        Assert.assertNotSame(FileLogHandler.getHandler(alias), handler);
+        Assert.assertSame(FileLogHandler.getHandler(alias), FileLogHandler.getHandler(file));
+    }
+
+    @Test
+    public void testCloseRace() throws Exception {
+        final File alias = new File(new File(file.getParentFile(), "."), file.getName());
+        for (int i = 0; i < 100; i++) {
+            final FileLogHandler handler = FileLogHandler.getHandler(file);
+            Thread closer = new Thread() {
+                @Override
+                public void run() {
+                    handler.close();
+                }
+            };
+            closer.start();
+            FileLogHandler.getHandler(alias);
+            closer.join();
+            //a closed handler must never be cached for the alias
+            Assert.assertNotSame(FileLogHandler.getHandler(alias), handler);
+            Assert.assertSame(FileLogHandler.getHandler(alias), FileLogHandler.getHandler(file));
+        }
     }
 
 }
@@ -0,0 +1,50 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class SameStreamTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void test() {
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        Logger first = Alog.getLogger("sameStream.first", out);
+        Logger second = Alog.getLogger("sameStream.second", out);
+        PrintStreamLogHandler handler = PrintStreamLogHandler.getHandler(out);
+        Assert.assertSame(first.getHandlers()[0], handler);
+        Assert.assertSame(second.getHandlers()[0], handler);
+        Assert.assertSame(Alog.getLogger("sameStream.first", out), first);
+        Assert.assertEquals(first.getHandlers().length, 1);
+        //another stream gets another handler
+        PrintStream other = new PrintStream(new ByteArrayOutputStream());
+        Alog.getLogger("sameStream.first", other);
+        Assert.assertEquals(first.getHandlers().length, 2);
+        Assert.assertNotSame(first.getHandlers()[1], handler);
+        //closed handlers are replaced
+        LogManager.getLogManager().reset();
+        first = Alog.getLogger("sameStream.first", out);
+        Assert.assertEquals(first.getHandlers().length, 1);
+        Assert.assertNotSame(first.getHandlers()[0], handler);
+        Assert.assertSame(first.getHandlers()[0], PrintStreamLogHandler.getHandler(out));
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class ShardTest {
+
+    private static final int RECORDS = 200;
+    private static final int SHARDS = 3;
+    private static final int THREADS = 6;
+
+    private File file = new File("shard.log").getAbsoluteFile();
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+        clean();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+        clean();
+    }
+
+    @AfterMethod
+    public void clean() {
+        for (int i = 0; i < SHARDS; i++) {
+            File shard = ShardedLogHandler.shardFile(file, i);
+            for (File f : FileLogHandler.getBackups(shard)) {
+                f.delete();
+            }
+            shard.delete();
+        }
+    }
+
+    @Test
+    public void testBackups() throws Exception {
+        ShardedLogHandler handler = new ShardedLogHandler(file, SHARDS);
+        for (FileLogHandler shard : handler.getShards()) {
+            shard.setBackupThreshold(5000);
+            shard.setMaxBackups(1000);
+        }
+        publish(handler);
+        handler.close();
+        Assert.assertTrue(FileLogHandler.getBackups(
+                ShardedLogHandler.shardFile(file, 0)).length > 0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false, "UTF-8");
+        Assert.assertEquals(LogMerge.merge(file, false, out), (long) count(file, false));
+        Assert.assertTrue(count(file, false) < (RECORDS * THREADS));
+        assertMerged(file, true);
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        ShardedLogHandler handler = new ShardedLogHandler(file, SHARDS);
+        Assert.assertEquals(handler.getShards().length, SHARDS);
+        publish(handler);
+        handler.close();
+        for (int i = 0; i < SHARDS; i++) {
+            Assert.assertTrue(ShardedLogHandler.shardFile(file, i).length() > 0);
+        }
+        assertMerged(file, false);
+    }
+
+    @Test
+    public void testSequence() {
+        Assert.assertEquals(LogMerge.parseSequence("{\"ts\":\"x\",\"seq\":123,\"msg\":\"a\"}"),
+                            123);
+        Assert.assertEquals(LogMerge.parseSequence("{\"msg\":\"\\\"seq\\\":5\"}"), -1);
+        Assert.assertEquals(LogMerge.parseSequence("[text] INFO - log - msg"), -1);
+    }
+
+    /**
+     * Every record is present once, in sequence order, and the records of each thread are
+     * in the order they were published.
+     */
+    private void assertMerged(File file, boolean backups) throws Exception {
+        LogMerge merge = new LogMerge(file, backups);
+        Assert.assertEquals(merge.getShardCount(), SHARDS);
+        int[] next = new int[THREADS];
+        long last = 0;
+        int count = 0;
+        String line = merge.readLine();
+        while (line != null) {
+            long seq = LogMerge.parseSequence(line);
+            Assert.assertTrue(seq > last);
+            last = seq;
+            int idx = line.indexOf("\"msg\":\"") + 7;
+            int thread = line.charAt(idx + 6) - '0';
+            int record = Integer.parseInt(line.substring(idx + 15, line.indexOf('"', idx)));
+            Assert.assertEquals(record, next[thread]++);
+            count++;
+            line = merge.readLine();
+        }
+        merge.close();
+        Assert.assertEquals(count, RECORDS * THREADS);
+    }
+
+    private int count(File file, boolean backups) throws Exception {
+        LogMerge merge = new LogMerge(file, backups);
+        int ret = 0;
+        while (merge.readLine() != null) {
+            ret++;
+        }
+        merge.close();
+        return ret;
+    }
+
+    private void publish(final ShardedLogHandler handler) throws Exception {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < RECORDS; j++) {
+                        LogRecord record = new LogRecord(
+                                Level.INFO, "thread" + id + " record " + j);
+                        record.setLoggerName("shard");
+                        handler.publish(record);
+                    }
+                }
+            };
+        }
+        //started together, so the thread ids are consecutive and cover every shard
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+}
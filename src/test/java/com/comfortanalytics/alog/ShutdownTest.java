@@ -0,0 +1,99 @@
+package com.comfortanalytics.alog;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class ShutdownTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        SlowHandler handler = new SlowHandler(new CountDownLatch(1));
+        for (int i = 0; i < 5; i++) {
+            handler.publish(new LogRecord(Level.INFO, "blocked"));
+        }
+        long start = System.currentTimeMillis();
+        Map<AsyncLogHandler, Integer> remaining = AsyncLogHandler.closeAll(200);
+        Assert.assertTrue((System.currentTimeMillis() - start) < 2000);
+        Assert.assertEquals(remaining.size(), 1);
+        Assert.assertEquals(remaining.get(handler), Integer.valueOf(5));
+        handler.release.countDown();
+        handler.close();
+        Assert.assertEquals(handler.written, 5);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        CountDownLatch release = new CountDownLatch(0);
+        SlowHandler[] handlers = new SlowHandler[4];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new SlowHandler(release);
+        }
+        for (int i = 0; i < 20; i++) {
+            for (SlowHandler handler : handlers) {
+                handler.publish(new LogRecord(Level.INFO, "record"));
+            }
+        }
+        //each handler needs 400ms, sequential closes would take at least 1600ms
+        long start = System.currentTimeMillis();
+        Map<AsyncLogHandler, Integer> remaining = AsyncLogHandler.closeAll(10000);
+        Assert.assertTrue((System.currentTimeMillis() - start) < 1200);
+        Assert.assertEquals(remaining.size(), 0);
+        for (SlowHandler handler : handlers) {
+            Assert.assertEquals(handler.written, 20);
+            handler.publish(new LogRecord(Level.INFO, "closed"));
+            Assert.assertEquals(handler.backlog(), 0);
+        }
+    }
+
+    private static class SlowHandler extends AsyncLogHandler {
+
+        final CountDownLatch release;
+        volatile int written;
+
+        SlowHandler(CountDownLatch release) {
+            this.release = release;
+            configure();
+            start();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        protected String getThreadName() {
+            return "slow";
+        }
+
+        @Override
+        protected void write(LogRecord record) {
+            try {
+                release.await();
+                Thread.sleep(20);
+            } catch (InterruptedException ignore) {
+            }
+            written++;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.comfortanalytics.alog;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.util.Date;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class TemplateTest {
+
+    @Test
+    public void testBraces() {
+        assertBraces("{0} and {1}", "a", 12345);
+        assertBraces("value {0}", 1.23456d);
+        assertBraces("missing {1}", "a");
+        assertBraces("null {0}", (Object) null);
+        assertBraces("quoted '{0}' {0}", "a");
+        assertBraces("typed {0,number,#.#}", 1.25d);
+        assertBraces("date {0}", new Date(0));
+    }
+
+    @Test
+    public void testCache() {
+        Assert.assertSame(MessageTemplate.get("cached %s"), MessageTemplate.get("cached %s"));
+        StringBuilder buf = new StringBuilder("prefix ");
+        MessageTemplate.get("%s=%d").format(new Object[]{"a", 1}, buf);
+        Assert.assertEquals(buf.toString(), "prefix a=1");
+    }
+
+    @Test
+    public void testPrintf() {
+        assertPrintf("%s and %d", "a", 42);
+        assertPrintf("%d%%", 99L);
+        assertPrintf("line%nbreak");
+        assertPrintf("null %s %d", null, null);
+        assertPrintf("width %5d", 3);
+        assertPrintf("decimal %.2f", 1.2345d);
+        assertPrintf("big %s %d", new BigDecimal("1.5"), 7);
+        assertPrintf("no params");
+        assertPrintf("extra %s", "a", "b");
+    }
+
+    private void assertBraces(String pattern, Object... params) {
+        Assert.assertEquals(MessageTemplate.get(pattern).format(params),
+                            MessageFormat.format(pattern, params));
+    }
+
+    private void assertPrintf(String pattern, Object... params) {
+        Assert.assertEquals(MessageTemplate.get(pattern).format(params),
+                            String.format(pattern, params));
+    }
+
+}
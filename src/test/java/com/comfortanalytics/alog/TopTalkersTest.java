@@ -0,0 +1,178 @@
+package com.comfortanalytics.alog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class TopTalkersTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testDrops() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        AsyncLogHandler handler = new AsyncLogHandler() {
+            {
+                configure();
+                start();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            protected String getThreadName() {
+                return "drops";
+            }
+
+            @Override
+            protected void write(LogRecord record) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        handler.setTopTalkerSize(10);
+        handler.setMaxQueueSize(5);
+        handler.publish(record("blocker", "block"));
+        started.await();
+        for (int i = 0; i < 20; i++) {
+            handler.publish(record("dropped", "dropped"));
+        }
+        release.countDown();
+        handler.close();
+        TopTalkers.Entry entry = find(handler.getTopLoggers().getTop(10), "dropped");
+        Assert.assertEquals(entry.getRecords() + entry.getDrops(), 20);
+        Assert.assertTrue(entry.getDrops() > 0);
+        Assert.assertEquals(handler.getTopLoggers().getTotalDrops(), entry.getDrops());
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "talkers", new PrintStream(bytes, true));
+        handler.setTopTalkerSize(10);
+        for (int i = 0; i < 50; i++) {
+            LogRecord record = record("noisy", "noisy {0}");
+            record.setParameters(new Object[]{i});
+            handler.publish(record);
+        }
+        for (int i = 0; i < 5; i++) {
+            handler.publish(record("quiet", "quiet"));
+        }
+        handler.close();
+        List<TopTalkers.Entry> top = handler.getTopLoggers().getTop(1);
+        Assert.assertEquals(top.size(), 1);
+        Assert.assertEquals(top.get(0).getKey(), "noisy");
+        Assert.assertEquals(top.get(0).getRecords(), 50);
+        Assert.assertTrue(top.get(0).getBytes() > 0);
+        Assert.assertEquals(handler.getTopTemplates().getTop(1).get(0).getKey(), "noisy {0}");
+        Assert.assertEquals(handler.getTopLoggers().getTotalRecords(), 55);
+        Assert.assertEquals(handler.getTopLoggers().getTotalBytes(), bytes.size());
+    }
+
+    @Test
+    public void testSketch() {
+        TopTalkers talkers = new TopTalkers(3);
+        for (int i = 0; i < 100; i++) {
+            talkers.record("heavy", 100);
+            talkers.record("key" + i, 1);
+        }
+        List<TopTalkers.Entry> top = talkers.getTop(10);
+        Assert.assertEquals(top.size(), 3);
+        TopTalkers.Entry heavy = top.get(0);
+        Assert.assertEquals(heavy.getKey(), "heavy");
+        Assert.assertEquals(heavy.getRecords(), 100);
+        Assert.assertEquals(heavy.getBytes(), 10000);
+        Assert.assertEquals(heavy.getError(), 0);
+        for (TopTalkers.Entry entry : top.subList(1, top.size())) {
+            //never under counted, and over counted by at most the error
+            Assert.assertTrue(entry.getBytes() >= 1);
+            Assert.assertTrue((entry.getBytes() - entry.getError()) <= 1);
+        }
+        Assert.assertEquals(talkers.getTotalBytes(), 10100);
+        //drops are weighed separately, so no key has more bytes than the total
+        talkers.drop("heavy", 100000);
+        heavy = talkers.getTop(1).get(0);
+        Assert.assertEquals(heavy.getBytes(), 10000);
+        Assert.assertEquals(heavy.getDrops(), 1);
+        Assert.assertEquals(heavy.getDroppedBytes(), 100000);
+        Assert.assertEquals(talkers.getTotalDroppedBytes(), 100000);
+        talkers.drop("new", 10);
+        //more drops than can wait to be attributed are still counted in the totals
+        for (int i = 0; i < TopTalkers.PENDING_DROPS * 2; i++) {
+            talkers.drop("flood", 1);
+        }
+        Assert.assertEquals(talkers.getTotalDrops(), 2 + TopTalkers.PENDING_DROPS * 2);
+        Assert.assertTrue(find(talkers.getTop(10), "flood").getDrops() > 0);
+        for (TopTalkers.Entry entry : talkers.getTop(10)) {
+            Assert.assertTrue(entry.getBytes() <= talkers.getTotalBytes());
+        }
+        talkers.reset();
+        Assert.assertEquals(talkers.getTop(10).size(), 0);
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStreamLogHandler handler = new PrintStreamLogHandler(
+                "talkers", new PrintStream(bytes, true));
+        handler.setFormat(LogFormat.JSON);
+        handler.setTopTalkerSize(10);
+        handler.setTopTalkerInterval(100);
+        handler.publish(record("summary", "summarized"));
+        long start = System.currentTimeMillis();
+        while (!bytes.toString().contains("Top talkers")) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+        handler.close();
+        String out = bytes.toString();
+        Assert.assertTrue(out.contains("Top talkers for the last 100ms: "));
+        //only the published record has a sequence number
+        Assert.assertEquals(out.split("\"seq\":").length, 2);
+        Assert.assertTrue(out.contains("Loggers:"));
+        Assert.assertTrue(out.contains("summary records=1"));
+        Assert.assertTrue(out.contains("summarized records=1"));
+    }
+
+    private TopTalkers.Entry find(List<TopTalkers.Entry> entries, String key) {
+        for (TopTalkers.Entry entry : entries) {
+            if (entry.getKey().equals(key)) {
+                return entry;
+            }
+        }
+        throw new IllegalStateException("Missing " + key);
+    }
+
+    private LogRecord record(String logger, String msg) {
+        LogRecord record = new LogRecord(Level.INFO, msg);
+        record.setLoggerName(logger);
+        return record;
+    }
+
+}
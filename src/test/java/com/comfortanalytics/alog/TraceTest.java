@@ -0,0 +1,99 @@
+package com.comfortanalytics.alog;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class TraceTest {
+
+    @Test
+    public void testCache() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        renderer.setCacheSize(10);
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            Exception x = new IllegalStateException("msg" + i, new Exception("cause"));
+            renderer.render(x, i == 0 ? first : second);
+        }
+        Assert.assertTrue(first.indexOf("[trace ") > 0);
+        Assert.assertTrue(first.indexOf("\tat ") > 0);
+        Assert.assertTrue(second.indexOf("[same trace as ") > 0);
+        Assert.assertTrue(second.indexOf("msg1") > 0);
+        Assert.assertTrue(second.indexOf("Caused by: java.lang.Exception: cause") > 0);
+        Assert.assertTrue(second.indexOf("\tat ") < 0);
+        renderer.clear();
+        StringBuilder third = new StringBuilder();
+        renderer.render(new IllegalStateException("msg2", new Exception("cause")), third);
+        Assert.assertTrue(third.indexOf("[trace ") > 0);
+    }
+
+    @Test
+    public void testCollision() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        renderer.setCacheSize(10);
+        //moving a line from the second frame to the first keeps the hash the same
+        Exception a = trace(100, 200);
+        Exception b = trace(101, 200 - 31);
+        StringBuilder buf = new StringBuilder();
+        renderer.render(a, buf);
+        String id = renderer.lookup(a);
+        renderer.render(b, buf);
+        Assert.assertFalse(renderer.isRepeat());
+        Assert.assertEquals(renderer.lookup(b), id + "-1");
+        Assert.assertTrue(buf.indexOf("[trace " + id + "-1]") > 0);
+        buf.setLength(0);
+        renderer.render(b, buf);
+        Assert.assertTrue(buf.indexOf("[same trace as " + id + "-1]") > 0);
+    }
+
+    @Test
+    public void testDepth() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        renderer.setMaxDepth(1);
+        StringBuilder buf = new StringBuilder();
+        renderer.render(new Exception(), buf);
+        Assert.assertEquals(count(buf, "\tat "), 1);
+        Assert.assertTrue(buf.indexOf(" more") > 0);
+    }
+
+    @Test
+    public void testFolding() {
+        ThrowableRenderer renderer = new ThrowableRenderer();
+        Exception x = new Exception();
+        StackTraceElement[] trace = new StackTraceElement[]{
+                new StackTraceElement("com.foo.A", "a", "A.java", 1),
+                new StackTraceElement("org.framework.B", "b", "B.java", 2),
+                new StackTraceElement("org.framework.C", "c", "C.java", 3),
+                new StackTraceElement("com.foo.D", "d", "D.java", 4)
+        };
+        x.setStackTrace(trace);
+        renderer.setFoldPackages(ThrowableRenderer.parsePackages(" org.framework. ,"));
+        StringBuilder buf = new StringBuilder();
+        renderer.render(x, buf);
+        Assert.assertEquals(count(buf, "\tat "), 2);
+        Assert.assertTrue(buf.indexOf("... 2 folded") > 0);
+    }
+
+    private Exception trace(int first, int second) {
+        Exception x = new Exception();
+        x.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.foo.A", "a", "A.java", first),
+                new StackTraceElement("com.foo.A", "a", "A.java", second)
+        });
+        return x;
+    }
+
+    private int count(StringBuilder buf, String str) {
+        int ret = 0;
+        int idx = buf.indexOf(str);
+        while (idx >= 0) {
+            ret++;
+            idx = buf.indexOf(str, idx + 1);
+        }
+        return ret;
+    }
+
+}
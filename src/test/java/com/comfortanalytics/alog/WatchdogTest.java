@@ -0,0 +1,213 @@
+package com.comfortanalytics.alog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * @author Aaron Hansen
+ */
+public class WatchdogTest {
+
+    @BeforeClass
+    public void setup() {
+        LogManager.getLogManager().reset();
+    }
+
+    @AfterClass
+    public void teardown() {
+        LogManager.getLogManager().reset();
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getPercentile(50), 0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getMax(), 1000000);
+        long p50 = histogram.getPercentile(50);
+        Assert.assertTrue((p50 >= 500000) && (p50 <= 500000 * 1.125));
+        long p99 = histogram.getPercentile(99);
+        Assert.assertTrue((p99 >= 990000) && (p99 <= 1000000));
+        for (long i = 0; i < 100000; i += 7) {
+            Assert.assertTrue(LatencyHistogram.lowest(LatencyHistogram.index(i)) <= i);
+            Assert.assertTrue(LatencyHistogram.lowest(LatencyHistogram.index(i) + 1) > i);
+        }
+        histogram.reset();
+        Assert.assertEquals(histogram.getCount(), 0);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        TestHandler handler = new TestHandler();
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+        handler.close();
+        LatencyHistogram latency = handler.getWriteLatency();
+        Assert.assertEquals(latency.getCount(), 100);
+        Assert.assertTrue(latency.getPercentile(50) <= latency.getPercentile(99));
+        Assert.assertTrue(latency.getPercentile(99) <= latency.getMax());
+        //close returns once the queue is drained, the final flush may still be in progress
+        long start = System.currentTimeMillis();
+        while (handler.getFlushLatency().getCount() == 0) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testStall() throws Exception {
+        TestHandler handler = new TestHandler();
+        Capture failover = new Capture();
+        handler.setStallTimeout(100);
+        handler.setFailover(failover);
+        handler.block = new CountDownLatch(1);
+        handler.publish(new LogRecord(Level.INFO, "stuck"));
+        handler.publish(new LogRecord(Level.INFO, "queued"));
+        waitFor(failover, "queued");
+        Assert.assertTrue(handler.errors.size() > 0);
+        handler.publish(new LogRecord(Level.INFO, "direct"));
+        waitFor(failover, "direct");
+        handler.block.countDown();
+        long start = System.currentTimeMillis();
+        while (handler.lines.size() == 0) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        handler.publish(new LogRecord(Level.INFO, "after"));
+        handler.close();
+        Assert.assertTrue(handler.lines.contains("stuck"));
+        Assert.assertTrue(handler.lines.contains("after"));
+        Assert.assertFalse(failover.messages.contains("after"));
+    }
+
+    @Test
+    public void testStallWithoutFailover() throws Exception {
+        //a stalled failover can't accept records, so the queue must be left for the writer
+        TestHandler failover = new TestHandler();
+        failover.setStallTimeout(100);
+        failover.block = new CountDownLatch(1);
+        failover.publish(new LogRecord(Level.INFO, "stuck"));
+        waitForError(failover);
+        TestHandler handler = new TestHandler();
+        handler.setStallTimeout(100);
+        handler.setFailover(failover);
+        handler.block = new CountDownLatch(1);
+        handler.publish(new LogRecord(Level.INFO, "stuck"));
+        handler.publish(new LogRecord(Level.INFO, "queued"));
+        waitForError(handler);
+        Thread.sleep(200);
+        handler.block.countDown();
+        handler.close();
+        failover.block.countDown();
+        failover.close();
+        Assert.assertTrue(handler.lines.contains("stuck"));
+        Assert.assertTrue(handler.lines.contains("queued"));
+        Assert.assertFalse(failover.lines.contains("queued"));
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        TestHandler handler = new TestHandler();
+        handler.publish(new LogRecord(Level.INFO, "fail"));
+        handler.publish(new LogRecord(Level.INFO, "next"));
+        handler.close();
+        Assert.assertTrue(handler.lines.contains("next"));
+        Assert.assertEquals(handler.errors.size(), 1);
+        Assert.assertEquals(handler.errors.get(0).intValue(), ErrorManager.WRITE_FAILURE);
+    }
+
+    private void waitForError(TestHandler handler) throws Exception {
+        long start = System.currentTimeMillis();
+        while (handler.errors.size() == 0) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitFor(Capture capture, String msg) throws Exception {
+        long start = System.currentTimeMillis();
+        while (!capture.messages.contains(msg)) {
+            Assert.assertTrue((System.currentTimeMillis() - start) < 5000);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class Capture extends Handler {
+
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            messages.add(record.getMessage());
+        }
+    }
+
+    private static class TestHandler extends AsyncLogHandler {
+
+        volatile CountDownLatch block;
+        final List<Integer> errors = new ArrayList<Integer>();
+        final List<String> lines = new ArrayList<String>();
+
+        TestHandler() {
+            configure();
+            setErrorManager(new ErrorManager() {
+                @Override
+                public synchronized void error(String msg, Exception ex, int code) {
+                    errors.add(code);
+                }
+            });
+            start();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        protected String getThreadName() {
+            return "watchdog";
+        }
+
+        @Override
+        protected void write(LogRecord record) {
+            String msg = record.getMessage();
+            if (msg.equals("fail")) {
+                throw new IllegalStateException("fail");
+            }
+            CountDownLatch tmp = block;
+            if ((tmp != null) && msg.equals("stuck")) {
+                try {
+                    tmp.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+            synchronized (lines) {
+                lines.add(msg);
+            }
+        }
+    }
+
+}